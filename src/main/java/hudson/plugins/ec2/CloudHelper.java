@@ -1,18 +1,29 @@
 package hudson.plugins.ec2;
 
+import com.google.common.collect.Lists;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.commons.lang.StringUtils;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.AvailabilityZone;
 import software.amazon.awssdk.services.ec2.model.DescribeAvailabilityZonesResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Filter;
 import software.amazon.awssdk.services.ec2.model.Image;
 import software.amazon.awssdk.services.ec2.model.Instance;
 import software.amazon.awssdk.services.ec2.model.Reservation;
@@ -20,6 +31,18 @@ import software.amazon.awssdk.services.ec2.model.Reservation;
 final class CloudHelper {
     private static final Logger LOGGER = Logger.getLogger(CloudHelper.class.getName());
 
+    static final String INSTANCE_NOT_FOUND_ERROR_CODE = "InvalidInstanceID.NotFound";
+
+    /**
+     * Most values EC2 accepts for one filter.
+     */
+    private static final int MAX_FILTER_VALUES = 200;
+
+    /**
+     * One coalescer per cloud, so lookups are only batched with others using the same connection.
+     */
+    private static final Map<EC2Cloud, DescribeInstancesCoalescer> COALESCERS = new WeakHashMap<>();
+
     static Instance getInstanceWithRetry(String instanceId, EC2Cloud cloud) throws SdkException, InterruptedException {
         // Sometimes even after a successful RunInstances, DescribeInstances
         // returns an error for a few seconds. We do a few retries instead of
@@ -28,7 +51,7 @@ final class CloudHelper {
             try {
                 return getInstance(instanceId, cloud);
             } catch (AwsServiceException e) {
-                if ("InvalidInstanceID.NotFound".equals(e.awsErrorDetails().errorCode())
+                if (INSTANCE_NOT_FOUND_ERROR_CODE.equals(e.awsErrorDetails().errorCode())
                         || EC2Cloud.EC2_REQUEST_EXPIRED_ERROR_CODE.equals(
                                 e.awsErrorDetails().errorCode())) {
                     // retry in 5 seconds.
@@ -42,12 +65,29 @@ final class CloudHelper {
         return getInstance(instanceId, cloud);
     }
 
+    /**
+     * Describes the given instance. Concurrent lookups against the same cloud are merged into batched calls, see
+     * {@link DescribeInstancesCoalescer}.
+     */
     @CheckForNull
     static Instance getInstance(String instanceId, EC2Cloud cloud) throws SdkException {
         if (StringUtils.isEmpty(instanceId) || cloud == null) {
             return null;
         }
 
+        DescribeInstancesCoalescer coalescer;
+        synchronized (COALESCERS) {
+            coalescer = COALESCERS.computeIfAbsent(cloud, c -> new DescribeInstancesCoalescer());
+        }
+        return coalescer.describe(instanceId, cloud);
+    }
+
+    /**
+     * Describes a single instance with a dedicated call.
+     *
+     * @throws SdkException if EC2 does not report exactly one instance for the id.
+     */
+    static Instance describeSingleInstance(String instanceId, EC2Cloud cloud) throws SdkException {
         DescribeInstancesRequest request = DescribeInstancesRequest.builder()
                 .instanceIds(Collections.singletonList(instanceId))
                 .build();
@@ -78,6 +118,129 @@ final class CloudHelper {
         return instances.get(0);
     }
 
+    /**
+     * Describes many instances with as few calls as possible, leaving out those EC2 does not know. Results are recorded
+     * in the {@link EC2InstanceStateStore} of the cloud. With the {@link EC2Cloud#connectAsync() async client}, the
+     * calls for all chunks of ids are sent at once.
+     */
+    static Map<String, Instance> describeInstances(Collection<String> instanceIds, EC2Cloud cloud) throws SdkException {
+        Ec2AsyncClient asyncClient = null;
+        try {
+            asyncClient = cloud.connectAsync();
+        } catch (SdkException e) {
+            LOGGER.log(Level.FINE, "Failed to create async client, describing instances with the blocking one", e);
+        }
+        Map<String, Instance> found =
+                asyncClient != null ? describeAsync(instanceIds, asyncClient) : describeBlocking(instanceIds, cloud);
+        EC2InstanceStateStore store = EC2InstanceStateStore.get(cloud);
+        for (Instance instance : found.values()) {
+            store.update(instance);
+        }
+        return found;
+    }
+
+    private static Map<String, Instance> describeBlocking(Collection<String> instanceIds, EC2Cloud cloud) {
+        Map<String, Instance> found = new HashMap<>();
+        for (List<String> chunk :
+                Lists.partition(new ArrayList<>(instanceIds), DescribeInstancesCoalescer.MAX_BATCH_SIZE)) {
+            try {
+                describe(DescribeInstancesRequest.builder().instanceIds(chunk).build(), cloud, found);
+            } catch (AwsServiceException e) {
+                if (e.awsErrorDetails() == null
+                        || !INSTANCE_NOT_FOUND_ERROR_CODE.equals(e.awsErrorDetails().errorCode())) {
+                    throw e;
+                }
+                // A single unknown id fails the whole call, whereas a filter just leaves it out
+                for (List<String> filterChunk : Lists.partition(chunk, MAX_FILTER_VALUES)) {
+                    describe(
+                            DescribeInstancesRequest.builder()
+                                    .filters(Filter.builder()
+                                            .name("instance-id")
+                                            .values(filterChunk)
+                                            .build())
+                                    .build(),
+                            cloud,
+                            found);
+                }
+            }
+        }
+        return found;
+    }
+
+    private static Map<String, Instance> describeAsync(Collection<String> instanceIds, Ec2AsyncClient client) {
+        Map<String, Instance> found = new HashMap<>();
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        for (List<String> chunk :
+                Lists.partition(new ArrayList<>(instanceIds), DescribeInstancesCoalescer.MAX_BATCH_SIZE)) {
+            pending.add(describe(
+                            DescribeInstancesRequest.builder().instanceIds(chunk).build(), client, found)
+                    .exceptionallyCompose(e -> {
+                        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                        if (!(cause instanceof AwsServiceException ase)
+                                || ase.awsErrorDetails() == null
+                                || !INSTANCE_NOT_FOUND_ERROR_CODE.equals(
+                                        ase.awsErrorDetails().errorCode())) {
+                            return CompletableFuture.failedFuture(cause);
+                        }
+                        // Same fallback to filters as the blocking calls
+                        List<CompletableFuture<Void>> filtered = new ArrayList<>();
+                        for (List<String> filterChunk : Lists.partition(chunk, MAX_FILTER_VALUES)) {
+                            filtered.add(describe(
+                                    DescribeInstancesRequest.builder()
+                                            .filters(Filter.builder()
+                                                    .name("instance-id")
+                                                    .values(filterChunk)
+                                                    .build())
+                                            .build(),
+                                    client,
+                                    found));
+                        }
+                        return CompletableFuture.allOf(filtered.toArray(new CompletableFuture<?>[0]));
+                    }));
+        }
+        try {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof SdkException sdkException) {
+                throw sdkException;
+            }
+            throw SdkException.create("Failed to describe instances", e.getCause());
+        }
+        synchronized (found) {
+            return new HashMap<>(found);
+        }
+    }
+
+    private static CompletableFuture<Void> describe(
+            DescribeInstancesRequest request, Ec2AsyncClient client, Map<String, Instance> found) {
+        return client.describeInstances(request).thenCompose(response -> {
+            synchronized (found) {
+                for (Reservation r : response.reservations()) {
+                    for (Instance i : r.instances()) {
+                        found.put(i.instanceId(), i);
+                    }
+                }
+            }
+            if (response.nextToken() == null) {
+                return CompletableFuture.completedFuture(null);
+            }
+            return describe(request.toBuilder().nextToken(response.nextToken()).build(), client, found);
+        });
+    }
+
+    private static void describe(DescribeInstancesRequest request, EC2Cloud cloud, Map<String, Instance> found) {
+        DescribeInstancesResponse response;
+        do {
+            response = cloud.connect().describeInstances(request);
+            for (Reservation r : response.reservations()) {
+                for (Instance i : r.instances()) {
+                    found.put(i.instanceId(), i);
+                }
+            }
+            request = request.toBuilder().nextToken(response.nextToken()).build();
+        } while (response.nextToken() != null);
+    }
+
     @CheckForNull
     static Image getAmiImage(Ec2Client ec2, String ami) {
         List<String> images = Collections.singletonList(ami);
@@ -0,0 +1,196 @@
+package hudson.plugins.ec2;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+/**
+ * Merges concurrent single instance lookups against one cloud into batched {@code DescribeInstances} calls.
+ *
+ * <p>The first caller to ask for an instance while other lookups are in flight opens a batch and waits a short
+ * window for others to join, then sends one request for every id collected, up to {@link #MAX_BATCH_SIZE}. A caller
+ * that is alone sends its lookup right away, and a batch that fills up is sent right away by the caller that filled
+ * it. Ids EC2 does not know are left out with an {@code instance-id} filter rather than described one by one, see
+ * {@link CloudHelper#describeInstances}. Lookups for an id that is already queued or being described share the pending
+ * result instead of issuing their own request. No extra threads are involved: batches always run on a caller thread.
+ */
+final class DescribeInstancesCoalescer {
+    private static final Logger LOGGER = Logger.getLogger(DescribeInstancesCoalescer.class.getName());
+
+    /**
+     * Maximum number of instance ids EC2 accepts in one {@code DescribeInstances} call.
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * How long the first lookup of a batch waits for others to join, in milliseconds.
+     */
+    static final long WINDOW_MILLIS = Long.getLong("jenkins.ec2.describeInstancesBatchWindowMillis", 5);
+
+    private final long windowMillis;
+
+    private final Object lock = new Object();
+
+    /**
+     * Batch currently accepting ids, {@code null} if none is open.
+     */
+    private Batch open;
+
+    /**
+     * Pending result per instance id, for both queued and running batches.
+     */
+    private final Map<String, CompletableFuture<Instance>> inFlight = new HashMap<>();
+
+    DescribeInstancesCoalescer() {
+        this(WINDOW_MILLIS);
+    }
+
+    DescribeInstancesCoalescer(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    private static final class Batch {
+        final EC2Cloud cloud;
+        final Map<String, CompletableFuture<Instance>> futures = new LinkedHashMap<>();
+
+        Batch(EC2Cloud cloud) {
+            this.cloud = cloud;
+        }
+    }
+
+    /**
+     * Describes a single instance, sharing the underlying call with concurrent lookups.
+     *
+     * @throws SdkException with the same semantics as a dedicated single id {@code DescribeInstances} call.
+     */
+    Instance describe(String instanceId, EC2Cloud cloud) throws SdkException {
+        CompletableFuture<Instance> future;
+        Batch leading = null;
+        Batch full = null;
+        synchronized (lock) {
+            future = inFlight.get(instanceId);
+            if (future == null) {
+                // Nobody else is looking instances up, waiting for others to join would only add latency
+                boolean alone = inFlight.isEmpty();
+                if (open == null) {
+                    open = new Batch(cloud);
+                    leading = open;
+                }
+                future = new CompletableFuture<>();
+                open.futures.put(instanceId, future);
+                inFlight.put(instanceId, future);
+                if (alone || open.futures.size() >= MAX_BATCH_SIZE) {
+                    full = open;
+                    open = null;
+                    leading = null;
+                }
+            }
+        }
+
+        if (full != null) {
+            run(full);
+        } else if (leading != null) {
+            if (windowMillis > 0) {
+                try {
+                    Thread.sleep(windowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            synchronized (lock) {
+                if (open == leading) {
+                    open = null;
+                } else {
+                    // Filled up and sent by another caller meanwhile
+                    leading = null;
+                }
+            }
+            if (leading != null) {
+                run(leading);
+            }
+        }
+
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw SdkException.builder().cause(e.getCause()).build();
+        }
+    }
+
+    private void run(Batch batch) {
+        try {
+            if (batch.futures.size() == 1) {
+                Map.Entry<String, CompletableFuture<Instance>> entry =
+                        batch.futures.entrySet().iterator().next();
+                complete(entry.getValue(), entry.getKey(), batch.cloud);
+            } else {
+                runMany(batch);
+            }
+        } finally {
+            synchronized (lock) {
+                for (Map.Entry<String, CompletableFuture<Instance>> entry : batch.futures.entrySet()) {
+                    inFlight.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    private void runMany(Batch batch) {
+        LOGGER.log(Level.FINE, "Describing {0} instances in one call", batch.futures.size());
+        Map<String, Instance> found;
+        try {
+            found = CloudHelper.describeInstances(batch.futures.keySet(), batch.cloud);
+        } catch (RuntimeException e) {
+            failAll(batch, e);
+            return;
+        }
+
+        for (Map.Entry<String, CompletableFuture<Instance>> entry : batch.futures.entrySet()) {
+            Instance instance = found.get(entry.getKey());
+            if (instance != null) {
+                entry.getValue().complete(instance);
+            } else {
+                // Same error as a dedicated call would have failed with, so that callers retry as they did
+                entry.getValue().completeExceptionally(notFound(entry.getKey()));
+            }
+        }
+    }
+
+    private static AwsServiceException notFound(String instanceId) {
+        String message = "The instance ID '" + instanceId + "' does not exist";
+        return Ec2Exception.builder()
+                .message(message)
+                .statusCode(400)
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode(CloudHelper.INSTANCE_NOT_FOUND_ERROR_CODE)
+                        .errorMessage(message)
+                        .build())
+                .build();
+    }
+
+    private static void complete(CompletableFuture<Instance> future, String instanceId, EC2Cloud cloud) {
+        try {
+            future.complete(CloudHelper.describeSingleInstance(instanceId, cloud));
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static void failAll(Batch batch, RuntimeException e) {
+        for (CompletableFuture<Instance> future : batch.futures.values()) {
+            future.completeExceptionally(e);
+        }
+    }
+}
@@ -23,6 +23,7 @@
  */
 package hudson.plugins.ec2;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -123,18 +124,12 @@ public abstract class EC2AbstractSlave extends Slave {
     public transient String publicDNS;
     public transient String privateDNS;
 
-    /* The last instance data to be fetched for the agent */
-    protected transient Instance lastFetchInstance = null;
-
-    /* The time at which we fetched the last instance data */
-    protected transient long lastFetchTime;
-
     /** Terminate was scheduled */
     protected transient ResettableCountDownLatch terminateScheduled = new ResettableCountDownLatch(1, false);
 
     /*
-     * The time (in milliseconds) after which we will always re-fetch externally changeable EC2 data when we are asked
-     * for it
+     * The time (in milliseconds) after which we will always re-fetch externally changeable EC2 data of a freshly
+     * running instance when we are asked for it. Older instances are re-fetched less often, see EC2InstanceStateStore.
      */
     protected static final long MIN_FETCH_TIME =
             Long.getLong("hudson.plugins.ec2.EC2AbstractSlave.MIN_FETCH_TIME", TimeUnit.SECONDS.toMillis(20));
@@ -157,6 +152,24 @@ public abstract class EC2AbstractSlave extends Slave {
 
     private transient Instant createdTime;
 
+    /**
+     * Whether the agent was provisioned on an instance that was already pending or running, rather than on one launched
+     * or woken up for it.
+     */
+    private transient boolean existingInstance;
+
+    /**
+     * When the agent was provisioned, 0 for agents loaded from disk.
+     */
+    private transient long provisionedAt = System.currentTimeMillis();
+
+    /**
+     * Template of this agent, valid as long as the template index of the cloud it was resolved from is current.
+     */
+    private transient volatile TemplateRef templateRef;
+
+    private record TemplateRef(EC2TemplateIndex index, @CheckForNull SlaveTemplate template) {}
+
     public static final String TEST_ZONE = "testZone";
 
     public EC2AbstractSlave(
@@ -553,6 +566,27 @@ public abstract class EC2AbstractSlave extends Slave {
         return (EC2Cloud) Jenkins.get().getCloud(cloudName);
     }
 
+    /**
+     * Gets the template this agent was launched from, {@code null} if it no longer exists.
+     */
+    @CheckForNull
+    public SlaveTemplate getTemplate() {
+        EC2Cloud cloud = getCloud();
+        if (cloud == null) {
+            return null;
+        }
+        EC2TemplateIndex index = cloud.getTemplateIndex();
+        if (index == null) {
+            return cloud.getTemplate(templateDescription);
+        }
+        TemplateRef ref = templateRef;
+        if (ref == null || ref.index() != index) {
+            ref = new TemplateRef(index, index.getByDescription(templateDescription));
+            templateRef = ref;
+        }
+        return ref.template();
+    }
+
     /**
      * See http://aws.amazon.com/ec2/instance-types/
      */
@@ -732,6 +766,19 @@ public abstract class EC2AbstractSlave extends Slave {
         return instanceId;
     }
 
+    /**
+     * Instance ID of the agent if it is known without asking EC2, {@code null} otherwise.
+     */
+    @CheckForNull
+    static String knownInstanceIdOf(@CheckForNull EC2AbstractSlave node) {
+        if (node == null) {
+            return null;
+        }
+        // The field for spot agents, as their getter looks the instance up when it is not known yet
+        String instanceId = node instanceof EC2SpotSlave ? node.instanceId : node.getInstanceId();
+        return StringUtils.isEmpty(instanceId) ? null : instanceId;
+    }
+
     @Override
     public Computer createComputer() {
         return new EC2Computer(this);
@@ -759,6 +806,22 @@ public abstract class EC2AbstractSlave extends Slave {
      */
     public abstract void terminate();
 
+    /**
+     * Queues this agent for termination in bulk with others of its cloud, unless it is already queued.
+     *
+     * @see EC2TerminationQueue
+     */
+    void queueTermination() {
+        if (terminateScheduled.getCount() == 0) {
+            synchronized (terminateScheduled) {
+                if (terminateScheduled.getCount() == 0) {
+                    terminateScheduled.reset();
+                    EC2TerminationQueue.submit(this);
+                }
+            }
+        }
+    }
+
     void stop() {
         try {
             Ec2Client ec2 = getCloud().connect();
@@ -767,6 +830,7 @@ public abstract class EC2AbstractSlave extends Slave {
                     .build();
             LOGGER.fine("Sending stop request for " + getInstanceId());
             ec2.stopInstances(request);
+            invalidateInstanceState();
             LOGGER.info("EC2 instance stop request sent for " + getInstanceId());
             Computer computer = toComputer();
             if (computer != null) {
@@ -785,6 +849,7 @@ public abstract class EC2AbstractSlave extends Slave {
                     .build();
             LOGGER.fine("Sending terminate request for " + getInstanceId());
             ec2.terminateInstances(request);
+            invalidateInstanceState();
             LOGGER.info("EC2 instance terminate request sent for " + getInstanceId());
             return true;
         } catch (SdkException e) {
@@ -901,29 +966,46 @@ public abstract class EC2AbstractSlave extends Slave {
     }
 
     protected boolean isAlive(boolean force) {
-        fetchLiveInstanceData(force);
-        if (lastFetchInstance == null) {
+        Instance i = fetchLiveInstanceData(force);
+        if (i == null) {
             return false;
         }
-        if (lastFetchInstance.state().name().equals(InstanceStateName.TERMINATED)) {
+        if (i.state().name().equals(InstanceStateName.TERMINATED)) {
             return false;
         }
         return true;
     }
 
-    /*
-     * Much of the EC2 data is beyond our direct control, therefore we need to refresh it from time to time to ensure we
-     * reflect the reality of the instances.
+    /**
+     * Returns the description of this agent's instance from the state store shared by all nodes of the cloud.
+     *
+     * @param force bypass the store and ask EC2.
      */
-    private void fetchLiveInstanceData(boolean force) throws SdkException {
-        /*
-         * If we've grabbed the data recently, don't bother getting it again unless we are forced
-         */
-        long now = System.currentTimeMillis();
-        if ((lastFetchTime > 0) && (now - lastFetchTime < MIN_FETCH_TIME) && !force) {
-            return;
+    @CheckForNull
+    Instance describeInstance(boolean force) throws SdkException, InterruptedException {
+        EC2Cloud cloud = getCloud();
+        if (cloud == null) {
+            return null;
+        }
+        return EC2InstanceStateStore.get(cloud).getInstance(getInstanceId(), cloud, force);
+    }
+
+    /**
+     * Drops the stored description of this agent's instance, after we changed its state ourselves.
+     */
+    void invalidateInstanceState() {
+        EC2Cloud cloud = getCloud();
+        if (cloud != null && StringUtils.isNotEmpty(instanceId)) {
+            EC2InstanceStateStore.get(cloud).invalidate(instanceId);
         }
+    }
 
+    /*
+     * Much of the EC2 data is beyond our direct control, therefore we need to refresh it from time to time to ensure we
+     * reflect the reality of the instances. The state store decides how often based on the instance state.
+     */
+    @CheckForNull
+    private Instance fetchLiveInstanceData(boolean force) throws SdkException {
         if (getInstanceId() == null || getInstanceId().isEmpty()) {
             /*
              * The getInstanceId() implementation on EC2SpotSlave can return null if the spot request doesn't yet know
@@ -932,22 +1014,21 @@ public abstract class EC2AbstractSlave extends Slave {
              * including tags, and then later, when the spot request eventually gets the instanceID correctly we push
              * the saved tags from that random box up to the new spot resulting in confusion and delay.
              */
-            return;
+            return null;
         }
 
         Instance i = null;
         try {
-            i = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+            i = describeInstance(force);
         } catch (InterruptedException e) {
             // We'll just retry next time we test for idleness.
             LOGGER.fine("InterruptedException while get " + getInstanceId() + " Exception: " + e);
-            return;
+            EC2Cloud cloud = getCloud();
+            return cloud == null ? null : EC2InstanceStateStore.get(cloud).peek(getInstanceId());
         }
 
-        lastFetchTime = now;
-        lastFetchInstance = i;
         if (i == null) {
-            return;
+            return null;
         }
 
         publicDNS = i.publicDnsName();
@@ -965,6 +1046,7 @@ public abstract class EC2AbstractSlave extends Slave {
                 tags.add(new EC2Tag(t.key(), t.value()));
             }
         }
+        return i;
     }
 
     /*
@@ -973,7 +1055,7 @@ public abstract class EC2AbstractSlave extends Slave {
     protected void clearLiveInstancedata() throws SdkException {
         Instance inst = null;
         try {
-            inst = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+            inst = describeInstance(false);
         } catch (InterruptedException e) {
             // We'll just retry next time we test for idleness.
             LOGGER.fine("InterruptedException while get " + getInstanceId() + " Exception: " + e);
@@ -1004,7 +1086,7 @@ public abstract class EC2AbstractSlave extends Slave {
     protected void pushLiveInstancedata() throws SdkException {
         Instance inst = null;
         try {
-            inst = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+            inst = describeInstance(false);
         } catch (InterruptedException e) {
             // We'll just retry next time we test for idleness.
             LOGGER.fine("InterruptedException while get " + getInstanceId() + " Exception: " + e);
@@ -1064,6 +1146,18 @@ public abstract class EC2AbstractSlave extends Slave {
         return createdTime;
     }
 
+    boolean isExistingInstance() {
+        return existingInstance;
+    }
+
+    void setExistingInstance(boolean existingInstance) {
+        this.existingInstance = existingInstance;
+    }
+
+    long getProvisionedAt() {
+        return provisionedAt;
+    }
+
     @Deprecated
     public boolean getUsePrivateDnsName() {
         return usePrivateDnsName;
@@ -0,0 +1,277 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.ToIntFunction;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * In-memory count of the EC2 agents owned by a single {@link EC2Cloud}, overall and per template, used for the
+ * instance cap checks.
+ *
+ * <p>Counts are seeded with one scan the first time they are needed, adjusted locally whenever agents are launched or
+ * released, and periodically reconciled against EC2 by {@link EC2CapacityLedgerReconciler}. Each reconcile records how
+ * far the local view had drifted from EC2. Agents launched while a reconcile scan is running are added on top of the
+ * scanned value, as EC2 may not list them yet; over-counting only delays provisioning until the next reconcile, while
+ * under-counting could exceed the cap.
+ *
+ * <p>Provisioning {@link #reserve reserves} the agents it is about to launch while checking the caps, and
+ * {@link #settle settles} the reservation once the launch returned, so the AWS calls of a launch need no lock. Agents
+ * reserved but not settled yet count everywhere a launched agent does, including in seeds and reconciles.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2CapacityLedger {
+
+    private static final Logger LOGGER = Logger.getLogger(EC2CapacityLedger.class.getName());
+
+    /**
+     * Counts keyed by template description, the {@code null} key holding the count for the whole cloud.
+     */
+    private final Map<String, Integer> counts = new HashMap<>();
+
+    /**
+     * Instance or spot request ids counted by a local launch event since the last reconcile, with their template.
+     */
+    private final Map<String, String> launched = new HashMap<>();
+
+    /**
+     * Ids already subtracted since the last reconcile, so a release is never applied twice.
+     */
+    private final Set<String> released = new HashSet<>();
+
+    /**
+     * Agents reserved by launches still in flight, keyed like {@link #counts}.
+     */
+    private final Map<String, Integer> reserved = new HashMap<>();
+
+    /**
+     * Launches recorded while a reconcile scan is in flight, {@code null} when no reconcile is running.
+     */
+    @CheckForNull
+    private Map<String, String> launchedDuringReconcile;
+
+    private int lastTotalDrift;
+
+    private int maxTotalDrift;
+
+    private Map<String, Integer> lastTemplateDrift = Collections.emptyMap();
+
+    private long reconcileCount;
+
+    private long lastReconcileTime;
+
+    /**
+     * Returns the number of agents currently counted for the given template, or for the whole cloud when the
+     * description is {@code null}. The first call for a key seeds it through the scanner.
+     */
+    synchronized int count(@CheckForNull String templateDescription, ToIntFunction<String> scanner) {
+        Integer n = counts.get(templateDescription);
+        if (n == null) {
+            n = scanner.applyAsInt(templateDescription) + reserved.getOrDefault(templateDescription, 0);
+            counts.put(templateDescription, n);
+            LOGGER.log(Level.FINE, "Seeded capacity ledger for {0} with {1} agent(s)", new Object[] {
+                templateDescription == null ? "all templates" : templateDescription, n
+            });
+        }
+        return n;
+    }
+
+    /**
+     * Records agents that now count against the caps of the given template and of the cloud.
+     */
+    synchronized void recordLaunched(String templateDescription, Collection<String> ids) {
+        for (String id : ids) {
+            if (id == null || id.isEmpty() || launched.containsKey(id)) {
+                continue;
+            }
+            launched.put(id, templateDescription);
+            if (launchedDuringReconcile != null) {
+                launchedDuringReconcile.put(id, templateDescription);
+            }
+            adjust(null, 1);
+            adjust(templateDescription, 1);
+        }
+    }
+
+    /**
+     * Counts agents about to be launched for the given template against the caps until they are {@link #settle
+     * settled}.
+     */
+    synchronized void reserve(String templateDescription, int number) {
+        reserved.merge(null, number, Integer::sum);
+        reserved.merge(templateDescription, number, Integer::sum);
+        adjust(null, number);
+        adjust(templateDescription, number);
+    }
+
+    /**
+     * Replaces a reservation by the agents actually launched for it, none if the launch failed.
+     */
+    synchronized void settle(String templateDescription, int number, Collection<String> ids) {
+        reserved.computeIfPresent(null, (k, n) -> n > number ? n - number : null);
+        reserved.computeIfPresent(templateDescription, (k, n) -> n > number ? n - number : null);
+        adjust(null, -number);
+        adjust(templateDescription, -number);
+        recordLaunched(templateDescription, ids);
+    }
+
+    /**
+     * Records that an agent no longer counts against the caps, e.g. after its instance was terminated or its spot
+     * request was cancelled.
+     */
+    synchronized void recordReleased(String templateDescription, String id) {
+        if (id == null || id.isEmpty() || !released.add(id)) {
+            return;
+        }
+        launched.remove(id);
+        if (launchedDuringReconcile != null) {
+            launchedDuringReconcile.remove(id);
+        }
+        adjust(null, -1);
+        adjust(templateDescription, -1);
+    }
+
+    private void adjust(@CheckForNull String key, int delta) {
+        Integer n = counts.get(key);
+        if (n != null) {
+            counts.put(key, Math.max(0, n + delta));
+        }
+    }
+
+    /**
+     * Rescans EC2 for the whole cloud and each of the given templates, and replaces the local counts with the result.
+     * The scans run without holding the ledger lock, so cap checks are not blocked meanwhile.
+     */
+    void reconcile(Collection<String> templateDescriptions, ToIntFunction<String> scanner) {
+        synchronized (this) {
+            if (launchedDuringReconcile != null) {
+                LOGGER.log(Level.FINE, "Capacity ledger reconcile already in progress, skipping");
+                return;
+            }
+            launchedDuringReconcile = new HashMap<>();
+        }
+        Map<String, Integer> scanned = new HashMap<>();
+        try {
+            scanned.put(null, scanner.applyAsInt(null));
+            for (String description : templateDescriptions) {
+                scanned.put(description, scanner.applyAsInt(description));
+            }
+        } catch (RuntimeException e) {
+            synchronized (this) {
+                launchedDuringReconcile = null;
+            }
+            throw e;
+        }
+
+        synchronized (this) {
+            Map<String, Integer> templateDrift = new HashMap<>();
+            List<String> drifted = new ArrayList<>();
+            for (Map.Entry<String, Integer> e : scanned.entrySet()) {
+                String key = e.getKey();
+                int value = e.getValue();
+                for (String launchedFor : launchedDuringReconcile.values()) {
+                    if (key == null || key.equals(launchedFor)) {
+                        value++;
+                    }
+                }
+                // Launches in flight may not be listed yet either
+                value += reserved.getOrDefault(key, 0);
+                Integer previous = counts.get(key);
+                if (previous != null) {
+                    int drift = previous - value;
+                    if (key == null) {
+                        lastTotalDrift = drift;
+                        maxTotalDrift = Math.max(maxTotalDrift, Math.abs(drift));
+                    } else {
+                        templateDrift.put(key, drift);
+                    }
+                    if (drift != 0) {
+                        drifted.add((key == null ? "all templates" : key) + ": " + previous + " -> " + value);
+                    }
+                }
+                e.setValue(value);
+            }
+            counts.clear();
+            counts.putAll(scanned);
+            launched.clear();
+            launched.putAll(launchedDuringReconcile);
+            released.clear();
+            launchedDuringReconcile = null;
+            lastTemplateDrift = Collections.unmodifiableMap(templateDrift);
+            reconcileCount++;
+            lastReconcileTime = System.currentTimeMillis();
+
+            if (drifted.isEmpty()) {
+                LOGGER.log(Level.FINE, "Capacity ledger reconciled without drift");
+            } else {
+                LOGGER.log(Level.INFO, "Capacity ledger drifted from EC2, corrected " + drifted);
+            }
+        }
+    }
+
+    /**
+     * Forgets all counts so the next cap check seeds them again.
+     */
+    synchronized void clear() {
+        counts.clear();
+        launched.clear();
+        released.clear();
+    }
+
+    /**
+     * Returns the key an agent is tracked under: its spot request id for spot agents, its instance id otherwise.
+     */
+    static String keyOf(EC2AbstractSlave slave) {
+        if (slave instanceof EC2SpotSlave spotSlave) {
+            return spotSlave.getSpotInstanceRequestId();
+        }
+        return slave.getInstanceId();
+    }
+
+    /**
+     * Difference between the local total and EC2 at the last reconcile; positive when the ledger over-counted.
+     */
+    synchronized int getLastTotalDrift() {
+        return lastTotalDrift;
+    }
+
+    /**
+     * Largest absolute total drift seen by any reconcile.
+     */
+    synchronized int getMaxTotalDrift() {
+        return maxTotalDrift;
+    }
+
+    /**
+     * Per template difference between the local count and EC2 at the last reconcile.
+     */
+    synchronized Map<String, Integer> getLastTemplateDrift() {
+        return lastTemplateDrift;
+    }
+
+    synchronized long getReconcileCount() {
+        return reconcileCount;
+    }
+
+    synchronized long getLastReconcileTime() {
+        return lastReconcileTime;
+    }
+
+    /**
+     * Returns the current count for the key without seeding it, or {@code null} when it has not been seeded yet.
+     */
+    @CheckForNull
+    synchronized Integer peek(@CheckForNull String templateDescription) {
+        return counts.get(templateDescription);
+    }
+}
@@ -0,0 +1,46 @@
+package hudson.plugins.ec2;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import software.amazon.awssdk.core.exception.SdkException;
+
+/**
+ * Periodically rescans EC2 to correct the {@link EC2CapacityLedger} of every cloud.
+ */
+@Extension
+public class EC2CapacityLedgerReconciler extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(EC2CapacityLedgerReconciler.class.getName());
+
+    private final Long recurrencePeriod;
+
+    public EC2CapacityLedgerReconciler() {
+        super("EC2 capacity ledger reconciler");
+        recurrencePeriod = Long.getLong("jenkins.ec2.capacityReconcilePeriod", TimeUnit.MINUTES.toMillis(5));
+        LOGGER.log(Level.FINE, "EC2 capacity reconcile period is {0}ms", recurrencePeriod);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.get().clouds) {
+            if (cloud instanceof EC2Cloud ec2Cloud) {
+                try {
+                    ec2Cloud.reconcileCapacity();
+                } catch (SdkException e) {
+                    LOGGER.log(Level.WARNING, "Failed to reconcile capacity of cloud " + ec2Cloud.getDisplayName(), e);
+                }
+            }
+        }
+    }
+}
@@ -36,11 +36,14 @@ import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
@@ -48,6 +51,7 @@ import software.amazon.awssdk.services.ec2.model.Filter;
 import software.amazon.awssdk.services.ec2.model.Instance;
 import software.amazon.awssdk.services.ec2.model.Reservation;
 import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
 
 @Extension
 public class EC2CleanupOrphanedNodes extends PeriodicWork {
@@ -62,6 +66,11 @@ public class EC2CleanupOrphanedNodes extends PeriodicWork {
     private static final int LOST_MULTIPLIER =
             Integer.parseInt(System.getProperty(EC2CleanupOrphanedNodes.class.getName() + ".lostMultiplier", "3"));
 
+    /**
+     * Most instance ids sent in one {@code TerminateInstances} call.
+     */
+    private static final int TERMINATE_BATCH_SIZE = 1000;
+
     @Override
     public long getRecurrencePeriod() {
         return RECURRENCE_PERIOD;
@@ -97,11 +106,27 @@ public class EC2CleanupOrphanedNodes extends PeriodicWork {
         Set<String> updatedInstances =
                 updateLocalInstancesTag(connection, localConnectedEC2Instances, remoteInstancesIds, cloud);
 
-        remoteInstances.stream()
+        List<String> orphans = remoteInstances.stream()
                 // exclude instances that just got updated
                 .filter(remote -> !updatedInstances.contains(remote.instanceId()))
                 .filter(this::isOrphaned)
-                .forEach(remote -> terminateInstance(remote.instanceId(), connection));
+                .map(Instance::instanceId)
+                .collect(Collectors.toList());
+        if (orphans.isEmpty()) {
+            return;
+        }
+
+        Ec2AsyncClient asyncConnection = null;
+        try {
+            asyncConnection = cloud.connectAsync();
+        } catch (SdkException e) {
+            LOGGER.log(Level.FINE, "Failed to create async client, terminating orphans one by one", e);
+        }
+        if (asyncConnection != null) {
+            terminateInstances(orphans, asyncConnection);
+        } else {
+            terminateInstances(orphans, connection);
+        }
     }
 
     private List<EC2Cloud> getClouds() {
@@ -153,10 +178,7 @@ public class EC2CleanupOrphanedNodes extends PeriodicWork {
      * Returns a list of EC2 agent instance IDs connected to Jenkins.
      */
     private Set<String> getConnectedAgentInstanceIds(EC2Cloud cloud) {
-        return Jenkins.get().getNodes().stream()
-                .filter(EC2AbstractSlave.class::isInstance)
-                .map(EC2AbstractSlave.class::cast)
-                .filter(node -> cloud.equals(node.getCloud()))
+        return EC2NodeIndex.get().getNodes(cloud).stream()
                 .map(node -> {
                     LOGGER.fine(
                             () -> "Connected agent: " + node.getNodeName() + ", Instance ID: " + node.getInstanceId());
@@ -260,13 +282,38 @@ public class EC2CleanupOrphanedNodes extends PeriodicWork {
         return isOrphan;
     }
 
-    private void terminateInstance(String instanceId, Ec2Client connection) {
-        LOGGER.info(() -> "Removing orphaned instance: " + instanceId);
+    private void terminateInstances(List<String> instanceIds, Ec2Client connection) {
+        for (List<String> chunk : Lists.partition(instanceIds, TERMINATE_BATCH_SIZE)) {
+            LOGGER.info(() -> "Removing orphaned instances: " + chunk);
+            try {
+                connection.terminateInstances(builder -> builder.instanceIds(chunk).build());
+            } catch (SdkException ex) {
+                LOGGER.log(Level.WARNING, "Error terminating remote instances " + chunk, ex);
+            }
+        }
+    }
+
+    /**
+     * Terminates the orphans with one call per chunk, all chunks at once, without holding a thread per call.
+     */
+    private void terminateInstances(List<String> instanceIds, Ec2AsyncClient connection) {
+        List<CompletableFuture<?>> pending = new ArrayList<>();
+        for (List<String> chunk : Lists.partition(instanceIds, TERMINATE_BATCH_SIZE)) {
+            LOGGER.info(() -> "Removing orphaned instances: " + chunk);
+            pending.add(connection
+                    .terminateInstances(TerminateInstancesRequest.builder()
+                            .instanceIds(chunk)
+                            .build())
+                    .whenComplete((response, ex) -> {
+                        if (ex != null) {
+                            LOGGER.log(Level.WARNING, "Error terminating remote instances " + chunk, ex);
+                        }
+                    }));
+        }
         try {
-            connection.terminateInstances(
-                    builder -> builder.instanceIds(instanceId).build());
-        } catch (SdkException ex) {
-            LOGGER.log(Level.WARNING, "Error terminating remote instance " + instanceId, ex);
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            // Already logged per chunk
         }
     }
 
@@ -35,7 +35,6 @@ import com.google.common.annotations.VisibleForTesting;
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
-import hudson.ProxyConfiguration;
 import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
@@ -43,17 +42,20 @@ import hudson.model.Failure;
 import hudson.model.ItemGroup;
 import hudson.model.Label;
 import hudson.model.Node;
-import hudson.model.PeriodicWork;
 import hudson.model.TaskListener;
 import hudson.plugins.ec2.util.AmazonEC2Factory;
+import hudson.plugins.ec2.util.EC2ApiRateLimiter;
+import hudson.plugins.ec2.util.EC2HttpTransports;
 import hudson.plugins.ec2.util.FIPS140Utils;
 import hudson.plugins.ec2.util.KeyPair;
 import hudson.security.ACL;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.HttpResponses;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
 import hudson.util.Secret;
 import hudson.util.StreamTaskListener;
 import jakarta.servlet.ServletException;
@@ -67,8 +69,6 @@ import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.time.Instant;
-import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -76,11 +76,15 @@ import java.util.EnumSet;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
-import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -89,6 +93,7 @@ import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
+import jenkins.security.ImpersonatingExecutorService;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.kohsuke.accmod.Restricted;
@@ -115,11 +120,11 @@ import software.amazon.awssdk.core.exception.SdkClientException;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.core.retry.RetryPolicy;
 import software.amazon.awssdk.http.SdkHttpClient;
-import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.regions.RegionMetadata;
 import software.amazon.awssdk.regions.ServiceEndpointKey;
 import software.amazon.awssdk.regions.ServiceMetadata;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
@@ -128,7 +133,6 @@ import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsReq
 import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
 import software.amazon.awssdk.services.ec2.model.Filter;
 import software.amazon.awssdk.services.ec2.model.Instance;
-import software.amazon.awssdk.services.ec2.model.InstanceStateName;
 import software.amazon.awssdk.services.ec2.model.InstanceType;
 import software.amazon.awssdk.services.ec2.model.KeyPairInfo;
 import software.amazon.awssdk.services.ec2.model.Reservation;
@@ -163,8 +167,20 @@ public class EC2Cloud extends Cloud {
     // then this will be used instead of any configured ssh credential
     public static final String SSH_PRIVATE_KEY_FILEPATH = EC2Cloud.class.getName() + ".sshPrivateKeyFilePath";
 
+    /**
+     * Whether sweeps may use a non-blocking client, see {@link #connectAsync()}.
+     */
+    static final boolean ASYNC_CLIENT = Boolean.getBoolean("jenkins.ec2.asyncClient");
+
     private transient ReentrantLock slaveCountingLock = new ReentrantLock();
 
+    private transient EC2CapacityLedger capacityLedger = new EC2CapacityLedger();
+
+    private transient EC2TerminationQueue terminationQueue =
+            new EC2TerminationQueue(this, EC2TerminationQueue.WINDOW_MILLIS);
+
+    private transient EC2SpotFallbackEvaluator spotFallbackEvaluator = new EC2SpotFallbackEvaluator(this);
+
     private final boolean useInstanceProfileForCredentials;
 
     private final String roleArn;
@@ -199,6 +215,8 @@ public class EC2Cloud extends Cloud {
 
     private List<? extends SlaveTemplate> templates;
 
+    private transient volatile EC2TemplateIndex templateIndex = EC2TemplateIndex.EMPTY;
+
     private transient KeyPair usableKeyPair;
 
     /**
@@ -214,6 +232,8 @@ public class EC2Cloud extends Cloud {
 
     private transient volatile Ec2Client connection;
 
+    private transient volatile Ec2AsyncClient asyncConnection;
+
     @DataBoundConstructor
     public EC2Cloud(
             String cloudName,
@@ -423,7 +443,9 @@ public class EC2Cloud extends Cloud {
         }
         List<SlaveTemplate> templatesHolder = new ArrayList<>(templates);
         templatesHolder.add(newTemplate);
+        newTemplate.parent = this;
         templates = templatesHolder;
+        reindexTemplates();
     }
 
     public void updateTemplate(SlaveTemplate newTemplate, String oldTemplateDescription) throws Exception {
@@ -437,7 +459,11 @@ public class EC2Cloud extends Cloud {
         int oldTemplateIndex = templates.indexOf(optionalOldTemplate.get());
         List<SlaveTemplate> templatesHolder = new ArrayList<>(templates);
         templatesHolder.set(oldTemplateIndex, newTemplate);
+        newTemplate.parent = this;
         templates = templatesHolder;
+        reindexTemplates();
+        // The template tags take part in the count, so let the next cap check seed it again
+        capacityLedger.clear();
     }
 
     private void migratePrivateSshKeyToCredential(String privateKey) {
@@ -478,10 +504,14 @@ public class EC2Cloud extends Cloud {
 
     protected Object readResolve() {
         this.slaveCountingLock = new ReentrantLock();
+        this.capacityLedger = new EC2CapacityLedger();
+        this.terminationQueue = new EC2TerminationQueue(this, EC2TerminationQueue.WINDOW_MILLIS);
+        this.spotFallbackEvaluator = new EC2SpotFallbackEvaluator(this);
 
         for (SlaveTemplate t : templates) {
             t.parent = this;
         }
+        reindexTemplates();
 
         if (this.sshKeysCredentialsId == null && this.privateKey != null) {
             String privateKey = this.privateKey.getPrivateKey();
@@ -590,17 +620,33 @@ public class EC2Cloud extends Cloud {
     }
 
     public List<SlaveTemplate> getTemplates() {
-        return Collections.unmodifiableList(templates);
+        return templateIndex.getTemplates();
     }
 
     @CheckForNull
     public SlaveTemplate getTemplate(String template) {
-        for (SlaveTemplate t : templates) {
-            if (t.description.equals(template)) {
-                return t;
-            }
-        }
-        return null;
+        return templateIndex.getByDescription(template);
+    }
+
+    /**
+     * Gets the templates launching the given AMI.
+     */
+    public List<SlaveTemplate> getTemplatesByAmi(String ami) {
+        return templateIndex.getByAmi(ami);
+    }
+
+    /**
+     * Current index of the templates, replaced as a whole whenever they change.
+     */
+    EC2TemplateIndex getTemplateIndex() {
+        return templateIndex;
+    }
+
+    /**
+     * Rebuilds the template index, to be called after the templates or the AMI of one of them changed.
+     */
+    void reindexTemplates() {
+        templateIndex = new EC2TemplateIndex(templates);
     }
 
     /**
@@ -608,37 +654,15 @@ public class EC2Cloud extends Cloud {
      */
     @Deprecated
     public SlaveTemplate getTemplate(Label label) {
-        for (SlaveTemplate t : templates) {
-            if (t.getMode() == Node.Mode.NORMAL) {
-                if (label == null || label.matches(t.getLabelSet())) {
-                    return t;
-                }
-            } else if (t.getMode() == Node.Mode.EXCLUSIVE) {
-                if (label != null && label.matches(t.getLabelSet())) {
-                    return t;
-                }
-            }
-        }
-        return null;
+        List<SlaveTemplate> matchingTemplates = templateIndex.getMatching(label);
+        return matchingTemplates.isEmpty() ? null : matchingTemplates.get(0);
     }
 
     /**
      * Gets list of {@link SlaveTemplate} that matches {@link Label}.
      */
     public Collection<SlaveTemplate> getTemplates(Label label) {
-        List<SlaveTemplate> matchingTemplates = new ArrayList<>();
-        for (SlaveTemplate t : templates) {
-            if (t.getMode() == Node.Mode.NORMAL) {
-                if (label == null || label.matches(t.getLabelSet())) {
-                    matchingTemplates.add(t);
-                }
-            } else if (t.getMode() == Node.Mode.EXCLUSIVE) {
-                if (label != null && label.matches(t.getLabelSet())) {
-                    matchingTemplates.add(t);
-                }
-            }
-        }
-        return matchingTemplates;
+        return new ArrayList<>(templateIndex.getMatching(label));
     }
 
     /**
@@ -798,6 +822,9 @@ public class EC2Cloud extends Cloud {
                 .build();
         Set<SpotInstanceRequest> sirSet = new HashSet<>();
         DescribeSpotInstanceRequestsResponse sirResp = null;
+        // Requests seen here are not asked again for each spot agent below
+        EC2SpotRequestStore store = EC2SpotRequestStore.get(this);
+        boolean deadRequests = false;
 
         do {
             sirResp = connect().describeSpotInstanceRequests(dsir);
@@ -811,6 +838,7 @@ public class EC2Cloud extends Cloud {
             if (sirs != null) {
                 for (SpotInstanceRequest sir : sirs) {
                     sirSet.add(sir);
+                    store.update(sir);
                     if (sir.state() == SpotInstanceState.OPEN || sir.state() == SpotInstanceState.ACTIVE) {
                         if (sir.instanceId() != null && instanceIds.contains(sir.instanceId())) {
                             continue;
@@ -829,34 +857,17 @@ public class EC2Cloud extends Cloud {
                             }
                         }
                     } else {
-                        // Cancelled or otherwise dead
-                        for (Node node : Jenkins.get().getNodes()) {
-                            try {
-                                if (!(node instanceof EC2SpotSlave ec2Slave)) {
-                                    continue;
-                                }
-                                if (ec2Slave.getSpotInstanceRequestId().equals(sir.spotInstanceRequestId())) {
-                                    LOGGER.log(
-                                            Level.INFO,
-                                            "Removing dead request: " + sir.spotInstanceRequestId() + " AMI: "
-                                                    + sir.instanceId() + " state: " + sir.state() + " status: "
-                                                    + sir.status());
-                                    Jenkins.get().removeNode(node);
-                                    break;
-                                }
-                            } catch (IOException e) {
-                                LOGGER.log(
-                                        Level.WARNING,
-                                        "Failed to remove node for dead request: " + sir.spotInstanceRequestId()
-                                                + " AMI: " + sir.instanceId() + " state: " + sir.state()
-                                                + " status: " + sir.status(),
-                                        e);
-                            }
+                        // Cancelled or otherwise dead, its agent is removed in the background
+                        if (EC2NodeIndex.get().getBySpotRequestId(sir.spotInstanceRequestId()) != null) {
+                            deadRequests = true;
                         }
                     }
                 }
             }
         } while (sirResp.nextToken() != null);
+        if (deadRequests) {
+            EC2DeadSpotRequestReconciler.requestRun();
+        }
         n += countJenkinsNodeSpotInstancesWithoutRequests(template, sirSet, instanceIds);
         return n;
     }
@@ -866,10 +877,7 @@ public class EC2Cloud extends Cloud {
     private int countJenkinsNodeSpotInstancesWithoutRequests(
             SlaveTemplate template, Set<SpotInstanceRequest> sirSet, Set<String> instanceIds) throws SdkException {
         int n = 0;
-        for (Node node : Jenkins.get().getNodes()) {
-            if (!(node instanceof EC2SpotSlave ec2Slave)) {
-                continue;
-            }
+        for (EC2SpotSlave ec2Slave : EC2NodeIndex.get().getSpotNodes()) {
             SpotInstanceRequest sir = ec2Slave.getSpotRequest();
 
             if (sir == null) {
@@ -973,11 +981,97 @@ public class EC2Cloud extends Cloud {
     }
 
     /**
-     * Returns the maximum number of possible agents that can be created.
+     * Counts the agents of the template with the given description, or all agents when the description is null. Used
+     * to seed and reconcile the {@link EC2CapacityLedger}.
+     */
+    private int scanCurrentEC2Slaves(@CheckForNull String templateDescription) throws SdkException {
+        if (templateDescription == null) {
+            return countCurrentEC2Slaves((SlaveTemplate) null);
+        }
+        SlaveTemplate template = getTemplate(templateDescription);
+        return template != null ? countCurrentEC2Slaves(template) : 0;
+    }
+
+    /**
+     * Rescans EC2 and corrects the capacity ledger, recording how far it had drifted.
+     */
+    void reconcileCapacity() throws SdkException {
+        List<String> descriptions = new ArrayList<>();
+        for (SlaveTemplate t : getTemplates()) {
+            descriptions.add(t.description);
+        }
+        capacityLedger.reconcile(descriptions, this::scanCurrentEC2Slaves);
+    }
+
+    /**
+     * Records that the given agent no longer counts against the instance caps.
+     */
+    void releaseCapacity(EC2AbstractSlave slave) {
+        capacityLedger.recordReleased(slave.templateDescription, EC2CapacityLedger.keyOf(slave));
+    }
+
+    @Restricted(NoExternalUse.class)
+    EC2CapacityLedger getCapacityLedger() {
+        return capacityLedger;
+    }
+
+    /**
+     * Queue the agents of this cloud are terminated through, see {@link EC2AbstractSlave#terminate()}.
+     */
+    EC2TerminationQueue getTerminationQueue() {
+        return terminationQueue;
+    }
+
+    /**
+     * Evaluator of the spot requests of this cloud whose template falls back to on-demand.
+     */
+    EC2SpotFallbackEvaluator getSpotFallbackEvaluator() {
+        return spotFallbackEvaluator;
+    }
+
+    /**
+     * Difference between the agents counted against the caps and those found in EC2 at the last reconcile, positive
+     * when more agents were counted than found.
+     */
+    public int getCapacityLastTotalDrift() {
+        return capacityLedger.getLastTotalDrift();
+    }
+
+    /**
+     * Largest absolute difference between the agents counted against the caps and those found in EC2 at a reconcile.
+     */
+    public int getCapacityMaxTotalDrift() {
+        return capacityLedger.getMaxTotalDrift();
+    }
+
+    /**
+     * Same as {@link #getCapacityLastTotalDrift()} for each template, by template description.
+     */
+    public Map<String, Integer> getCapacityLastTemplateDrift() {
+        return capacityLedger.getLastTemplateDrift();
+    }
+
+    /**
+     * Number of times the agents counted against the caps were reconciled with EC2.
+     */
+    public long getCapacityReconcileCount() {
+        return capacityLedger.getReconcileCount();
+    }
+
+    /**
+     * Time of the last reconcile with EC2 in milliseconds since the epoch, 0 if none ran yet.
+     */
+    public long getCapacityLastReconcileTime() {
+        return capacityLedger.getLastReconcileTime();
+    }
+
+    /**
+     * Returns the maximum number of possible agents that can be created. Counts come from the capacity ledger, which
+     * only scans EC2 the first time a count is needed.
      */
     private int getPossibleNewSlavesCount(SlaveTemplate template) throws SdkException {
-        int estimatedTotalSlaves = countCurrentEC2Slaves(null);
-        int estimatedAmiSlaves = countCurrentEC2Slaves(template);
+        int estimatedTotalSlaves = capacityLedger.count(null, this::scanCurrentEC2Slaves);
+        int estimatedAmiSlaves = capacityLedger.count(template.description, d -> countCurrentEC2Slaves(template));
 
         int availableTotalSlaves = instanceCap - estimatedTotalSlaves;
         int availableAmiSlaves = template.getInstanceCap() - estimatedAmiSlaves;
@@ -995,15 +1089,15 @@ public class EC2Cloud extends Cloud {
      */
     private List<EC2AbstractSlave> getNewOrExistingAvailableSlave(SlaveTemplate t, int number, boolean forceCreateNew)
             throws IOException {
+        EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions;
+        slaveCountingLock.lock();
         try {
-            slaveCountingLock.lock();
             int possibleSlavesCount = getPossibleNewSlavesCount(t);
             if (possibleSlavesCount <= 0) {
                 LOGGER.log(Level.INFO, "{0}. Cannot provision - no capacity for instances: " + possibleSlavesCount, t);
                 return null;
             }
 
-            EnumSet<SlaveTemplate.ProvisionOptions> provisionOptions;
             if (forceCreateNew) {
                 provisionOptions = EnumSet.of(SlaveTemplate.ProvisionOptions.FORCE_CREATE);
             } else {
@@ -1020,10 +1114,19 @@ public class EC2Cloud extends Cloud {
                 number = possibleSlavesCount;
             }
 
-            return t.provision(number, provisionOptions);
+            // The launch itself runs without the lock, so that templates provision in parallel
+            capacityLedger.reserve(t.description, number);
         } finally {
             slaveCountingLock.unlock();
         }
+
+        List<EC2AbstractSlave> slaves = null;
+        try {
+            slaves = t.provision(number, provisionOptions);
+            return slaves;
+        } finally {
+            capacityLedger.settle(t.description, number, launchedIds(slaves));
+        }
     }
 
     @Override
@@ -1041,47 +1144,38 @@ public class EC2Cloud extends Cloud {
         }
 
         for (SlaveTemplate t : matchingTemplates) {
-            try {
-                LOGGER.log(
-                        Level.INFO,
-                        "{0}. Attempting to provision agent needed by excess workload of " + excessWorkload + " units",
-                        t);
-                int number = Math.max(excessWorkload / t.getNumExecutors(), 1);
-                final List<EC2AbstractSlave> slaves = getNewOrExistingAvailableSlave(t, number, false);
-
-                if (slaves == null || slaves.isEmpty()) {
-                    LOGGER.warning("Can't raise nodes for " + t);
+            LOGGER.log(
+                    Level.INFO,
+                    "{0}. Attempting to provision agent needed by excess workload of " + excessWorkload + " units",
+                    t);
+            int number = Math.max(excessWorkload / t.getNumExecutors(), 1);
+            Integer knownCapacity = getKnownPossibleNewSlavesCount(t);
+            if (knownCapacity != null && knownCapacity < number) {
+                if (knownCapacity <= 0) {
+                    LOGGER.log(Level.INFO, "{0}. Cannot provision - no capacity for instances: " + knownCapacity, t);
                     continue;
                 }
+                number = knownCapacity;
+            }
 
-                for (final EC2AbstractSlave slave : slaves) {
-                    if (slave == null) {
-                        LOGGER.warning("Can't raise node for " + t);
-                        continue;
-                    }
-
-                    plannedNodes.add(createPlannedNode(t, slave));
-                    excessWorkload -= t.getNumExecutors();
+            // Hand out the planned nodes right away, the AWS calls happen on the provisioning executor
+            List<CompletableFuture<Node>> futures = new ArrayList<>(number);
+            for (int i = 0; i < number; i++) {
+                CompletableFuture<Node> future = new CompletableFuture<>();
+                futures.add(future);
+                plannedNodes.add(new PlannedNode(t.getDisplayName(), future, t.getNumExecutors()));
+                excessWorkload -= t.getNumExecutors();
+            }
+            final int requested = number;
+            getProvisioningExecutor().submit(() -> {
+                try (EC2ApiRateLimiter.Scope ignored = EC2ApiRateLimiter.prioritize()) {
+                    provisionPlannedNodes(t, requested, futures);
                 }
+            });
 
-                LOGGER.log(Level.INFO, "{0}. Attempting provision finished, excess workload: " + excessWorkload, t);
-                if (excessWorkload == 0) {
-                    break;
-                }
-            } catch (AwsServiceException e) {
-                LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
-                if ("RequestExpired".equals(e.awsErrorDetails().errorCode())
-                        || "ExpiredToken".equals(e.awsErrorDetails().errorCode())) {
-                    // A RequestExpired or ExpiredToken error can indicate that credentials have expired so reconnect
-                    LOGGER.log(Level.INFO, "Reconnecting to EC2 due to RequestExpired or ExpiredToken error");
-                    try {
-                        reconnectToEc2();
-                    } catch (IOException e2) {
-                        LOGGER.log(Level.WARNING, "Failed to reconnect ec2", e2);
-                    }
-                }
-            } catch (SdkException | IOException e) {
-                LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+            LOGGER.log(Level.INFO, "{0}. Planned " + number + " node(s), excess workload: " + excessWorkload, t);
+            if (excessWorkload <= 0) {
+                break;
             }
         }
         LOGGER.log(Level.INFO, "We have now {0} computers, waiting for {1} more", new Object[] {
@@ -1090,6 +1184,102 @@ public class EC2Cloud extends Cloud {
         return plannedNodes;
     }
 
+    /**
+     * Launches the agents backing the given planned node futures. Runs on the provisioning executor.
+     */
+    private void provisionPlannedNodes(SlaveTemplate t, int number, List<CompletableFuture<Node>> futures) {
+        try {
+            final List<EC2AbstractSlave> slaves = getNewOrExistingAvailableSlave(t, number, false);
+
+            int i = 0;
+            List<EC2AbstractSlave> extra = new ArrayList<>();
+            if (slaves == null || slaves.isEmpty()) {
+                LOGGER.warning("Can't raise nodes for " + t);
+            } else {
+                for (final EC2AbstractSlave slave : slaves) {
+                    if (slave == null) {
+                        LOGGER.warning("Can't raise node for " + t);
+                    } else if (i < futures.size()) {
+                        EC2ReadinessWaiter.get().await(t, slave, futures.get(i++));
+                    } else {
+                        extra.add(slave);
+                    }
+                }
+            }
+            // Fewer agents than planned, e.g. because of the instance cap
+            for (; i < futures.size(); i++) {
+                futures.get(i).complete(null);
+            }
+            if (!extra.isEmpty()) {
+                attachSlavesToJenkins(Jenkins.get(), extra, t);
+            }
+            LOGGER.log(Level.INFO, "{0}. Attempting provision finished", t);
+        } catch (AwsServiceException e) {
+            LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+            if ("RequestExpired".equals(e.awsErrorDetails().errorCode())
+                    || "ExpiredToken".equals(e.awsErrorDetails().errorCode())
+                    || "AuthFailure".equals(e.awsErrorDetails().errorCode())) {
+                // A RequestExpired, ExpiredToken or AuthFailure error can indicate that credentials have expired or
+                // were revoked, the clients pick the refreshed ones up on their next call
+                LOGGER.log(Level.INFO, "Refreshing credentials due to " + e.awsErrorDetails().errorCode() + " error");
+                getCredentialsManager().refreshSoon();
+            }
+            failAll(futures, e);
+        } catch (SdkException | IOException e) {
+            LOGGER.log(Level.WARNING, t + ". Exception during provisioning", e);
+            failAll(futures, e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, t + ". Unexpected exception during provisioning", e);
+            failAll(futures, e);
+        }
+    }
+
+    private static void failAll(List<CompletableFuture<Node>> futures, Throwable e) {
+        for (CompletableFuture<Node> future : futures) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Returns the executor doing the AWS work behind {@link #provision(Label, int)}. It is bounded so that a burst of
+     * provisioning requests cannot exhaust threads or flood the EC2 API, size it with
+     * {@code jenkins.ec2.provisioningThreads}.
+     */
+    static ExecutorService getProvisioningExecutor() {
+        return ProvisioningExecutorHolder.EXECUTOR;
+    }
+
+    private static final class ProvisioningExecutorHolder {
+        private static final int THREADS = Integer.getInteger("jenkins.ec2.provisioningThreads", 10);
+
+        private static final ExecutorService EXECUTOR;
+
+        static {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(
+                    THREADS,
+                    THREADS,
+                    60L,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "EC2Cloud.provisioning"));
+            executor.allowCoreThreadTimeOut(true);
+            EXECUTOR = new ImpersonatingExecutorService(executor, ACL.SYSTEM2);
+        }
+    }
+
+    /**
+     * Returns the capacity left for the template if the capacity ledger already knows it, without calling EC2.
+     */
+    @CheckForNull
+    private Integer getKnownPossibleNewSlavesCount(SlaveTemplate template) {
+        Integer total = capacityLedger.peek(null);
+        Integer forTemplate = capacityLedger.peek(template.description);
+        if (total == null || forTemplate == null) {
+            return null;
+        }
+        return Math.min(instanceCap - total, template.getInstanceCap() - forTemplate);
+    }
+
     private static void attachSlavesToJenkins(Jenkins jenkins, List<EC2AbstractSlave> slaves, SlaveTemplate t)
             throws IOException {
         for (final EC2AbstractSlave slave : slaves) {
@@ -1106,6 +1296,41 @@ public class EC2Cloud extends Cloud {
         }
     }
 
+    /**
+     * Launches on-demand agents in place of spot agents EC2 had no capacity for. The caps are not checked again, as
+     * the spot agents being replaced are still counted until their requests are cancelled.
+     */
+    void provisionOndemandFallback(SlaveTemplate t, int number) throws IOException {
+        List<EC2AbstractSlave> slaves = t.provisionOndemandFallback(number);
+        if (slaves == null || slaves.isEmpty()) {
+            LOGGER.warning("Can't raise nodes for " + t);
+            return;
+        }
+        recordLaunched(t, slaves);
+        attachSlavesToJenkins(Jenkins.get(), slaves, t);
+    }
+
+    /**
+     * Counts the launched agents against the caps. Agents of instances that were already pending or running are left
+     * out, as they were already counted. Woken up stopped instances are counted, as scans leave stopped instances out;
+     * one that was counted and never released since is not counted twice.
+     */
+    private void recordLaunched(SlaveTemplate t, List<EC2AbstractSlave> slaves) {
+        capacityLedger.recordLaunched(t.description, launchedIds(slaves));
+    }
+
+    private static List<String> launchedIds(@CheckForNull List<EC2AbstractSlave> slaves) {
+        List<String> ids = new ArrayList<>();
+        if (slaves != null) {
+            for (EC2AbstractSlave slave : slaves) {
+                if (slave != null && !slave.isExistingInstance()) {
+                    ids.add(EC2CapacityLedger.keyOf(slave));
+                }
+            }
+        }
+        return ids;
+    }
+
     public void provision(SlaveTemplate t, int number) {
 
         Jenkins jenkinsInstance = Jenkins.get();
@@ -1161,86 +1386,9 @@ public class EC2Cloud extends Cloud {
         }
     }
 
-    private PlannedNode createPlannedNode(final SlaveTemplate t, final EC2AbstractSlave slave) {
-        return new PlannedNode(
-                t.getDisplayName(),
-                Computer.threadPoolForRemoting.submit(new Callable<>() {
-                    int retryCount = 0;
-                    private static final int DESCRIBE_LIMIT = 2;
-
-                    @Override
-                    public Node call() throws Exception {
-                        while (true) {
-                            String instanceId = slave.getInstanceId();
-                            if (slave instanceof EC2SpotSlave) {
-                                if (((EC2SpotSlave) slave).isSpotRequestDead()) {
-                                    LOGGER.log(
-                                            Level.WARNING,
-                                            "{0} Spot request died, can't do anything. Terminate provisioning",
-                                            t);
-                                    return null;
-                                }
-
-                                // Spot Instance does not have instance id yet.
-                                if (StringUtils.isEmpty(instanceId)) {
-                                    Thread.sleep(5000);
-                                    continue;
-                                }
-                            }
-
-                            Instance instance = CloudHelper.getInstanceWithRetry(instanceId, slave.getCloud());
-                            if (instance == null) {
-                                LOGGER.log(
-                                        Level.WARNING,
-                                        "{0} Can't find instance with instance id `{1}` in cloud {2}. Terminate provisioning ",
-                                        new Object[] {t, instanceId, slave.cloudName});
-                                return null;
-                            }
-
-                            InstanceStateName state = instance.state().name();
-                            if (state.equals(InstanceStateName.RUNNING)) {
-                                // Spot instance are not reconnected automatically,
-                                // but could be new orphans that has the option enable
-                                Computer c = slave.toComputer();
-                                if (slave.getStopOnTerminate() && (c != null)) {
-                                    c.connect(false);
-                                }
-
-                                long secondsSinceStart = Instant.now().until(instance.launchTime(), ChronoUnit.SECONDS);
-                                LOGGER.log(
-                                        Level.INFO,
-                                        "{0} Node {1} moved to RUNNING state in {2} seconds and is ready to be connected by Jenkins",
-                                        new Object[] {t, slave.getNodeName(), secondsSinceStart});
-                                return slave;
-                            }
-
-                            if (!state.equals(InstanceStateName.PENDING)) {
-
-                                if (retryCount >= DESCRIBE_LIMIT) {
-                                    LOGGER.log(
-                                            Level.WARNING,
-                                            "Instance {0} did not move to running after {1} attempts, terminating provisioning",
-                                            new Object[] {instanceId, retryCount});
-                                    return null;
-                                }
-
-                                LOGGER.log(
-                                        Level.INFO,
-                                        "Attempt {0}: {1}. Node {2} is neither pending, neither running, it''s {3}. Will try again after 5s",
-                                        new Object[] {retryCount, t, slave.getNodeName(), state});
-                                retryCount++;
-                            }
-
-                            Thread.sleep(5000);
-                        }
-                    }
-                }),
-                t.getNumExecutors());
-    }
-
     @Override
     public boolean canProvision(Label label) {
-        return !getTemplates(label).isEmpty();
+        return !templateIndex.getMatching(label).isEmpty();
     }
 
     protected AwsCredentialsProvider createCredentialsProvider() {
@@ -1252,6 +1400,24 @@ public class EC2Cloud extends Cloud {
                 getRegion());
     }
 
+    /**
+     * Identifies the AWS account the clients of this cloud act for, as far as the configuration tells, so that clouds
+     * of the same account share the rate limits EC2 applies per account. An assumed role acts for the account in its
+     * ARN, whatever role it is; otherwise the credentials stand for their account.
+     */
+    @CheckForNull
+    String getAccountKey() {
+        if (StringUtils.isNotBlank(roleArn)) {
+            // arn:partition:iam::account-id:role/name
+            String[] parts = roleArn.split(":", 6);
+            return parts.length == 6 && !parts[4].isEmpty() ? "account:" + parts[4] : "role:" + roleArn;
+        }
+        if (useInstanceProfileForCredentials) {
+            return "instance-profile";
+        }
+        return StringUtils.isBlank(credentialsId) ? null : "credentials:" + credentialsId;
+    }
+
     public static String getSlaveTypeTagValue(String slaveType, String templateDescription) {
         return templateDescription != null ? slaveType + "_" + templateDescription : slaveType;
     }
@@ -1286,11 +1452,11 @@ public class EC2Cloud extends Cloud {
                     .roleSessionName(StringUtils.defaultIfBlank(roleSessionName, "Jenkins"))
                     .build();
 
+            Region parsed = parseRegion(region);
             StsClientBuilder stsClientBuilder = StsClient.builder()
                     .credentialsProvider(provider)
-                    .httpClient(getHttpClient())
+                    .httpClient(EC2HttpTransports.get(parsed, null).getHttpClient())
                     .overrideConfiguration(createClientOverrideConfiguration());
-            Region parsed = parseRegion(region);
             if (parsed != null) {
                 stsClientBuilder.region(parsed);
             }
@@ -1299,6 +1465,8 @@ public class EC2Cloud extends Cloud {
             return StsAssumeRoleCredentialsProvider.builder()
                     .stsClient(stsClient)
                     .refreshRequest(assumeRoleRequest)
+                    // Renew when EC2CredentialsManager asks ahead of expiry, rather than when a call finds them stale
+                    .prefetchTime(EC2CredentialsManager.PREFETCH.plusMinutes(5))
                     .build();
         }
 
@@ -1316,10 +1484,25 @@ public class EC2Cloud extends Cloud {
                 CredentialsMatchers.withId(credentialsId));
     }
 
+    /**
+     * Credentials of the clients of this cloud, refreshed in the background.
+     */
+    EC2CredentialsManager getCredentialsManager() {
+        return EC2CredentialsManager.get(this);
+    }
+
     private Ec2Client reconnectToEc2() throws IOException {
         synchronized (this) {
             connection = AmazonEC2Factory.getInstance()
-                    .connect(createCredentialsProvider(), parseRegion(getRegion()), parseEndpoint(getAltEC2Endpoint()));
+                    .connect(
+                            getCredentialsManager(),
+                            parseRegion(getRegion()),
+                            parseEndpoint(getAltEC2Endpoint()));
+            if (asyncConnection != null) {
+                // Recreated with the new credentials on next use
+                asyncConnection.close();
+                asyncConnection = null;
+            }
             return connection;
         }
     }
@@ -1339,22 +1522,49 @@ public class EC2Cloud extends Cloud {
         }
     }
 
-    public static SdkHttpClient getHttpClient() {
-        Jenkins instance = Jenkins.getInstanceOrNull();
-
-        ProxyConfiguration proxy = instance != null ? instance.proxy : null;
-        ApacheHttpClient.Builder builder = ApacheHttpClient.builder();
-        if (proxy != null && proxy.name != null && !proxy.name.isEmpty()) {
-            software.amazon.awssdk.http.apache.ProxyConfiguration.Builder proxyConfiguration =
-                    software.amazon.awssdk.http.apache.ProxyConfiguration.builder()
-                            .endpoint(URI.create(String.format("http://%s:%s", proxy.name, proxy.port)));
-            if (proxy.getUserName() != null) {
-                proxyConfiguration.username(proxy.getUserName());
-                proxyConfiguration.password(Secret.toString(proxy.getSecretPassword()));
+    /**
+     * Connects to EC2 with a non-blocking client, so that sweeps issuing many calls at once don't need a thread per
+     * call. Opt in with {@code -Djenkins.ec2.asyncClient=true}.
+     *
+     * <p>Orphan cleanup and the bulk instance describes of the dead agent monitor, the readiness waiter and the
+     * termination queue use it. The capacity scans, spot request lookups and provisioning calls always use
+     * {@link #connect()}.
+     *
+     * @return {@code null} if the async client is disabled or not supported by the {@link AmazonEC2Factory}, callers
+     *     then use {@link #connect()}.
+     */
+    @CheckForNull
+    public Ec2AsyncClient connectAsync() throws SdkException {
+        if (!ASYNC_CLIENT) {
+            return null;
+        }
+        Ec2AsyncClient client = asyncConnection;
+        if (client != null) {
+            return client;
+        }
+        synchronized (this) {
+            if (asyncConnection == null) {
+                try {
+                    asyncConnection = AmazonEC2Factory.getInstance()
+                            .connectAsync(
+                                    getCredentialsManager(),
+                                    parseRegion(getRegion()),
+                                    parseEndpoint(getAltEC2Endpoint()));
+                } catch (IOException e) {
+                    throw SdkException.create("Failed to retrieve the endpoint", e);
+                }
             }
-            builder.proxyConfiguration(proxyConfiguration.build());
+            return asyncConnection;
         }
-        return builder.build();
+    }
+
+    /**
+     * Returns the HTTP client shared by AWS clients without a specific region or endpoint.
+     *
+     * @see EC2HttpTransports
+     */
+    public static SdkHttpClient getHttpClient() {
+        return EC2HttpTransports.get(null, null).getHttpClient();
     }
 
     public static ClientOverrideConfiguration createClientOverrideConfiguration() {
@@ -1723,40 +1933,4 @@ public class EC2Cloud extends Cloud {
             printStream.print(sf.format(lr));
         }
     }
-
-    @Extension
-    public static class EC2ConnectionUpdater extends PeriodicWork {
-        @Override
-        public long getRecurrencePeriod() {
-            return TimeUnit.SECONDS.toMillis(60);
-        }
-
-        @Override
-        protected void doRun() throws IOException {
-            Jenkins instance = Jenkins.get();
-            if (instance.clouds != null) {
-                for (Cloud cloud : instance.clouds) {
-                    if (cloud instanceof EC2Cloud ec2_cloud) {
-                        LOGGER.finer(() -> "Checking EC2 Connection on: " + ec2_cloud.getDisplayName());
-                        try {
-                            if (ec2_cloud.connection != null) {
-                                List<Filter> filters = new ArrayList<>();
-                                filters.add(Filter.builder()
-                                        .name("tag-key")
-                                        .values("bogus-EC2ConnectionKeepalive")
-                                        .build());
-                                DescribeInstancesRequest dir = DescribeInstancesRequest.builder()
-                                        .filters(filters)
-                                        .build();
-                                ec2_cloud.connection.describeInstances(dir);
-                            }
-                        } catch (SdkException e) {
-                            LOGGER.finer(() -> "Reconnecting to EC2 on: " + ec2_cloud.getDisplayName());
-                            ec2_cloud.reconnectToEc2();
-                        }
-                    }
-                }
-            }
-        }
-    }
 }
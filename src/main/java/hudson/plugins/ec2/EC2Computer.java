@@ -54,11 +54,6 @@ public class EC2Computer extends SlaveComputer {
 
     private static final Logger LOGGER = Logger.getLogger(EC2Computer.class.getName());
 
-    /**
-     * Cached description of this EC2 instance. Lazily fetched.
-     */
-    private volatile Instance ec2InstanceDescription;
-
     private volatile Boolean isNitro;
 
     public EC2Computer(EC2AbstractSlave slave) {
@@ -97,10 +92,7 @@ public class EC2Computer extends SlaveComputer {
     @CheckForNull
     public SlaveTemplate getSlaveTemplate() {
         EC2AbstractSlave node = getNode();
-        if (node != null) {
-            return node.getCloud().getTemplate(node.templateDescription);
-        }
-        return null;
+        return node == null ? null : node.getTemplate();
     }
 
     /**
@@ -171,34 +163,37 @@ public class EC2Computer extends SlaveComputer {
      * Obtains the instance state description in EC2.
      *
      * <p>
-     * This method returns a cached state, so it's not suitable to check {@link Instance#state()} from the returned
-     * instance (but all the other fields are valid as it won't change.)
-     * <p>
-     * The cache can be flushed using {@link #updateInstanceDescription()}
+     * The description comes from the instance state store shared by all nodes of the cloud, which refreshes it
+     * depending on the instance state. It can be refreshed explicitly using {@link #updateInstanceDescription()}
      */
     public Instance describeInstance() throws SdkException, InterruptedException {
-        if (ec2InstanceDescription == null) {
-            ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
-        }
-        return ec2InstanceDescription;
+        return describeInstance(false);
     }
 
     /**
-     * This will flush any cached description held by {@link #describeInstance()}.
+     * This will refresh the stored description returned by {@link #describeInstance()}.
      */
     public Instance updateInstanceDescription() throws SdkException, InterruptedException {
-        return ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
+        return describeInstance(true);
+    }
+
+    private Instance describeInstance(boolean force) throws SdkException, InterruptedException {
+        EC2Cloud cloud = getCloud();
+        if (cloud == null) {
+            return null;
+        }
+        return EC2InstanceStateStore.get(cloud).getInstance(getInstanceId(), cloud, force);
     }
 
     /**
      * Gets the current state of the instance.
      *
      * <p>
-     * Unlike {@link #describeInstance()}, this method always return the current status by calling EC2.
+     * The state is read from the instance state store, which refreshes instances changing state within seconds.
      */
     public InstanceState getState() throws SdkException, InterruptedException {
-        ec2InstanceDescription = CloudHelper.getInstanceWithRetry(getInstanceId(), getCloud());
-        return InstanceState.find(ec2InstanceDescription.state().name().toString());
+        Instance instance = describeInstance(false);
+        return InstanceState.find(instance.state().name().toString());
     }
 
     /**
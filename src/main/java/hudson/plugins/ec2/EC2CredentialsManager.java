@@ -0,0 +1,307 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.plugins.ec2.util.EC2ApiRateLimiter;
+import hudson.slaves.Cloud;
+import hudson.triggers.SafeTimerTask;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+/**
+ * Credentials of one cloud, refreshed in the background ahead of their expiry.
+ *
+ * <p>Clients of the cloud resolve credentials from here, which returns the current ones without ever calling STS or the
+ * instance metadata service on the caller thread, except for the very first resolution or after refreshing failed for
+ * longer than the credentials lived. Expiring credentials (assumed roles, instance profiles) are refreshed
+ * {@link #PREFETCH} before they expire; credentials without expiry are refreshed every {@link #REFRESH_PERIOD}, which
+ * for static keys also picks up keys rotated in the Jenkins credentials store. Each refresh builds the underlying
+ * provider anew, so that an assumed role is assumed with the current source credentials rather than those it was
+ * first built with. Background refreshes pause once nobody asked for credentials for {@link #IDLE_TIMEOUT} and resume
+ * on the next use. The manager of a cloud is closed once the cloud is no longer part of the Jenkins configuration,
+ * e.g. because it was reconfigured and replaced.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2CredentialsManager
+        implements AwsCredentialsProvider, EC2ApiRateLimiter.AccountScoped, SdkAutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(EC2CredentialsManager.class.getName());
+
+    /**
+     * How long before their expiry credentials are refreshed. Providers are set up to refresh within that window.
+     */
+    static final Duration PREFETCH = Duration.ofMinutes(Long.getLong("jenkins.ec2.credentials.prefetchMinutes", 10));
+
+    /**
+     * How often credentials without expiry are refreshed.
+     */
+    static final Duration REFRESH_PERIOD =
+            Duration.ofMinutes(Long.getLong("jenkins.ec2.credentials.refreshPeriodMinutes", 15));
+
+    /**
+     * How long to wait before trying again after a failed refresh.
+     */
+    static final Duration RETRY_DELAY = Duration.ofSeconds(30);
+
+    static final Duration IDLE_TIMEOUT = Duration.ofHours(1);
+
+    private static final Map<EC2Cloud, EC2CredentialsManager> MANAGERS = new WeakHashMap<>();
+
+    private final String name;
+
+    @CheckForNull
+    private final String accountKey;
+
+    private final Supplier<AwsCredentialsProvider> factory;
+
+    private volatile AwsCredentialsProvider delegate;
+
+    private volatile AwsCredentials current;
+
+    private ScheduledFuture<?> nextRefresh;
+
+    private boolean closed;
+
+    private volatile int failures;
+
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    private volatile boolean idle;
+
+    /**
+     * @param factory creates the underlying provider, again on each refresh.
+     */
+    EC2CredentialsManager(String name, @CheckForNull String accountKey, Supplier<AwsCredentialsProvider> factory) {
+        this.name = name;
+        this.accountKey = accountKey;
+        this.factory = factory;
+        this.delegate = factory.get();
+    }
+
+    /**
+     * Credentials of the clients of the given cloud.
+     */
+    static EC2CredentialsManager get(EC2Cloud cloud) {
+        synchronized (MANAGERS) {
+            return MANAGERS.computeIfAbsent(
+                    cloud, c -> new EC2CredentialsManager(
+                            c.getDisplayName(), c.getAccountKey(), c::createCredentialsProvider));
+        }
+    }
+
+    /**
+     * Closes the managers of the clouds no longer configured, whose clients are not used anymore.
+     */
+    @VisibleForTesting
+    static void closeRemoved(Iterable<? extends Cloud> clouds) {
+        Set<Cloud> configured = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Cloud cloud : clouds) {
+            configured.add(cloud);
+        }
+        List<EC2CredentialsManager> removed = new ArrayList<>();
+        synchronized (MANAGERS) {
+            for (Iterator<Map.Entry<EC2Cloud, EC2CredentialsManager>> it = MANAGERS.entrySet().iterator();
+                    it.hasNext(); ) {
+                Map.Entry<EC2Cloud, EC2CredentialsManager> entry = it.next();
+                if (!configured.contains(entry.getKey())) {
+                    removed.add(entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+        for (EC2CredentialsManager manager : removed) {
+            LOGGER.log(Level.FINE, "Closing credentials of removed cloud {0}", manager.name);
+            manager.close();
+        }
+    }
+
+    @Override
+    @CheckForNull
+    public String getAccountKey() {
+        return accountKey;
+    }
+
+    @Override
+    public AwsCredentials resolveCredentials() {
+        lastUsed = System.currentTimeMillis();
+        if (idle) {
+            // Background refreshes paused while the cloud was unused, static keys may have changed meanwhile
+            idle = false;
+            refreshSoon();
+        }
+        AwsCredentials credentials = current;
+        if (credentials != null && !isExpired(credentials, Instant.now())) {
+            return credentials;
+        }
+        // First use, or the background refresh could not keep up
+        synchronized (this) {
+            credentials = current;
+            if (credentials == null || isExpired(credentials, Instant.now())) {
+                credentials = delegate.resolveCredentials();
+                update(credentials);
+            }
+            return credentials;
+        }
+    }
+
+    /**
+     * Refreshes the credentials in the background as soon as possible, e.g. when EC2 reported them as expired.
+     */
+    void refreshSoon() {
+        schedule(Duration.ZERO);
+    }
+
+    @VisibleForTesting
+    void refresh() {
+        if (System.currentTimeMillis() - lastUsed > IDLE_TIMEOUT.toMillis()) {
+            LOGGER.log(Level.FINE, "Credentials of {0} unused, pausing background refresh", name);
+            idle = true;
+            return;
+        }
+        AwsCredentials credentials;
+        AwsCredentialsProvider provider = null;
+        try {
+            // Built anew, the source credentials may have been rotated in the credentials store since the last time
+            provider = factory.get();
+            credentials = provider.resolveCredentials();
+        } catch (RuntimeException e) {
+            closeProvider(provider);
+            failures++;
+            LOGGER.log(Level.WARNING, "Failed to refresh credentials of " + name + ", will retry", e);
+            schedule(RETRY_DELAY);
+            return;
+        }
+        failures = 0;
+        AwsCredentialsProvider previous;
+        synchronized (this) {
+            if (closed) {
+                closeProvider(provider);
+                return;
+            }
+            previous = delegate;
+            delegate = provider;
+            update(credentials);
+        }
+        if (previous != provider) {
+            closeProvider(previous);
+        }
+    }
+
+    private static void closeProvider(@CheckForNull AwsCredentialsProvider provider) {
+        if (provider instanceof SdkAutoCloseable closeable) {
+            closeable.close();
+        }
+    }
+
+    private void update(AwsCredentials credentials) {
+        current = credentials;
+        Duration delay = nextRefreshDelay(credentials, Instant.now());
+        LOGGER.log(Level.FINE, "Credentials of {0} refreshed, next refresh in {1}", new Object[] {name, delay});
+        schedule(delay);
+    }
+
+    private synchronized void schedule(Duration delay) {
+        if (closed) {
+            return;
+        }
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        nextRefresh = Timer.get()
+                .schedule(
+                        new SafeTimerTask() {
+                            @Override
+                            protected void doRun() {
+                                refresh();
+                            }
+                        },
+                        delay.toMillis(),
+                        TimeUnit.MILLISECONDS);
+    }
+
+    static Duration nextRefreshDelay(AwsCredentials credentials, Instant now) {
+        Optional<Instant> expiration = credentials.expirationTime();
+        if (expiration.isEmpty()) {
+            return REFRESH_PERIOD;
+        }
+        Duration untilPrefetch = Duration.between(now, expiration.get().minus(PREFETCH));
+        if (untilPrefetch.isNegative()) {
+            // Short lived credentials, refresh half way to their expiry
+            Duration untilExpiry = Duration.between(now, expiration.get());
+            return untilExpiry.isNegative() ? Duration.ZERO : untilExpiry.dividedBy(2);
+        }
+        return untilPrefetch;
+    }
+
+    static boolean isExpired(AwsCredentials credentials, Instant now) {
+        return credentials.expirationTime().map(now::isAfter).orElse(false);
+    }
+
+    @CheckForNull
+    AwsCredentials getCurrent() {
+        return current;
+    }
+
+    int getFailures() {
+        return failures;
+    }
+
+    boolean isIdle() {
+        return idle;
+    }
+
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (nextRefresh != null) {
+            nextRefresh.cancel(false);
+        }
+        closeProvider(delegate);
+    }
+
+    @Override
+    public String toString() {
+        return "EC2CredentialsManager{" + name + "}";
+    }
+
+    /**
+     * Closes the credentials of clouds replaced or removed when the Jenkins configuration is saved.
+     */
+    @Extension
+    public static final class CloudRemovalListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof Jenkins jenkins) {
+                closeRemoved(jenkins.clouds);
+            }
+        }
+    }
+}
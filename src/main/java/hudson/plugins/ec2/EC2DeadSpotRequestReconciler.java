@@ -0,0 +1,130 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+
+/**
+ * Removes the spot agents whose spot request is neither open nor active anymore.
+ *
+ * <p>Capacity counting used to remove them itself, one node at a time while holding the counting lock, so that
+ * provisioning waited for node removals. It now only asks for an early run with {@link #requestRun()} when it comes
+ * across such a request. The requests are read from the {@link EC2SpotRequestStore}, so a run costs at most one call
+ * per cloud. The dead agents are removed one at a time, without holding the queue lock across the removals, which
+ * would block the scheduler while each of them is saved.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class EC2DeadSpotRequestReconciler extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(EC2DeadSpotRequestReconciler.class.getName());
+
+    private static final AtomicBoolean RUN_REQUESTED = new AtomicBoolean();
+
+    private static final Object RUN_LOCK = new Object();
+
+    private final Long recurrencePeriod;
+
+    public EC2DeadSpotRequestReconciler() {
+        super("EC2 dead spot request reconciler");
+        recurrencePeriod = Long.getLong("jenkins.ec2.deadSpotRequestCheckPeriod", TimeUnit.MINUTES.toMillis(1));
+        LOGGER.log(Level.FINE, "EC2 dead spot request check period is {0}ms", recurrencePeriod);
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return recurrencePeriod;
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        reconcile();
+    }
+
+    /**
+     * Runs the reconciler in the background without waiting for its next period, unless a run is already pending.
+     */
+    static void requestRun() {
+        if (RUN_REQUESTED.compareAndSet(false, true)) {
+            Computer.threadPoolForRemoting.submit(() -> {
+                RUN_REQUESTED.set(false);
+                reconcile();
+            });
+        }
+    }
+
+    /**
+     * @return the number of agents removed.
+     */
+    @VisibleForTesting
+    static int reconcile() {
+        synchronized (RUN_LOCK) {
+            Map<EC2Cloud, List<EC2SpotSlave>> nodesByCloud = new LinkedHashMap<>();
+            for (EC2SpotSlave node : EC2NodeIndex.get().getSpotNodes()) {
+                EC2Cloud cloud = node.getCloud();
+                if (cloud != null && StringUtils.isNotEmpty(node.getSpotInstanceRequestId())) {
+                    nodesByCloud.computeIfAbsent(cloud, c -> new ArrayList<>()).add(node);
+                }
+            }
+
+            List<EC2SpotSlave> dead = new ArrayList<>();
+            for (Map.Entry<EC2Cloud, List<EC2SpotSlave>> entry : nodesByCloud.entrySet()) {
+                EC2Cloud cloud = entry.getKey();
+                List<String> requestIds = new ArrayList<>();
+                for (EC2SpotSlave node : entry.getValue()) {
+                    requestIds.add(node.getSpotInstanceRequestId());
+                }
+                Map<String, SpotInstanceRequest> requests;
+                try {
+                    requests = EC2SpotRequestStore.get(cloud).getRequests(requestIds, cloud);
+                } catch (SdkException e) {
+                    LOGGER.log(
+                            Level.WARNING, "Failed to fetch the spot requests of cloud " + cloud.getDisplayName(), e);
+                    continue;
+                }
+                for (EC2SpotSlave node : entry.getValue()) {
+                    // Requests EC2 does not return yet are counted as pending by the cloud, they are left alone
+                    SpotInstanceRequest sir = requests.get(node.getSpotInstanceRequestId());
+                    if (sir != null
+                            && sir.state() != SpotInstanceState.OPEN
+                            && sir.state() != SpotInstanceState.ACTIVE) {
+                        LOGGER.log(
+                                Level.INFO,
+                                "Removing dead request: " + sir.spotInstanceRequestId() + " AMI: " + sir.instanceId()
+                                        + " state: " + sir.state() + " status: " + sir.status());
+                        dead.add(node);
+                    }
+                }
+            }
+
+            for (EC2SpotSlave node : dead) {
+                try {
+                    Jenkins.get().removeNode(node);
+                } catch (IOException e) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            "Failed to remove node for dead request: " + node.getSpotInstanceRequestId(),
+                            e);
+                }
+            }
+            return dead.size();
+        }
+    }
+}
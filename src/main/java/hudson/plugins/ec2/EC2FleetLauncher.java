@@ -0,0 +1,375 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Util;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.BlockDeviceMapping;
+import software.amazon.awssdk.services.ec2.model.CreateFleetError;
+import software.amazon.awssdk.services.ec2.model.CreateFleetInstance;
+import software.amazon.awssdk.services.ec2.model.CreateFleetRequest;
+import software.amazon.awssdk.services.ec2.model.CreateFleetResponse;
+import software.amazon.awssdk.services.ec2.model.CreateLaunchTemplateRequest;
+import software.amazon.awssdk.services.ec2.model.CreateLaunchTemplateVersionRequest;
+import software.amazon.awssdk.services.ec2.model.DefaultTargetCapacityType;
+import software.amazon.awssdk.services.ec2.model.DescribeLaunchTemplatesRequest;
+import software.amazon.awssdk.services.ec2.model.EbsBlockDevice;
+import software.amazon.awssdk.services.ec2.model.FleetLaunchTemplateConfigRequest;
+import software.amazon.awssdk.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import software.amazon.awssdk.services.ec2.model.FleetLaunchTemplateSpecificationRequest;
+import software.amazon.awssdk.services.ec2.model.FleetOnDemandAllocationStrategy;
+import software.amazon.awssdk.services.ec2.model.FleetType;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplate;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateBlockDeviceMappingRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateEbsBlockDeviceRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateEnclaveOptionsRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateIamInstanceProfileSpecificationRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateInstanceMetadataOptionsRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateInstanceNetworkInterfaceSpecificationRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplatePlacementRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplateTagSpecificationRequest;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplatesMonitoringRequest;
+import software.amazon.awssdk.services.ec2.model.OnDemandOptionsRequest;
+import software.amazon.awssdk.services.ec2.model.Placement;
+import software.amazon.awssdk.services.ec2.model.RequestLaunchTemplateData;
+import software.amazon.awssdk.services.ec2.model.ResourceType;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.SpotAllocationStrategy;
+import software.amazon.awssdk.services.ec2.model.SpotOptionsRequest;
+import software.amazon.awssdk.services.ec2.model.Tag;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
+import software.amazon.awssdk.services.ec2.model.TargetCapacitySpecificationRequest;
+
+/**
+ * Launches the instances of a {@link SlaveTemplate} with one {@code CreateFleet} call in instant mode, across several
+ * instance types and subnets.
+ *
+ * <p>RunInstances targets one instance type in one subnet, so when that pool has no capacity the instances are only
+ * launched by a later provisioning round, in the next subnet. A fleet is given every pair of instance type and subnet
+ * as overrides, and EC2 launches as many instances as capacity allows across all of them in the same call. Spot
+ * capacity is picked from the pools with the most spare capacity, on-demand capacity from the cheapest pools.
+ *
+ * <p>A fleet needs a launch template. The instance settings the template would otherwise pass to RunInstances are
+ * kept in one launch template per template, named after the cloud and template, with a new version whenever they
+ * change.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2FleetLauncher {
+    private static final Logger LOGGER = Logger.getLogger(EC2FleetLauncher.class.getName());
+
+    static final String LAUNCH_TEMPLATE_NAME_PREFIX = "jenkins-ec2-";
+
+    private static final String LAUNCH_TEMPLATE_EXISTS_ERROR_CODE = "InvalidLaunchTemplateName.AlreadyExistsException";
+
+    /**
+     * Last version created of each launch template, by launch template name.
+     */
+    private static final Map<String, LaunchTemplateVersion> VERSIONS = new ConcurrentHashMap<>();
+
+    private record LaunchTemplateVersion(String launchTemplateId, String version, RequestLaunchTemplateData data) {}
+
+    private EC2FleetLauncher() {}
+
+    /**
+     * Name of the launch template of a template, made of the names of its cloud and template.
+     */
+    static String launchTemplateName(String cloudName, String templateDescription) {
+        return LAUNCH_TEMPLATE_NAME_PREFIX + Util.getDigestOf(cloudName + "/" + templateDescription);
+    }
+
+    /**
+     * Launches up to {@code number} instances as described by the request, with any of the instance types in any of
+     * the subnets.
+     *
+     * @param instanceTypes instance types to choose from, at least one.
+     * @param subnetIds subnets to choose from, empty to let the launch template decide.
+     * @param spot whether to launch spot instances rather than on-demand ones.
+     * @param maxSpotPrice maximum price per hour of spot instances, {@code null} for the on-demand price.
+     * @return the instances launched, as known right after the call.
+     */
+    static List<Instance> launch(
+            Ec2Client ec2,
+            String launchTemplateName,
+            RunInstancesRequest request,
+            Collection<String> instanceTypes,
+            Collection<String> subnetIds,
+            boolean spot,
+            @CheckForNull String maxSpotPrice,
+            int number)
+            throws SdkException {
+        LaunchTemplateVersion launchTemplate =
+                ensureLaunchTemplate(ec2, launchTemplateName, toLaunchTemplateData(request, !subnetIds.isEmpty()));
+
+        List<FleetLaunchTemplateOverridesRequest> overrides = new ArrayList<>();
+        for (String instanceType : instanceTypes) {
+            if (subnetIds.isEmpty()) {
+                overrides.add(override(instanceType, null, spot ? maxSpotPrice : null));
+            }
+            for (String subnetId : subnetIds) {
+                overrides.add(override(instanceType, subnetId, spot ? maxSpotPrice : null));
+            }
+        }
+
+        CreateFleetRequest.Builder fleetRequest = CreateFleetRequest.builder()
+                .type(FleetType.INSTANT)
+                .launchTemplateConfigs(FleetLaunchTemplateConfigRequest.builder()
+                        .launchTemplateSpecification(FleetLaunchTemplateSpecificationRequest.builder()
+                                .launchTemplateId(launchTemplate.launchTemplateId())
+                                .version(launchTemplate.version())
+                                .build())
+                        .overrides(overrides)
+                        .build())
+                .targetCapacitySpecification(TargetCapacitySpecificationRequest.builder()
+                        .totalTargetCapacity(number)
+                        .defaultTargetCapacityType(
+                                spot ? DefaultTargetCapacityType.SPOT : DefaultTargetCapacityType.ON_DEMAND)
+                        .build());
+        if (spot) {
+            fleetRequest.spotOptions(SpotOptionsRequest.builder()
+                    .allocationStrategy(SpotAllocationStrategy.CAPACITY_OPTIMIZED)
+                    .build());
+        } else {
+            fleetRequest.onDemandOptions(OnDemandOptionsRequest.builder()
+                    .allocationStrategy(FleetOnDemandAllocationStrategy.LOWEST_PRICE)
+                    .build());
+        }
+
+        CreateFleetResponse response = ec2.createFleet(fleetRequest.build());
+
+        List<Tag> tags = instanceTags(request);
+        List<Instance> instances = new ArrayList<>();
+        for (CreateFleetInstance fleetInstance : response.instances()) {
+            String subnetId = fleetInstance.launchTemplateAndOverrides() == null
+                            || fleetInstance.launchTemplateAndOverrides().overrides() == null
+                    ? null
+                    : fleetInstance.launchTemplateAndOverrides().overrides().subnetId();
+            for (String instanceId : fleetInstance.instanceIds()) {
+                instances.add(Instance.builder()
+                        .instanceId(instanceId)
+                        .instanceType(fleetInstance.instanceTypeAsString())
+                        .subnetId(subnetId)
+                        .tags(tags)
+                        .state(InstanceState.builder()
+                                .name(InstanceStateName.PENDING)
+                                .build())
+                        .build());
+            }
+        }
+
+        List<String> errors = new ArrayList<>();
+        for (CreateFleetError error : response.errors()) {
+            errors.add(error.errorCode() + ": " + error.errorMessage());
+        }
+        if (instances.isEmpty() && !errors.isEmpty()) {
+            throw SdkException.builder()
+                    .message("No instance could be launched in any pool: " + errors)
+                    .build();
+        }
+        if (!errors.isEmpty()) {
+            // Pools without capacity, the instances were launched in the others
+            LOGGER.log(Level.FINE, "Some pools could not launch instances: {0}", errors);
+        }
+        LOGGER.log(Level.INFO, "Launched {0} of {1} instances with fleet {2}", new Object[] {
+            instances.size(), number, response.fleetId()
+        });
+        return instances;
+    }
+
+    private static FleetLaunchTemplateOverridesRequest override(
+            String instanceType, @CheckForNull String subnetId, @CheckForNull String maxPrice) {
+        FleetLaunchTemplateOverridesRequest.Builder override =
+                FleetLaunchTemplateOverridesRequest.builder().instanceType(instanceType);
+        if (subnetId != null) {
+            override.subnetId(subnetId);
+        }
+        if (StringUtils.isNotEmpty(maxPrice)) {
+            override.maxPrice(maxPrice);
+        }
+        return override.build();
+    }
+
+    /**
+     * Returns the version of the launch template holding the given data, creating the launch template or a new
+     * version of it if needed.
+     */
+    private static LaunchTemplateVersion ensureLaunchTemplate(
+            Ec2Client ec2, String name, RequestLaunchTemplateData data) {
+        LaunchTemplateVersion known = VERSIONS.get(name);
+        if (known != null && known.data().equals(data)) {
+            return known;
+        }
+        LaunchTemplateVersion created;
+        if (known != null) {
+            created = createVersion(ec2, known.launchTemplateId(), data);
+        } else {
+            try {
+                LaunchTemplate launchTemplate = ec2.createLaunchTemplate(CreateLaunchTemplateRequest.builder()
+                                .launchTemplateName(name)
+                                .launchTemplateData(data)
+                                .build())
+                        .launchTemplate();
+                created = new LaunchTemplateVersion(
+                        launchTemplate.launchTemplateId(), String.valueOf(launchTemplate.latestVersionNumber()), data);
+            } catch (AwsServiceException e) {
+                if (e.awsErrorDetails() == null
+                        || !LAUNCH_TEMPLATE_EXISTS_ERROR_CODE.equals(
+                                e.awsErrorDetails().errorCode())) {
+                    throw e;
+                }
+                // Created before a restart, its data may be outdated
+                String launchTemplateId = ec2
+                        .describeLaunchTemplates(DescribeLaunchTemplatesRequest.builder()
+                                .launchTemplateNames(name)
+                                .build())
+                        .launchTemplates()
+                        .get(0)
+                        .launchTemplateId();
+                created = createVersion(ec2, launchTemplateId, data);
+            }
+        }
+        LOGGER.log(Level.FINE, "Using version {0} of launch template {1}", new Object[] {created.version(), name});
+        VERSIONS.put(name, created);
+        return created;
+    }
+
+    private static LaunchTemplateVersion createVersion(
+            Ec2Client ec2, String launchTemplateId, RequestLaunchTemplateData data) {
+        Long version = ec2.createLaunchTemplateVersion(CreateLaunchTemplateVersionRequest.builder()
+                        .launchTemplateId(launchTemplateId)
+                        .launchTemplateData(data)
+                        .build())
+                .launchTemplateVersion()
+                .versionNumber();
+        return new LaunchTemplateVersion(launchTemplateId, String.valueOf(version), data);
+    }
+
+    /**
+     * The instance settings of a RunInstances request, as launch template data. The subnet is left out when the
+     * overrides set it, and so is the availability zone, which follows from the subnet.
+     */
+    @VisibleForTesting
+    static RequestLaunchTemplateData toLaunchTemplateData(RunInstancesRequest request, boolean subnetsOverridden) {
+        RequestLaunchTemplateData.Builder data = RequestLaunchTemplateData.builder()
+                .imageId(request.imageId())
+                .instanceType(request.instanceTypeAsString())
+                .keyName(request.keyName())
+                .userData(request.userData())
+                .ebsOptimized(request.ebsOptimized())
+                .instanceInitiatedShutdownBehavior(request.instanceInitiatedShutdownBehaviorAsString())
+                .creditSpecification(request.creditSpecification());
+        if (request.monitoring() != null) {
+            data.monitoring(LaunchTemplatesMonitoringRequest.builder()
+                    .enabled(request.monitoring().enabled())
+                    .build());
+        }
+        Placement placement = request.placement();
+        if (placement != null) {
+            data.placement(LaunchTemplatePlacementRequest.builder()
+                    .tenancy(placement.tenancyAsString())
+                    .availabilityZone(subnetsOverridden ? null : placement.availabilityZone())
+                    .build());
+        }
+        if (request.hasBlockDeviceMappings()) {
+            List<LaunchTemplateBlockDeviceMappingRequest> mappings = new ArrayList<>();
+            for (BlockDeviceMapping mapping : request.blockDeviceMappings()) {
+                mappings.add(toLaunchTemplateMapping(mapping));
+            }
+            data.blockDeviceMappings(mappings);
+        }
+        if (request.hasNetworkInterfaces()) {
+            List<LaunchTemplateInstanceNetworkInterfaceSpecificationRequest> interfaces = new ArrayList<>();
+            for (InstanceNetworkInterfaceSpecification networkInterface : request.networkInterfaces()) {
+                interfaces.add(LaunchTemplateInstanceNetworkInterfaceSpecificationRequest.builder()
+                        .deviceIndex(networkInterface.deviceIndex())
+                        .associatePublicIpAddress(networkInterface.associatePublicIpAddress())
+                        .groups(networkInterface.hasGroups() ? networkInterface.groups() : null)
+                        .subnetId(subnetsOverridden ? null : networkInterface.subnetId())
+                        .build());
+            }
+            data.networkInterfaces(interfaces);
+        }
+        if (request.hasSecurityGroupIds()) {
+            data.securityGroupIds(request.securityGroupIds());
+        }
+        if (request.hasSecurityGroups()) {
+            data.securityGroups(request.securityGroups());
+        }
+        if (request.iamInstanceProfile() != null) {
+            data.iamInstanceProfile(LaunchTemplateIamInstanceProfileSpecificationRequest.builder()
+                    .arn(request.iamInstanceProfile().arn())
+                    .name(request.iamInstanceProfile().name())
+                    .build());
+        }
+        if (request.hasTagSpecifications()) {
+            List<LaunchTemplateTagSpecificationRequest> tagSpecifications = new ArrayList<>();
+            for (TagSpecification tagSpecification : request.tagSpecifications()) {
+                tagSpecifications.add(LaunchTemplateTagSpecificationRequest.builder()
+                        .resourceType(tagSpecification.resourceType())
+                        .tags(tagSpecification.tags())
+                        .build());
+            }
+            data.tagSpecifications(tagSpecifications);
+        }
+        if (request.metadataOptions() != null) {
+            data.metadataOptions(LaunchTemplateInstanceMetadataOptionsRequest.builder()
+                    .httpEndpoint(request.metadataOptions().httpEndpointAsString())
+                    .httpTokens(request.metadataOptions().httpTokensAsString())
+                    .httpPutResponseHopLimit(request.metadataOptions().httpPutResponseHopLimit())
+                    .build());
+        }
+        if (request.enclaveOptions() != null) {
+            data.enclaveOptions(LaunchTemplateEnclaveOptionsRequest.builder()
+                    .enabled(request.enclaveOptions().enabled())
+                    .build());
+        }
+        return data.build();
+    }
+
+    private static LaunchTemplateBlockDeviceMappingRequest toLaunchTemplateMapping(BlockDeviceMapping mapping) {
+        LaunchTemplateBlockDeviceMappingRequest.Builder builder = LaunchTemplateBlockDeviceMappingRequest.builder()
+                .deviceName(mapping.deviceName())
+                .virtualName(mapping.virtualName())
+                .noDevice(mapping.noDevice());
+        EbsBlockDevice ebs = mapping.ebs();
+        if (ebs != null) {
+            builder.ebs(LaunchTemplateEbsBlockDeviceRequest.builder()
+                    .deleteOnTermination(ebs.deleteOnTermination())
+                    .encrypted(ebs.encrypted())
+                    .iops(ebs.iops())
+                    .kmsKeyId(ebs.kmsKeyId())
+                    .snapshotId(ebs.snapshotId())
+                    .volumeSize(ebs.volumeSize())
+                    .volumeType(ebs.volumeTypeAsString())
+                    .throughput(ebs.throughput())
+                    .build());
+        }
+        return builder.build();
+    }
+
+    private static List<Tag> instanceTags(RunInstancesRequest request) {
+        if (request.hasTagSpecifications()) {
+            for (TagSpecification tagSpecification : request.tagSpecifications()) {
+                if (tagSpecification.resourceType() == ResourceType.INSTANCE) {
+                    return tagSpecification.tags();
+                }
+            }
+        }
+        return List.of();
+    }
+}
@@ -0,0 +1,119 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import net.sf.json.JSONException;
+import net.sf.json.JSONObject;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+/**
+ * A change of an EC2 instance reported by AWS, as delivered by an {@link EC2InstanceEventSource}.
+ */
+public final class EC2InstanceEvent {
+    private static final Logger LOGGER = Logger.getLogger(EC2InstanceEvent.class.getName());
+
+    static final String STATE_CHANGE_DETAIL_TYPE = "EC2 Instance State-change Notification";
+
+    static final String SPOT_INTERRUPTION_DETAIL_TYPE = "EC2 Spot Instance Interruption Warning";
+
+    public enum Type {
+        /**
+         * The instance moved to {@link #getState()}.
+         */
+        STATE_CHANGE,
+        /**
+         * The spot instance will be interrupted in about two minutes.
+         */
+        SPOT_INTERRUPTION
+    }
+
+    private final Type type;
+
+    private final String instanceId;
+
+    @CheckForNull
+    private final InstanceStateName state;
+
+    private final Instant time;
+
+    private EC2InstanceEvent(Type type, String instanceId, @CheckForNull InstanceStateName state, Instant time) {
+        this.type = type;
+        this.instanceId = instanceId;
+        this.state = state;
+        this.time = time;
+    }
+
+    public static EC2InstanceEvent stateChange(@NonNull String instanceId, @NonNull InstanceStateName state) {
+        return new EC2InstanceEvent(Type.STATE_CHANGE, instanceId, state, Instant.now());
+    }
+
+    public static EC2InstanceEvent spotInterruption(@NonNull String instanceId) {
+        return new EC2InstanceEvent(Type.SPOT_INTERRUPTION, instanceId, null, Instant.now());
+    }
+
+    /**
+     * Parses an EventBridge notification, as forwarded by an EventBridge rule to an SQS queue.
+     *
+     * @return {@code null} if the message is not an instance state change or spot interruption warning.
+     */
+    @CheckForNull
+    public static EC2InstanceEvent fromEventBridge(String message) {
+        try {
+            JSONObject json = JSONObject.fromObject(message);
+            JSONObject detail = json.optJSONObject("detail");
+            String detailType = json.optString("detail-type", null);
+            if (detail == null || detailType == null) {
+                return null;
+            }
+            String instanceId = detail.optString("instance-id", null);
+            if (instanceId == null) {
+                return null;
+            }
+            Instant time = json.has("time") ? Instant.parse(json.getString("time")) : Instant.now();
+            switch (detailType) {
+                case STATE_CHANGE_DETAIL_TYPE:
+                    InstanceStateName state = InstanceStateName.fromValue(detail.optString("state", null));
+                    if (state == null || state == InstanceStateName.UNKNOWN_TO_SDK_VERSION) {
+                        return null;
+                    }
+                    return new EC2InstanceEvent(Type.STATE_CHANGE, instanceId, state, time);
+                case SPOT_INTERRUPTION_DETAIL_TYPE:
+                    return new EC2InstanceEvent(Type.SPOT_INTERRUPTION, instanceId, null, time);
+                default:
+                    return null;
+            }
+        } catch (JSONException | DateTimeParseException e) {
+            LOGGER.log(Level.FINE, "Ignoring malformed EC2 event: " + message, e);
+            return null;
+        }
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getInstanceId() {
+        return instanceId;
+    }
+
+    /**
+     * New state of the instance, {@code null} for spot interruption warnings.
+     */
+    @CheckForNull
+    public InstanceStateName getState() {
+        return state;
+    }
+
+    public Instant getTime() {
+        return time;
+    }
+
+    @Override
+    public String toString() {
+        return type + "{" + instanceId + (state != null ? ", " + state : "") + "}";
+    }
+}
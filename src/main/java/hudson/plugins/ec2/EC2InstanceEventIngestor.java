@@ -0,0 +1,99 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import hudson.Extension;
+import hudson.model.Computer;
+import hudson.model.PeriodicWork;
+import hudson.slaves.OfflineCause;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+/**
+ * Applies the events of every {@link EC2InstanceEventSource} as soon as they arrive.
+ *
+ * <p>A state change completes the pending provision of the instance, drops its cached description, and removes its
+ * node right away if the instance is shutting down or terminated. A spot interruption warning takes the node offline so
+ * that no new build starts on it. Polling ({@link EC2SlaveMonitor}, retention checks, {@link EC2ReadinessWaiter}) keeps
+ * running as a fallback, the readiness waiter polling much less often while event sources are installed.
+ */
+@Extension
+public class EC2InstanceEventIngestor extends PeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(EC2InstanceEventIngestor.class.getName());
+
+    private static final long RECURRENCE_PERIOD =
+            Long.getLong("jenkins.ec2.instanceEventPollPeriod", TimeUnit.SECONDS.toMillis(5));
+
+    private static final int MAX_EVENTS = 1000;
+
+    /**
+     * Whether any event source is installed, checked by pollers to slow down.
+     */
+    private static volatile boolean active;
+
+    @Override
+    public long getRecurrencePeriod() {
+        return RECURRENCE_PERIOD;
+    }
+
+    static boolean isActive() {
+        return active;
+    }
+
+    @Override
+    protected void doRun() {
+        List<EC2InstanceEventSource> sources = EC2InstanceEventSource.all();
+        active = !sources.isEmpty();
+        for (EC2InstanceEventSource source : sources) {
+            try {
+                List<EC2InstanceEvent> events;
+                do {
+                    events = source.receive(MAX_EVENTS);
+                    if (!events.isEmpty()) {
+                        handle(events);
+                    }
+                } while (events.size() >= MAX_EVENTS);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to receive EC2 instance events from " + source, e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void handle(Collection<EC2InstanceEvent> events) {
+        EC2NodeIndex index = EC2NodeIndex.get();
+        for (EC2InstanceEvent event : events) {
+            LOGGER.log(Level.FINE, "Received EC2 instance event {0}", event);
+            InstanceStateName state = event.getState();
+            if (event.getType() == EC2InstanceEvent.Type.STATE_CHANGE && state != null) {
+                EC2ReadinessWaiter.get().onInstanceState(event.getInstanceId(), state);
+            }
+
+            EC2AbstractSlave node = index.getByInstanceId(event.getInstanceId());
+            if (node == null) {
+                continue;
+            }
+            EC2Cloud cloud = node.getCloud();
+            if (cloud != null) {
+                EC2InstanceStateStore.get(cloud).invalidate(event.getInstanceId());
+            }
+
+            if (event.getType() == EC2InstanceEvent.Type.SPOT_INTERRUPTION) {
+                Computer computer = node.toComputer();
+                if (computer != null) {
+                    LOGGER.info("EC2 spot instance will be interrupted: " + event.getInstanceId());
+                    computer.setTemporarilyOffline(
+                            true, OfflineCause.create(Messages._EC2SpotSlave_InterruptionWarning()));
+                }
+            } else if (state == InstanceStateName.SHUTTING_DOWN || state == InstanceStateName.TERMINATED) {
+                LOGGER.info("EC2 instance is dead: " + event.getInstanceId());
+                // Only queues the node, EC2TerminationQueue terminates and removes it
+                node.terminate();
+            }
+        }
+    }
+}
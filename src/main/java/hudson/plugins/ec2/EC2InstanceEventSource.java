@@ -0,0 +1,30 @@
+package hudson.plugins.ec2;
+
+import hudson.ExtensionList;
+import hudson.ExtensionPoint;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Delivers EC2 instance events to {@link EC2InstanceEventIngestor}, typically from an SQS queue fed by an EventBridge
+ * rule on {@code EC2 Instance State-change Notification} and {@code EC2 Spot Instance Interruption Warning}.
+ *
+ * <p>No source is installed by default, in which case instance state is only learned by polling. Messages in the
+ * EventBridge format can be turned into events with {@link EC2InstanceEvent#fromEventBridge(String)}.
+ *
+ * @see InMemoryEC2InstanceEventSource
+ */
+public interface EC2InstanceEventSource extends ExtensionPoint {
+
+    static ExtensionList<EC2InstanceEventSource> all() {
+        return ExtensionList.lookup(EC2InstanceEventSource.class);
+    }
+
+    /**
+     * Returns the events received since the last call, without blocking for long. Returned events are considered
+     * consumed.
+     *
+     * @param maxEvents the most events to return, further ones are left for the next call.
+     */
+    List<EC2InstanceEvent> receive(int maxEvents) throws IOException;
+}
@@ -0,0 +1,163 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+/**
+ * Last known description of the instances of one cloud, shared by every node and computer of that cloud.
+ *
+ * <p>How long a description is trusted depends on the instance state: instances that are changing state (pending,
+ * stopping, shutting down) are refreshed quickly, running instances more slowly the longer they have been up, and
+ * stopped or terminated ones rarely. Callers that change the state of an instance themselves (stop, start, terminate)
+ * invalidate its entry so the next read goes to EC2.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2InstanceStateStore {
+    private static final Logger LOGGER = Logger.getLogger(EC2InstanceStateStore.class.getName());
+
+    /**
+     * TTL of instances changing state.
+     */
+    static final long TRANSITIONAL_TTL =
+            Long.getLong("jenkins.ec2.instanceStateTtl.transitional", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * Shortest TTL of running instances, used right after launch.
+     */
+    static final long RUNNING_MIN_TTL = EC2AbstractSlave.MIN_FETCH_TIME;
+
+    /**
+     * Longest TTL of running instances, reached once they have been up for a while.
+     */
+    static final long RUNNING_MAX_TTL =
+            Long.getLong("jenkins.ec2.instanceStateTtl.running", TimeUnit.MINUTES.toMillis(2));
+
+    /**
+     * TTL of stopped and terminated instances, and of instances EC2 did not return.
+     */
+    static final long SETTLED_TTL = Long.getLong("jenkins.ec2.instanceStateTtl.settled", TimeUnit.MINUTES.toMillis(5));
+
+    private static final Map<EC2Cloud, EC2InstanceStateStore> STORES = new WeakHashMap<>();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long lastPrune;
+
+    private record Entry(@CheckForNull Instance instance, long fetchedAt) {}
+
+    static EC2InstanceStateStore get(EC2Cloud cloud) {
+        synchronized (STORES) {
+            return STORES.computeIfAbsent(cloud, c -> new EC2InstanceStateStore());
+        }
+    }
+
+    /**
+     * Returns the description of the instance, from the store if it is still fresh for its state, from EC2 otherwise.
+     *
+     * @param force always go to EC2, and store the result.
+     */
+    @CheckForNull
+    Instance getInstance(String instanceId, EC2Cloud cloud, boolean force) throws SdkException, InterruptedException {
+        if (StringUtils.isEmpty(instanceId) || cloud == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(instanceId);
+        if (!force && entry != null && now - entry.fetchedAt() < ttl(entry.instance(), now)) {
+            hits.incrementAndGet();
+            return entry.instance();
+        }
+        misses.incrementAndGet();
+        Instance instance = CloudHelper.getInstanceWithRetry(instanceId, cloud);
+        entries.put(instanceId, new Entry(instance, now));
+        prune(now);
+        return instance;
+    }
+
+    /**
+     * Returns the stored description without going to EC2, regardless of its age.
+     */
+    @CheckForNull
+    Instance peek(String instanceId) {
+        Entry entry = instanceId == null ? null : entries.get(instanceId);
+        return entry == null ? null : entry.instance();
+    }
+
+    /**
+     * Stores a description obtained elsewhere, e.g. from a batched call.
+     */
+    void update(Instance instance) {
+        entries.put(instance.instanceId(), new Entry(instance, System.currentTimeMillis()));
+    }
+
+    void invalidate(String instanceId) {
+        if (instanceId != null) {
+            entries.remove(instanceId);
+        }
+    }
+
+    void invalidate(Collection<String> instanceIds) {
+        for (String instanceId : instanceIds) {
+            invalidate(instanceId);
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    static long ttl(@CheckForNull Instance instance, long now) {
+        if (instance == null || instance.state() == null) {
+            return SETTLED_TTL;
+        }
+        InstanceStateName state = instance.state().name();
+        if (state == InstanceStateName.RUNNING) {
+            Instant launchTime = instance.launchTime();
+            if (launchTime == null) {
+                return RUNNING_MIN_TTL;
+            }
+            // A tenth of the uptime, so fresh instances are watched closely and long running ones cost little
+            long uptime = now - launchTime.toEpochMilli();
+            return Math.max(RUNNING_MIN_TTL, Math.min(RUNNING_MAX_TTL, uptime / 10));
+        }
+        if (state == InstanceStateName.STOPPED || state == InstanceStateName.TERMINATED) {
+            return SETTLED_TTL;
+        }
+        return TRANSITIONAL_TTL;
+    }
+
+    /**
+     * Drops entries nobody asked about for a while, e.g. of nodes that were removed.
+     */
+    private void prune(long now) {
+        if (now - lastPrune < SETTLED_TTL) {
+            return;
+        }
+        lastPrune = now;
+        int before = entries.size();
+        entries.values().removeIf(e -> now - e.fetchedAt() > 2 * SETTLED_TTL);
+        LOGGER.log(Level.FINE, "Pruned {0} instance descriptions", before - entries.size());
+    }
+}
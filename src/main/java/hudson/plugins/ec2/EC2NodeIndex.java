@@ -0,0 +1,236 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import hudson.Extension;
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.model.NodeListener;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Index of the EC2 agents of Jenkins by instance ID, spot request ID, cloud and template, so that looking an agent up
+ * does not mean going through every node.
+ *
+ * <p>The index is built from {@link Jenkins#getNodes()} on first use and kept current by {@link NodeListener} events.
+ * Spot agents are indexed by instance ID once the instance fulfilling their request is known, see
+ * {@link #onInstanceIdKnown(EC2AbstractSlave)}. Nodes replaced without events (e.g. on configuration reload) are picked
+ * up by {@link #invalidate()}, which {@link EC2SlaveMonitor} calls on each run.
+ */
+@Restricted(NoExternalUse.class)
+public final class EC2NodeIndex {
+    private static final Logger LOGGER = Logger.getLogger(EC2NodeIndex.class.getName());
+
+    private static final Map<Jenkins, EC2NodeIndex> INDEXES = new WeakHashMap<>();
+
+    private final Jenkins jenkins;
+
+    private boolean stale = true;
+
+    /**
+     * Instance ID of each indexed agent, as the agent may not know it anymore when it is removed.
+     */
+    private final Map<EC2AbstractSlave, String> indexedInstanceIds = new HashMap<>();
+
+    private final Map<String, EC2AbstractSlave> byInstanceId = new HashMap<>();
+
+    private final Map<String, EC2SpotSlave> bySpotRequestId = new HashMap<>();
+
+    private final Map<String, Set<EC2AbstractSlave>> byCloud = new HashMap<>();
+
+    private final Map<String, Set<EC2AbstractSlave>> byTemplate = new HashMap<>();
+
+    private EC2NodeIndex(Jenkins jenkins) {
+        this.jenkins = jenkins;
+    }
+
+    public static EC2NodeIndex get() {
+        Jenkins jenkins = Jenkins.get();
+        synchronized (INDEXES) {
+            return INDEXES.computeIfAbsent(jenkins, EC2NodeIndex::new);
+        }
+    }
+
+    /**
+     * Agent of the instance, {@code null} if no agent is known to run on it.
+     */
+    @CheckForNull
+    public synchronized EC2AbstractSlave getByInstanceId(@CheckForNull String instanceId) {
+        ensureBuilt();
+        return instanceId == null ? null : byInstanceId.get(instanceId);
+    }
+
+    /**
+     * Agent of the spot request, {@code null} if no agent is known for it.
+     */
+    @CheckForNull
+    public synchronized EC2SpotSlave getBySpotRequestId(@CheckForNull String spotInstanceRequestId) {
+        ensureBuilt();
+        return spotInstanceRequestId == null ? null : bySpotRequestId.get(spotInstanceRequestId);
+    }
+
+    /**
+     * All EC2 agents.
+     */
+    public synchronized List<EC2AbstractSlave> getNodes() {
+        ensureBuilt();
+        return new ArrayList<>(indexedInstanceIds.keySet());
+    }
+
+    /**
+     * Spot agents, whether their request is fulfilled or not.
+     */
+    public synchronized List<EC2SpotSlave> getSpotNodes() {
+        ensureBuilt();
+        List<EC2SpotSlave> nodes = new ArrayList<>();
+        for (EC2AbstractSlave node : indexedInstanceIds.keySet()) {
+            if (node instanceof EC2SpotSlave spotSlave) {
+                nodes.add(spotSlave);
+            }
+        }
+        return nodes;
+    }
+
+    /**
+     * Agents of the cloud.
+     */
+    public synchronized List<EC2AbstractSlave> getNodes(@NonNull EC2Cloud cloud) {
+        ensureBuilt();
+        return copyOf(byCloud.get(cloud.name));
+    }
+
+    /**
+     * Agents launched from templates with the given description, in any cloud.
+     */
+    public synchronized List<EC2AbstractSlave> getNodes(@CheckForNull String templateDescription) {
+        ensureBuilt();
+        return copyOf(byTemplate.get(templateDescription));
+    }
+
+    /**
+     * Drops the index, to be rebuilt from {@link Jenkins#getNodes()} on next use.
+     */
+    public synchronized void invalidate() {
+        stale = true;
+    }
+
+    /**
+     * Indexes the agent under its instance ID, once a spot request has been fulfilled.
+     */
+    synchronized void onInstanceIdKnown(EC2AbstractSlave node) {
+        if (!stale && indexedInstanceIds.containsKey(node)) {
+            remove(node);
+            add(node);
+        }
+    }
+
+    private static List<EC2AbstractSlave> copyOf(@CheckForNull Set<EC2AbstractSlave> nodes) {
+        return nodes == null ? Collections.emptyList() : new ArrayList<>(nodes);
+    }
+
+    private void ensureBuilt() {
+        if (!stale) {
+            return;
+        }
+        indexedInstanceIds.clear();
+        byInstanceId.clear();
+        bySpotRequestId.clear();
+        byCloud.clear();
+        byTemplate.clear();
+        for (Node node : jenkins.getNodes()) {
+            if (node instanceof EC2AbstractSlave ec2Slave) {
+                add(ec2Slave);
+            }
+        }
+        stale = false;
+        LOGGER.log(Level.FINE, "Indexed {0} EC2 agents", indexedInstanceIds.size());
+    }
+
+    private void add(EC2AbstractSlave node) {
+        String instanceId = EC2AbstractSlave.knownInstanceIdOf(node);
+        indexedInstanceIds.put(node, instanceId);
+        if (instanceId != null) {
+            byInstanceId.put(instanceId, node);
+        }
+        if (node instanceof EC2SpotSlave spotSlave && spotSlave.getSpotInstanceRequestId() != null) {
+            bySpotRequestId.put(spotSlave.getSpotInstanceRequestId(), spotSlave);
+        }
+        byCloud.computeIfAbsent(node.cloudName, k -> new LinkedHashSet<>()).add(node);
+        byTemplate.computeIfAbsent(node.templateDescription, k -> new LinkedHashSet<>()).add(node);
+    }
+
+    private void remove(EC2AbstractSlave node) {
+        if (!indexedInstanceIds.containsKey(node)) {
+            return;
+        }
+        String instanceId = indexedInstanceIds.remove(node);
+        if (instanceId != null) {
+            byInstanceId.remove(instanceId, node);
+        }
+        if (node instanceof EC2SpotSlave spotSlave && spotSlave.getSpotInstanceRequestId() != null) {
+            bySpotRequestId.remove(spotSlave.getSpotInstanceRequestId(), spotSlave);
+        }
+        removeFrom(byCloud, node.cloudName, node);
+        removeFrom(byTemplate, node.templateDescription, node);
+    }
+
+    private static void removeFrom(Map<String, Set<EC2AbstractSlave>> map, String key, EC2AbstractSlave node) {
+        Set<EC2AbstractSlave> nodes = map.get(key);
+        if (nodes != null && nodes.remove(node) && nodes.isEmpty()) {
+            map.remove(key);
+        }
+    }
+
+    private synchronized void onCreated(Node node) {
+        if (!stale && node instanceof EC2AbstractSlave ec2Slave) {
+            add(ec2Slave);
+        }
+    }
+
+    private synchronized void onUpdated(Node oldOne, Node newOne) {
+        if (stale) {
+            return;
+        }
+        if (oldOne instanceof EC2AbstractSlave oldSlave) {
+            remove(oldSlave);
+        }
+        if (newOne instanceof EC2AbstractSlave newSlave) {
+            add(newSlave);
+        }
+    }
+
+    private synchronized void onDeleted(Node node) {
+        if (!stale && node instanceof EC2AbstractSlave ec2Slave) {
+            remove(ec2Slave);
+        }
+    }
+
+    @Extension
+    public static final class Listener extends NodeListener {
+        @Override
+        protected void onCreated(@NonNull Node node) {
+            get().onCreated(node);
+        }
+
+        @Override
+        protected void onUpdated(@NonNull Node oldOne, @NonNull Node newOne) {
+            get().onUpdated(oldOne, newOne);
+        }
+
+        @Override
+        protected void onDeleted(@NonNull Node node) {
+            get().onDeleted(node);
+        }
+    }
+}
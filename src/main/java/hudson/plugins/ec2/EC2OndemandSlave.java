@@ -1,7 +1,6 @@
 package hudson.plugins.ec2;
 
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.model.Node;
 import hudson.plugins.ec2.ssh.EC2MacLauncher;
@@ -18,9 +17,6 @@ import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.StaplerRequest2;
-import software.amazon.awssdk.core.exception.SdkException;
-import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
 
 /**
  * Agent running on EC2.
@@ -504,38 +500,7 @@ public class EC2OndemandSlave extends EC2AbstractSlave {
      */
     @Override
     public void terminate() {
-        if (terminateScheduled.getCount() == 0) {
-            synchronized (terminateScheduled) {
-                if (terminateScheduled.getCount() == 0) {
-                    Computer.threadPoolForRemoting.submit(() -> {
-                        try {
-                            if (!isAlive(true)) {
-                                /*
-                                 * The node has been killed externally, so we've nothing to do here
-                                 */
-                                LOGGER.info("EC2 instance already terminated: " + getInstanceId());
-                            } else {
-                                Ec2Client ec2 = getCloud().connect();
-                                TerminateInstancesRequest request = TerminateInstancesRequest.builder()
-                                        .instanceIds(Collections.singletonList(getInstanceId()))
-                                        .build();
-                                ec2.terminateInstances(request);
-                                LOGGER.info("Terminated EC2 instance (terminated): " + getInstanceId());
-                            }
-                            Jenkins.get().removeNode(this);
-                            LOGGER.info("Removed EC2 instance from jenkins controller: " + getInstanceId());
-                        } catch (SdkException | IOException e) {
-                            LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance: " + getInstanceId(), e);
-                        } finally {
-                            synchronized (terminateScheduled) {
-                                terminateScheduled.countDown();
-                            }
-                        }
-                    });
-                    terminateScheduled.reset();
-                }
-            }
-        }
+        queueTermination();
     }
 
     @Override
@@ -1,9 +1,26 @@
 package hudson.plugins.ec2;
 
+import java.util.concurrent.TimeUnit;
 import software.amazon.awssdk.core.exception.SdkException;
 
 public interface EC2Readiness {
     boolean isReady();
 
     String getEc2ReadinessStatus() throws SdkException;
+
+    /**
+     * Waits for the node to be ready, for at most the given time.
+     *
+     * @return whether the node is ready.
+     */
+    default boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!isReady()) {
+            if (System.nanoTime() >= deadline) {
+                return false;
+            }
+            Thread.sleep(1000);
+        }
+        return true;
+    }
 }
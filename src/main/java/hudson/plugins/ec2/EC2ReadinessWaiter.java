@@ -0,0 +1,391 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.plugins.ec2.util.EC2ApiRateLimiter;
+import hudson.triggers.SafeTimerTask;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Waits for freshly provisioned agents to have a running instance, for all clouds at once.
+ *
+ * <p>Instead of one thread polling each instance, pending agents are registered here and checked by a single periodic
+ * task, which describes every due instance (and, for spot agents, every unfulfilled spot request) of a cloud in batched
+ * calls. Each agent is polled more and more slowly while it stays pending, and its future is completed as soon as its
+ * instance is seen running, or with {@code null} when its instance or spot request dies. The task only runs while
+ * agents are waiting.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2ReadinessWaiter {
+    private static final Logger LOGGER = Logger.getLogger(EC2ReadinessWaiter.class.getName());
+
+    static final long TICK_MILLIS = Long.getLong("jenkins.ec2.readinessTickMillis", 1000);
+
+    static final long MIN_POLL_MILLIS = Long.getLong("jenkins.ec2.readinessMinPollMillis", 2000);
+
+    static final long MAX_POLL_MILLIS =
+            Long.getLong("jenkins.ec2.readinessMaxPollMillis", TimeUnit.SECONDS.toMillis(15));
+
+    /**
+     * Longest interval between polls while instance events are received, polling is then only a fallback.
+     */
+    static final long EVENT_FALLBACK_POLL_MILLIS =
+            Long.getLong("jenkins.ec2.readinessEventFallbackPollMillis", TimeUnit.SECONDS.toMillis(60));
+
+    /**
+     * How many times an instance may be seen neither pending nor running before giving up on it.
+     */
+    private static final int DESCRIBE_LIMIT = 2;
+
+    /**
+     * How many times an instance may be missing from EC2 answers, which happens for a few seconds after RunInstances.
+     */
+    private static final int NOT_FOUND_LIMIT = 5;
+
+    private static final int BATCH_SIZE = 1000;
+
+    private static final EC2ReadinessWaiter INSTANCE = new EC2ReadinessWaiter(true);
+
+    private final Queue<Waiting> waiting = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether ticks run on their own, rather than being called by tests.
+     */
+    private final boolean background;
+
+    /**
+     * Whether a tick is scheduled or running.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    static final class Waiting {
+        final SlaveTemplate template;
+        final EC2AbstractSlave slave;
+        final CompletableFuture<Node> future;
+        int retryCount;
+        int notFoundCount;
+        boolean capacityErrorRecorded;
+        long interval = MIN_POLL_MILLIS;
+        long nextPoll;
+
+        Waiting(SlaveTemplate template, EC2AbstractSlave slave, CompletableFuture<Node> future) {
+            this.template = template;
+            this.slave = slave;
+            this.future = future;
+        }
+    }
+
+    @VisibleForTesting
+    EC2ReadinessWaiter() {
+        this(false);
+    }
+
+    @VisibleForTesting
+    EC2ReadinessWaiter(boolean background) {
+        this.background = background;
+    }
+
+    static EC2ReadinessWaiter get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Schedules the next tick, unless one is already scheduled or running.
+     */
+    private void schedule() {
+        if (background && scheduled.compareAndSet(false, true)) {
+            Timer.get()
+                    .schedule(
+                            new SafeTimerTask() {
+                                @Override
+                                protected void doRun() {
+                                    // AWS calls block, keep them off the shared timer thread
+                                    Computer.threadPoolForRemoting.submit(EC2ReadinessWaiter.this::tickInBackground);
+                                }
+                            },
+                            TICK_MILLIS,
+                            TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void tickInBackground() {
+        // Agents are waited for on behalf of provisioning
+        try (EC2ApiRateLimiter.Scope ignored = EC2ApiRateLimiter.prioritize()) {
+            tick();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to check pending instances", e);
+        } finally {
+            scheduled.set(false);
+            // Ticks stop once no agent is waiting, until await schedules them again
+            if (!waiting.isEmpty()) {
+                schedule();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    boolean isScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * Registers a provisioned agent. The future is completed with the agent once its instance runs, with {@code null}
+     * if the instance or spot request died.
+     */
+    void await(SlaveTemplate template, EC2AbstractSlave slave, CompletableFuture<Node> future) {
+        waiting.add(new Waiting(template, slave, future));
+        schedule();
+    }
+
+    /**
+     * Applies a state change learned from an {@link EC2InstanceEvent}, without waiting for the next poll.
+     */
+    void onInstanceState(String instanceId, InstanceStateName state) {
+        long now = System.currentTimeMillis();
+        for (Waiting w : waiting) {
+            if (w.future.isDone() || !instanceId.equals(w.slave.instanceId)) {
+                continue;
+            }
+            if (state == InstanceStateName.RUNNING) {
+                check(
+                        w,
+                        Instance.builder()
+                                .instanceId(instanceId)
+                                .state(InstanceState.builder().name(state).build())
+                                .build(),
+                        now);
+            } else if (state == InstanceStateName.SHUTTING_DOWN || state == InstanceStateName.TERMINATED) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "{0} Instance {1} is {2}. Terminate provisioning",
+                        new Object[] {w.template, instanceId, state});
+                done(w, null);
+            }
+        }
+    }
+
+    int getPendingCount() {
+        return waiting.size();
+    }
+
+    /**
+     * Polls every agent that is due, grouped per cloud.
+     */
+    @VisibleForTesting
+    void tick() {
+        long now = System.currentTimeMillis();
+        Map<EC2Cloud, List<Waiting>> due = new LinkedHashMap<>();
+        for (Waiting w : waiting) {
+            if (w.future.isDone()) {
+                // Cancelled by the NodeProvisioner
+                waiting.remove(w);
+                continue;
+            }
+            if (w.nextPoll > now) {
+                continue;
+            }
+            EC2Cloud cloud = w.slave.getCloud();
+            if (cloud == null) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "{0} Can't find cloud {1} of node {2}. Terminate provisioning",
+                        new Object[] {w.template, w.slave.cloudName, w.slave.getNodeName()});
+                done(w, null);
+                continue;
+            }
+            due.computeIfAbsent(cloud, c -> new ArrayList<>()).add(w);
+        }
+
+        for (Map.Entry<EC2Cloud, List<Waiting>> e : due.entrySet()) {
+            try {
+                poll(e.getKey(), e.getValue(), now);
+            } catch (RuntimeException ex) {
+                LOGGER.log(Level.WARNING, "Failed to check pending instances of cloud " + e.getKey(), ex);
+                for (Waiting w : e.getValue()) {
+                    if (!w.future.isDone()) {
+                        reschedule(w, now);
+                    }
+                }
+            }
+        }
+    }
+
+    private void poll(EC2Cloud cloud, List<Waiting> due, long now) {
+        // Spot agents first need their request to be fulfilled
+        List<Waiting> withInstance = new ArrayList<>();
+        Map<String, Waiting> unfulfilled = new HashMap<>();
+        for (Waiting w : due) {
+            if (w.slave instanceof EC2SpotSlave spotSlave && StringUtils.isEmpty(w.slave.instanceId)) {
+                unfulfilled.put(spotSlave.getSpotInstanceRequestId(), w);
+            } else {
+                withInstance.add(w);
+            }
+        }
+        if (!unfulfilled.isEmpty()) {
+            withInstance.addAll(pollSpotRequests(cloud, unfulfilled, now));
+        }
+        if (!withInstance.isEmpty()) {
+            pollInstances(cloud, withInstance, now);
+        }
+    }
+
+    /**
+     * Checks unfulfilled spot requests, and returns the agents whose request now has an instance.
+     *
+     * <p>Their outcome is recorded for the subnet, so that a subnet on probe gets one, whether or not the template falls
+     * back to on-demand. {@link EC2SpotFallbackEvaluator} records the capacity errors of the templates that do, as it
+     * cancels their requests before they are polled here.
+     */
+    private List<Waiting> pollSpotRequests(EC2Cloud cloud, Map<String, Waiting> unfulfilled, long now) {
+        List<Waiting> fulfilled = new ArrayList<>();
+        for (List<String> ids : Lists.partition(new ArrayList<>(unfulfilled.keySet()), BATCH_SIZE)) {
+            Map<String, SpotInstanceRequest> found = EC2SpotRequestStore.get(cloud).refresh(ids, cloud);
+
+            for (String id : ids) {
+                Waiting w = unfulfilled.get(id);
+                SpotInstanceRequest sir = found.get(id);
+                if (sir == null || EC2SpotRequestStore.isDead(sir)) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            "{0} Spot request died, can't do anything. Terminate provisioning",
+                            w.template);
+                    done(w, null);
+                } else if (StringUtils.isNotEmpty(sir.instanceId())) {
+                    EC2SubnetScorer.recordSuccess(
+                            EC2SubnetScorer.subnetOf(sir), EC2SubnetScorer.instanceTypeOf(sir), -1);
+                    ((EC2SpotSlave) w.slave).onSpotRequestFulfilled(sir.instanceId());
+                    fulfilled.add(w);
+                } else {
+                    // Once per request, it keeps its status code while EC2 retries
+                    if (!w.capacityErrorRecorded
+                            && !fallsBackToOndemand(w.template)
+                            && EC2SubnetScorer.isSpotCapacityError(sir)) {
+                        EC2SubnetScorer.recordCapacityError(
+                                EC2SubnetScorer.subnetOf(sir), EC2SubnetScorer.instanceTypeOf(sir));
+                        w.capacityErrorRecorded = true;
+                    }
+                    // Spot Instance does not have instance id yet.
+                    reschedule(w, now);
+                }
+            }
+        }
+        return fulfilled;
+    }
+
+    private static boolean fallsBackToOndemand(SlaveTemplate template) {
+        return template.spotConfig != null && template.spotConfig.getFallbackToOndemand();
+    }
+
+    private void pollInstances(EC2Cloud cloud, List<Waiting> due, long now) {
+        Map<String, List<Waiting>> byInstance = new LinkedHashMap<>();
+        for (Waiting w : due) {
+            byInstance.computeIfAbsent(w.slave.getInstanceId(), id -> new ArrayList<>()).add(w);
+        }
+
+        // Instances are not visible for a few seconds after RunInstances, those are left out rather than failing the
+        // whole call, and count as not found
+        Map<String, Instance> found = CloudHelper.describeInstances(byInstance.keySet(), cloud);
+        for (Map.Entry<String, List<Waiting>> entry : byInstance.entrySet()) {
+            Instance instance = found.get(entry.getKey());
+            for (Waiting w : entry.getValue()) {
+                check(w, instance, now);
+            }
+        }
+    }
+
+    private void check(Waiting w, Instance instance, long now) {
+        EC2AbstractSlave slave = w.slave;
+        if (instance == null) {
+            if (++w.notFoundCount > NOT_FOUND_LIMIT) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "{0} Can't find instance with instance id `{1}` in cloud {2}. Terminate provisioning ",
+                        new Object[] {w.template, slave.getInstanceId(), slave.cloudName});
+                done(w, null);
+            } else {
+                reschedule(w, now);
+            }
+            return;
+        }
+
+        InstanceStateName state = instance.state().name();
+        if (state.equals(InstanceStateName.RUNNING)) {
+            // Spot instance are not reconnected automatically,
+            // but could be new orphans that has the option enable
+            Computer c = slave.toComputer();
+            if (slave.getStopOnTerminate() && (c != null)) {
+                c.connect(false);
+            }
+
+            long secondsSinceStart = instance.launchTime() == null
+                    ? 0
+                    : instance.launchTime().until(Instant.now(), ChronoUnit.SECONDS);
+            LOGGER.log(
+                    Level.INFO,
+                    "{0} Node {1} moved to RUNNING state in {2} seconds and is ready to be connected by Jenkins",
+                    new Object[] {w.template, slave.getNodeName(), secondsSinceStart});
+            done(w, slave);
+            return;
+        }
+
+        if (!state.equals(InstanceStateName.PENDING)) {
+            if (w.retryCount >= DESCRIBE_LIMIT) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Instance {0} did not move to running after {1} attempts, terminating provisioning",
+                        new Object[] {slave.getInstanceId(), w.retryCount});
+                done(w, null);
+                return;
+            }
+
+            LOGGER.log(
+                    Level.INFO,
+                    "Attempt {0}: {1}. Node {2} is neither pending, neither running, it''s {3}. Will try again later",
+                    new Object[] {w.retryCount, w.template, slave.getNodeName(), state});
+            w.retryCount++;
+        }
+        reschedule(w, now);
+    }
+
+    /**
+     * Polls the agent again later, backing off while it stays pending.
+     */
+    @VisibleForTesting
+    static void reschedule(Waiting w, long now) {
+        w.nextPoll = now + w.interval;
+        // Events only tell instance state changes, spot requests waiting for an instance are still polled
+        boolean awaitsSpotRequest = w.slave instanceof EC2SpotSlave && StringUtils.isEmpty(w.slave.instanceId);
+        long max = EC2InstanceEventIngestor.isActive() && !awaitsSpotRequest
+                ? EVENT_FALLBACK_POLL_MILLIS
+                : MAX_POLL_MILLIS;
+        w.interval = Math.min(max, w.interval * 3 / 2);
+    }
+
+    private void done(Waiting w, Node node) {
+        waiting.remove(w);
+        w.future.complete(node);
+    }
+}
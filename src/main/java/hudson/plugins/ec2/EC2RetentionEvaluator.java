@@ -0,0 +1,153 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.TaskListener;
+import hudson.plugins.ec2.util.QueueSnapshot;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.Instance;
+
+/**
+ * Runs the {@link EC2RetentionStrategy} checks of every EC2 computer in one pass.
+ *
+ * <p>Checking each computer on its own describes its instance and counts the agents of its template by going through
+ * the computers again, which grows with the square of the fleet. Here the computers are listed once, the agents of each
+ * template are counted once, and the instances of the idle computers are described in bulk, one call per cloud, before
+ * each strategy decides on its computer exactly as it would on its own. Computers this pass does not get to, e.g.
+ * those of a cloud whose instances could not be described, are still checked by {@link EC2RetentionStrategy#check}.
+ */
+@Extension
+@Restricted(NoExternalUse.class)
+public final class EC2RetentionEvaluator extends AsyncPeriodicWork {
+    private static final Logger LOGGER = Logger.getLogger(EC2RetentionEvaluator.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jenkins.ec2.batchRetention", "true"));
+
+    public EC2RetentionEvaluator() {
+        super("EC2 retention evaluator");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return TimeUnit.MINUTES.toMillis(EC2RetentionStrategy.CHECK_INTERVAL_MINUTES);
+    }
+
+    @Override
+    protected void execute(TaskListener listener) throws IOException, InterruptedException {
+        if (ENABLED && !EC2RetentionStrategy.DISABLED) {
+            evaluate();
+        }
+    }
+
+    /**
+     * The data shared by the checks of one pass.
+     */
+    static final class Snapshot {
+        private final Map<String, Integer> agentsByTemplate;
+
+        private final Map<String, Instance> instances;
+
+        private QueueSnapshot queue;
+
+        Snapshot(Map<String, Integer> agentsByTemplate, Map<String, Instance> instances) {
+            this.agentsByTemplate = agentsByTemplate;
+            this.instances = instances;
+        }
+
+        /**
+         * Same as {@link hudson.plugins.ec2.util.MinimumInstanceChecker#countCurrentNumberOfAgents(SlaveTemplate)}.
+         */
+        int countAgents(SlaveTemplate template) {
+            return agentsByTemplate.getOrDefault(template.description, 0);
+        }
+
+        /**
+         * Description of the instance of the computer, {@code null} if it was not described in this pass.
+         */
+        @CheckForNull
+        Instance getInstance(EC2Computer computer) {
+            String instanceId = EC2AbstractSlave.knownInstanceIdOf(computer.getNode());
+            return instanceId == null ? null : instances.get(instanceId);
+        }
+
+        /**
+         * The build queue, read once per pass and only if a computer is about to time out.
+         */
+        synchronized QueueSnapshot getQueue() {
+            if (queue == null) {
+                queue = QueueSnapshot.take();
+            }
+            return queue;
+        }
+    }
+
+    @VisibleForTesting
+    void evaluate() {
+        long start = System.currentTimeMillis();
+        Map<String, Integer> agentsByTemplate = new HashMap<>();
+        Map<EC2Computer, EC2RetentionStrategy> toCheck = new LinkedHashMap<>();
+        Map<EC2Cloud, List<String>> idleInstances = new LinkedHashMap<>();
+        for (EC2AbstractSlave node : EC2NodeIndex.get().getNodes()) {
+            Computer computer = node.toComputer();
+            if (!(computer instanceof EC2Computer ec2Computer)) {
+                continue;
+            }
+            if (ec2Computer.getSlaveTemplate() != null) {
+                agentsByTemplate.merge(node.templateDescription, 1, Integer::sum);
+            }
+            EC2Cloud cloud = node.getCloud();
+            if (cloud == null || !(ec2Computer.getRetentionStrategy() instanceof EC2RetentionStrategy strategy)) {
+                continue;
+            }
+            toCheck.put(ec2Computer, strategy);
+            String instanceId = EC2AbstractSlave.knownInstanceIdOf(node);
+            if (ec2Computer.isIdle() && strategy.idleTerminationMinutes != 0 && instanceId != null) {
+                idleInstances
+                        .computeIfAbsent(cloud, c -> new ArrayList<>())
+                        .add(instanceId);
+            }
+        }
+
+        Map<String, Instance> instances = new HashMap<>();
+        for (Map.Entry<EC2Cloud, List<String>> entry : idleInstances.entrySet()) {
+            try {
+                instances.putAll(CloudHelper.describeInstances(entry.getValue(), entry.getKey()));
+            } catch (SdkException e) {
+                // Left to the checks of each computer
+                LOGGER.log(
+                        Level.FINE,
+                        "Failed to describe the idle instances of " + entry.getKey().getDisplayName(),
+                        e);
+                toCheck.keySet().removeIf(computer -> computer.getCloud() == entry.getKey());
+            }
+        }
+
+        Snapshot snapshot = new Snapshot(Collections.unmodifiableMap(agentsByTemplate), instances);
+        for (Map.Entry<EC2Computer, EC2RetentionStrategy> entry : toCheck.entrySet()) {
+            try {
+                entry.getValue().check(entry.getKey(), snapshot);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to check the retention of " + entry.getKey().getName(), e);
+            }
+        }
+        LOGGER.log(
+                Level.FINE,
+                "Checked the retention of {0} EC2 computers, {1} idle, in {2} ms",
+                new Object[] {toCheck.size(), instances.size(), System.currentTimeMillis() - start});
+    }
+}
@@ -23,6 +23,7 @@
  */
 package hudson.plugins.ec2;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.init.InitMilestone;
 import hudson.model.Descriptor;
 import hudson.model.Executor;
@@ -30,9 +31,11 @@ import hudson.model.ExecutorListener;
 import hudson.model.Label;
 import hudson.model.Queue;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
+import hudson.plugins.ec2.util.QueueSnapshot;
 import hudson.slaves.RetentionStrategy;
 import java.time.Clock;
 import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,6 +44,7 @@ import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
 import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.Instance;
 
 /**
  * {@link RetentionStrategy} for EC2.
@@ -65,7 +69,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
     private transient ReentrantLock checkLock;
     private static final int STARTUP_TIME_DEFAULT_VALUE = 30;
 
-    private static final Integer CHECK_INTERVAL_MINUTES = Integer.getInteger("jenkins.ec2.checkIntervalMinutes", 1);
+    static final Integer CHECK_INTERVAL_MINUTES = Integer.getInteger("jenkins.ec2.checkIntervalMinutes", 1);
 
     @DataBoundConstructor
     public EC2RetentionStrategy(String idleTerminationMinutes) {
@@ -115,7 +119,28 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
         }
     }
 
+    /**
+     * Checks the computer with data gathered for the whole fleet by {@link EC2RetentionEvaluator}, instead of looking
+     * it up for this computer only. The computer is then left alone by {@link #check(EC2Computer)} for a while, so that
+     * it is not checked twice as long as the evaluator keeps running.
+     */
+    void check(EC2Computer c, EC2RetentionEvaluator.Snapshot snapshot) {
+        if (!checkLock.tryLock()) {
+            return;
+        }
+        try {
+            long intervalMins = internalCheck(c, snapshot);
+            nextCheckAfter = this.clock.millis() + TimeUnit.MINUTES.toMillis(2 * intervalMins);
+        } finally {
+            checkLock.unlock();
+        }
+    }
+
     private long internalCheck(EC2Computer computer) {
+        return internalCheck(computer, null);
+    }
+
+    private long internalCheck(EC2Computer computer, @CheckForNull EC2RetentionEvaluator.Snapshot snapshot) {
         /*
          * If we've been told never to terminate, or node is null(deleted), no checks to perform
          */
@@ -128,7 +153,9 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
          */
         SlaveTemplate slaveTemplate = computer.getSlaveTemplate();
         if (slaveTemplate != null) {
-            long numberOfCurrentInstancesForTemplate = MinimumInstanceChecker.countCurrentNumberOfAgents(slaveTemplate);
+            long numberOfCurrentInstancesForTemplate = snapshot != null
+                    ? snapshot.countAgents(slaveTemplate)
+                    : MinimumInstanceChecker.countCurrentNumberOfAgents(slaveTemplate);
             if (numberOfCurrentInstancesForTemplate > 0
                     && numberOfCurrentInstancesForTemplate <= slaveTemplate.getMinimumNumberOfInstances()) {
                 // Check if we're in an active time-range for keeping minimum number of instances
@@ -145,10 +172,21 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
             InstanceState state;
 
             try {
-                state = computer.getState(); // Get State before Uptime because getState will refresh the cached EC2
-                // info
-                uptime = computer.getUptime();
-                launchedAt = computer.getLaunchTime();
+                if (snapshot != null) {
+                    Instance instance = snapshot.getInstance(computer);
+                    if (instance == null) {
+                        // Not described with the others, e.g. it became idle since, or it is gone
+                        return CHECK_INTERVAL_MINUTES;
+                    }
+                    state = InstanceState.find(instance.state().name().toString());
+                    uptime = instance.launchTime().until(Instant.now(), ChronoUnit.MILLIS);
+                    launchedAt = instance.launchTime();
+                } else {
+                    state = computer.getState(); // Get State before Uptime because getState will refresh the cached
+                    // EC2 info
+                    uptime = computer.getUptime();
+                    launchedAt = computer.getLaunchTime();
+                }
             } catch (SdkException | InterruptedException e) {
                 // We'll just retry next time we test for idleness.
                 LOGGER.fine("Exception while checking host uptime for " + computer.getName()
@@ -211,7 +249,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
                 // JENKINS-23792
 
                 if (idleMilliseconds > TimeUnit.MINUTES.toMillis(idleTerminationMinutes)
-                        && !itemsInQueueForThisSlave(computer)) {
+                        && !itemsInQueueForThisSlave(computer, snapshot)) {
 
                     LOGGER.info("Idle timeout of " + computer.getName() + " after "
                             + TimeUnit.MILLISECONDS.toMinutes(idleMilliseconds) + " idle minutes, instance status"
@@ -233,7 +271,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
                 // our idle time, stop/terminate the instance
                 // See JENKINS-23821
                 if (freeSecondsLeft <= TimeUnit.MINUTES.toSeconds(Math.abs(idleTerminationMinutes))
-                        && !itemsInQueueForThisSlave(computer)) {
+                        && !itemsInQueueForThisSlave(computer, snapshot)) {
                     LOGGER.info("Idle timeout of " + computer.getName() + " after "
                             + TimeUnit.MILLISECONDS.toMinutes(idleMilliseconds) + " idle minutes, with "
                             + TimeUnit.SECONDS.toMinutes(freeSecondsLeft)
@@ -255,7 +293,7 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
      * Accessing the queue in this way can block other threads, so only perform this check just prior
      * to timing out the slave.
      */
-    private boolean itemsInQueueForThisSlave(EC2Computer c) {
+    private boolean itemsInQueueForThisSlave(EC2Computer c, @CheckForNull EC2RetentionEvaluator.Snapshot snapshot) {
         final EC2AbstractSlave selfNode = c.getNode();
         /* null checking is required here because in the event that a computer
          * doesn't have a node it will return null. In this case we want to
@@ -265,14 +303,11 @@ public class EC2RetentionStrategy extends RetentionStrategy<EC2Computer> impleme
             return false;
         }
         final Label selfLabel = selfNode.getSelfLabel();
-        Queue.Item[] items = Jenkins.get().getQueue().getItems();
-        for (Queue.Item item : items) {
-            final Label assignedLabel = item.getAssignedLabel();
-            if (assignedLabel == selfLabel) {
-                LOGGER.fine("Preventing idle timeout of " + c.getName()
-                        + " as there is at least one item in the queue explicitly waiting for this slave");
-                return true;
-            }
+        QueueSnapshot queue = snapshot != null ? snapshot.getQueue() : QueueSnapshot.take();
+        if (queue.hasItemsFor(selfLabel)) {
+            LOGGER.fine("Preventing idle timeout of " + c.getName()
+                    + " as there is at least one item in the queue explicitly waiting for this slave");
+            return true;
         }
         return false;
     }
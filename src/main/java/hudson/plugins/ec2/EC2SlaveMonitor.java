@@ -1,17 +1,32 @@
 package hudson.plugins.ec2;
 
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
 import hudson.model.AsyncPeriodicWork;
-import hudson.model.Node;
+import hudson.model.Computer;
 import hudson.model.TaskListener;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
 import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
+import org.apache.commons.lang.StringUtils;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
 
 /**
  * @author Bruno Meneguello
@@ -20,8 +35,24 @@ import software.amazon.awssdk.services.ec2.model.Ec2Exception;
 public class EC2SlaveMonitor extends AsyncPeriodicWork {
     private static final Logger LOGGER = Logger.getLogger(EC2SlaveMonitor.class.getName());
 
+    /**
+     * How long after being provisioned an agent whose instance or spot request EC2 does not list is still given the
+     * benefit of the doubt, as new ones take a few seconds to be visible.
+     */
+    static final long NOT_FOUND_GRACE =
+            Long.getLong("jenkins.ec2.checkAliveNotFoundGraceMillis", TimeUnit.MINUTES.toMillis(1));
+
+    @VisibleForTesting
+    static LongSupplier clock = System::currentTimeMillis;
+
     private final Long recurrencePeriod;
 
+    private volatile Duration lastSweepDuration;
+
+    private volatile int lastRemovedCount;
+
+    private final AtomicLong removedCount = new AtomicLong();
+
     public EC2SlaveMonitor() {
         super("EC2 alive agents monitor");
         recurrencePeriod = Long.getLong("jenkins.ec2.checkAlivePeriod", TimeUnit.MINUTES.toMillis(10));
@@ -39,27 +70,217 @@ public class EC2SlaveMonitor extends AsyncPeriodicWork {
         MinimumInstanceChecker.checkForMinimumInstances();
     }
 
-    private void removeDeadNodes() {
-        for (Node node : Jenkins.get().getNodes()) {
-            if (node instanceof EC2AbstractSlave ec2Slave) {
-                try {
-                    if (!ec2Slave.isAlive(true)) {
-                        LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
-                        ec2Slave.terminate();
-                    }
-                } catch (SdkException e) {
-                    if (e instanceof Ec2Exception
-                            && EC2Cloud.EC2_REQUEST_EXPIRED_ERROR_CODE.equals(
-                                    ((Ec2Exception) e).awsErrorDetails().errorCode())) {
-                        LOGGER.info("EC2 request expired, skipping consideration of " + ec2Slave.getInstanceId()
-                                + " due to unknown state.");
-                    } else {
-                        LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
-                        removeNode(ec2Slave);
-                    }
-                }
+    /**
+     * Checks every EC2 agent and removes those whose instance is gone, one sweep per cloud, clouds in parallel.
+     *
+     * <p>The instances of a cloud are described in bulk, then the spot requests of the spot agents whose instance is not
+     * running, as their request may still be waiting for a new instance. Agents whose instance or request EC2 does not
+     * list are only found dead once they are older than {@link #NOT_FOUND_GRACE}.
+     */
+    @VisibleForTesting
+    void removeDeadNodes() throws InterruptedException {
+        long start = System.nanoTime();
+        // Rebuilding the index once per run also picks up nodes that changed without events
+        EC2NodeIndex index = EC2NodeIndex.get();
+        index.invalidate();
+        List<EC2AbstractSlave> nodes = index.getNodes();
+
+        Map<EC2Cloud, List<EC2AbstractSlave>> byCloud = new LinkedHashMap<>();
+        List<EC2AbstractSlave> withoutCloud = new ArrayList<>();
+        for (EC2AbstractSlave node : nodes) {
+            EC2Cloud cloud = node.getCloud();
+            if (cloud != null) {
+                byCloud.computeIfAbsent(cloud, c -> new ArrayList<>()).add(node);
+            } else {
+                withoutCloud.add(node);
+            }
+        }
+
+        Map<EC2Cloud, Future<Integer>> sweeps = new LinkedHashMap<>();
+        for (Map.Entry<EC2Cloud, List<EC2AbstractSlave>> entry : byCloud.entrySet()) {
+            sweeps.put(
+                    entry.getKey(),
+                    Computer.threadPoolForRemoting.submit(() -> sweep(entry.getKey(), entry.getValue())));
+        }
+        int removed = 0;
+        for (EC2AbstractSlave node : withoutCloud) {
+            if (checkAlive(node)) {
+                removed++;
+            }
+        }
+        for (Map.Entry<EC2Cloud, Future<Integer>> sweep : sweeps.entrySet()) {
+            try {
+                removed += sweep.getValue().get();
+            } catch (ExecutionException e) {
+                LOGGER.log(
+                        Level.WARNING,
+                        "Failed to check EC2 agents of " + sweep.getKey().getDisplayName(),
+                        e.getCause());
+            }
+        }
+
+        lastSweepDuration = Duration.ofNanos(System.nanoTime() - start);
+        lastRemovedCount = removed;
+        removedCount.addAndGet(removed);
+        LOGGER.log(
+                removed > 0 ? Level.INFO : Level.FINE,
+                "Checked {0} EC2 agents of {1} clouds in {2} ms, {3} dead",
+                new Object[] {nodes.size(), byCloud.size(), lastSweepDuration.toMillis(), removed});
+    }
+
+    /**
+     * Removes the dead agents of one cloud.
+     *
+     * @return how many agents were found dead.
+     */
+    @VisibleForTesting
+    int sweep(EC2Cloud cloud, List<EC2AbstractSlave> nodes) {
+        Map<String, EC2AbstractSlave> byInstanceId = new LinkedHashMap<>();
+        List<EC2SpotSlave> spotToCheck = new ArrayList<>();
+        List<EC2AbstractSlave> toCheck = new ArrayList<>();
+        for (EC2AbstractSlave node : nodes) {
+            String instanceId = EC2AbstractSlave.knownInstanceIdOf(node);
+            if (instanceId != null) {
+                byInstanceId.put(instanceId, node);
+            } else if (node instanceof EC2SpotSlave spotSlave) {
+                spotToCheck.add(spotSlave);
+            } else {
+                toCheck.add(node);
+            }
+        }
+
+        Map<String, Instance> instances;
+        try {
+            instances = CloudHelper.describeInstances(byInstanceId.keySet(), cloud);
+        } catch (SdkException e) {
+            logFailure(cloud, e);
+            return 0;
+        }
+
+        long now = clock.getAsLong();
+        int removed = 0;
+        for (Map.Entry<String, EC2AbstractSlave> entry : byInstanceId.entrySet()) {
+            Instance instance = instances.get(entry.getKey());
+            EC2AbstractSlave node = entry.getValue();
+            if (instance != null && instance.state().name() != InstanceStateName.TERMINATED) {
+                continue;
+            }
+            if (node instanceof EC2SpotSlave spotSlave) {
+                spotToCheck.add(spotSlave);
+            } else if (instance == null && isNew(node, now)) {
+                LOGGER.fine("EC2 instance is not listed yet: " + entry.getKey());
+            } else {
+                LOGGER.info("EC2 instance is dead: " + entry.getKey());
+                node.terminate();
+                removed++;
             }
         }
+        removed += sweepSpot(cloud, spotToCheck, now);
+        for (EC2AbstractSlave node : toCheck) {
+            if (checkAlive(node)) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Removes the spot agents without a running instance whose spot request is dead, from one batched lookup.
+     */
+    private int sweepSpot(EC2Cloud cloud, List<EC2SpotSlave> nodes, long now) {
+        if (nodes.isEmpty()) {
+            return 0;
+        }
+        List<String> requestIds = new ArrayList<>();
+        for (EC2SpotSlave node : nodes) {
+            if (StringUtils.isNotEmpty(node.getSpotInstanceRequestId())) {
+                requestIds.add(node.getSpotInstanceRequestId());
+            }
+        }
+        Map<String, SpotInstanceRequest> requests;
+        try {
+            requests = EC2SpotRequestStore.get(cloud).getRequests(requestIds, cloud);
+        } catch (SdkException e) {
+            logFailure(cloud, e);
+            return 0;
+        }
+
+        int removed = 0;
+        for (EC2SpotSlave node : nodes) {
+            SpotInstanceRequest request = requests.get(node.getSpotInstanceRequestId());
+            if (request == null ? !isNew(node, now) : EC2SpotRequestStore.isDead(request)) {
+                LOGGER.info("EC2 spot request is dead: " + node.getSpotInstanceRequestId());
+                node.terminate();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isNew(EC2AbstractSlave node, long now) {
+        return now - node.getProvisionedAt() < NOT_FOUND_GRACE;
+    }
+
+    private static void logFailure(EC2Cloud cloud, SdkException e) {
+        if (isRequestExpired(e)) {
+            LOGGER.info("EC2 request expired, skipping consideration of the agents of " + cloud.getDisplayName()
+                    + " due to unknown state.");
+        } else {
+            LOGGER.log(Level.WARNING, "Failed to check the EC2 agents of " + cloud.getDisplayName(), e);
+        }
+    }
+
+    /**
+     * Checks a single agent the way every agent used to be checked.
+     *
+     * @return whether the agent was found dead.
+     */
+    private boolean checkAlive(EC2AbstractSlave ec2Slave) {
+        try {
+            if (!ec2Slave.isAlive(true)) {
+                LOGGER.info("EC2 instance is dead: " + ec2Slave.getInstanceId());
+                ec2Slave.terminate();
+                return true;
+            }
+        } catch (SdkException e) {
+            if (isRequestExpired(e)) {
+                LOGGER.info("EC2 request expired, skipping consideration of " + ec2Slave.getInstanceId()
+                        + " due to unknown state.");
+            } else {
+                LOGGER.info("EC2 instance is dead and failed to terminate: " + ec2Slave.getInstanceId());
+                removeNode(ec2Slave);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isRequestExpired(SdkException e) {
+        return e instanceof Ec2Exception
+                && EC2Cloud.EC2_REQUEST_EXPIRED_ERROR_CODE.equals(
+                        ((Ec2Exception) e).awsErrorDetails().errorCode());
+    }
+
+    /**
+     * How long the last sweep took, {@code null} before the first one.
+     */
+    @CheckForNull
+    public Duration getLastSweepDuration() {
+        return lastSweepDuration;
+    }
+
+    /**
+     * Number of dead agents found by the last sweep.
+     */
+    public int getLastRemovedCount() {
+        return lastRemovedCount;
+    }
+
+    /**
+     * Number of dead agents found since Jenkins started.
+     */
+    public long getRemovedCount() {
+        return removedCount.get();
     }
 
     private void removeNode(EC2AbstractSlave ec2Slave) {
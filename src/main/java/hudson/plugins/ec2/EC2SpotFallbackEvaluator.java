@@ -0,0 +1,179 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Computer;
+import hudson.triggers.SafeTimerTask;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Decides, for the spot requests of one cloud whose template falls back to on-demand, whether EC2 has capacity for
+ * them, and launches on-demand agents in place of those it has none for.
+ *
+ * <p>Provisioning hands the new requests over with {@link #watch} and returns right away, rather than waiting for EC2
+ * to evaluate each of them while holding the counting lock of the cloud. A single task per cloud then refreshes every
+ * request still pending evaluation in one call, every {@link EC2SpotRequestStore#OPEN_TTL}, until EC2 has decided or
+ * {@link #EVALUATION_TIMEOUT} has passed. The agents of requests without capacity are terminated, which cancels their
+ * request, and replaced by on-demand agents of the same template.
+ *
+ * <p>An agent may be terminated before it is attached to Jenkins: planned nodes are only attached once their instance
+ * runs, which a request without capacity never gets, and agents provisioned directly are attached after the launch
+ * returns. Terminating it cancels the request either way, so the planned node completes without an agent, and an agent
+ * attached afterwards is removed by {@link EC2DeadSpotRequestReconciler} as the agent of a cancelled request.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2SpotFallbackEvaluator {
+    private static final Logger LOGGER = Logger.getLogger(EC2SpotFallbackEvaluator.class.getName());
+
+    /**
+     * How long a request may stay pending evaluation before it is kept as is.
+     */
+    static final long EVALUATION_TIMEOUT =
+            Long.getLong("jenkins.ec2.spotEvaluationTimeout", TimeUnit.SECONDS.toMillis(10));
+
+    static final String PENDING_EVALUATION = "pending-evaluation";
+
+    static final Set<String> NO_CAPACITY_CODES =
+            Set.of("capacity-not-available", "capacity-oversubscribed", "price-too-low");
+
+    private final EC2Cloud cloud;
+
+    private final Map<String, Pending> pending = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    private record Pending(SlaveTemplate template, EC2SpotSlave node, long deadline) {}
+
+    EC2SpotFallbackEvaluator(EC2Cloud cloud) {
+        this.cloud = cloud;
+    }
+
+    /**
+     * Watches the request of a new spot agent, as returned by {@code RequestSpotInstances}.
+     */
+    void watch(SlaveTemplate template, EC2SpotSlave node, SpotInstanceRequest request) {
+        pending.put(
+                request.spotInstanceRequestId(),
+                new Pending(template, node, System.currentTimeMillis() + EVALUATION_TIMEOUT));
+        // EC2 takes a few seconds to evaluate a new request
+        schedulePoll(EC2SpotRequestStore.OPEN_TTL);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    private void schedulePoll(long delay) {
+        if (!polling.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get()
+                .schedule(
+                        new SafeTimerTask() {
+                            @Override
+                            protected void doRun() {
+                                Computer.threadPoolForRemoting.submit(EC2SpotFallbackEvaluator.this::poll);
+                            }
+                        },
+                        delay,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private void poll() {
+        try {
+            evaluate();
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to evaluate the spot requests of " + cloud.getDisplayName(), e);
+        } finally {
+            polling.set(false);
+            if (!pending.isEmpty()) {
+                schedulePoll(EC2SpotRequestStore.OPEN_TTL);
+            }
+        }
+    }
+
+    /**
+     * Refreshes the watched requests in one call and falls back to on-demand for those EC2 has no capacity for.
+     */
+    @VisibleForTesting
+    void evaluate() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        Map<String, SpotInstanceRequest> requests;
+        try {
+            requests = EC2SpotRequestStore.get(cloud).refresh(new ArrayList<>(pending.keySet()), cloud);
+        } catch (SdkException e) {
+            LOGGER.log(Level.WARNING, "Failed to fetch the spot requests pending evaluation", e);
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        Map<SlaveTemplate, List<EC2SpotSlave>> fallbacks = new LinkedHashMap<>();
+        for (Iterator<Map.Entry<String, Pending>> it = pending.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Pending> entry = it.next();
+            SpotInstanceRequest request = requests.get(entry.getKey());
+            String code = statusCode(request);
+            if (code != null && NO_CAPACITY_CODES.contains(code)) {
+                LOGGER.info("Spot request " + entry.getKey() + " has no capacity: " + code);
+                if (EC2SubnetScorer.isSpotCapacityError(request)) {
+                    EC2SubnetScorer.recordCapacityError(
+                            EC2SubnetScorer.subnetOf(request), EC2SubnetScorer.instanceTypeOf(request));
+                }
+                fallbacks
+                        .computeIfAbsent(entry.getValue().template(), t -> new ArrayList<>())
+                        .add(entry.getValue().node());
+                it.remove();
+            } else if (request != null && !isPendingEvaluation(request)) {
+                // Fulfilment is recorded by EC2ReadinessWaiter, which sees it for every spot template
+                it.remove();
+            } else if (now >= entry.getValue().deadline()) {
+                LOGGER.info("Spot request " + entry.getKey() + " is still pending evaluation, keeping it");
+                it.remove();
+            }
+        }
+
+        for (Map.Entry<SlaveTemplate, List<EC2SpotSlave>> entry : fallbacks.entrySet()) {
+            fallBack(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void fallBack(SlaveTemplate template, List<EC2SpotSlave> nodes) {
+        LOGGER.info(
+                "There is no spot capacity available matching your request, falling back to on-demand instance.");
+        for (EC2SpotSlave node : nodes) {
+            // Cancels the request and removes the agent, see EC2TerminationQueue
+            node.terminate();
+        }
+        try {
+            cloud.provisionOndemandFallback(template, nodes.size());
+        } catch (SdkException | IOException e) {
+            LOGGER.log(Level.WARNING, template + ". Failed to launch on-demand instances in place of spot ones", e);
+        }
+    }
+
+    private static boolean isPendingEvaluation(SpotInstanceRequest request) {
+        return PENDING_EVALUATION.equals(statusCode(request));
+    }
+
+    @CheckForNull
+    private static String statusCode(@CheckForNull SpotInstanceRequest request) {
+        return request == null || request.status() == null ? null : request.status().code();
+    }
+}
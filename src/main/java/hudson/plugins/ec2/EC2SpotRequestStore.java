@@ -0,0 +1,377 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.triggers.SafeTimerTask;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.Filter;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+
+/**
+ * Last known state of the spot requests of one cloud, shared by every spot agent of that cloud.
+ *
+ * <p>Like {@link EC2InstanceStateStore}, how long a request is trusted depends on its state: open requests are
+ * refreshed within seconds, fulfilled and closed ones rarely. When a request has to be fetched, the other stale requests
+ * of the cloud that still have an agent are fetched with it in the same call, so that rendering many spot agents costs
+ * one call rather than one per agent. Results obtained elsewhere, e.g. from filtered describes, are recorded with
+ * {@link #update}. Requests nobody asked about for a while are dropped.
+ *
+ * <p>Callers waiting for a request to be fulfilled register with {@link #whenFulfilled}, and a single task per cloud
+ * refreshes every awaited request in one call until each is fulfilled or dead.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2SpotRequestStore {
+    private static final Logger LOGGER = Logger.getLogger(EC2SpotRequestStore.class.getName());
+
+    /**
+     * TTL of open requests and of requests EC2 did not return, also the interval at which awaited requests are
+     * refreshed.
+     */
+    static final long OPEN_TTL = Long.getLong("jenkins.ec2.spotRequestTtl.open", TimeUnit.SECONDS.toMillis(5));
+
+    /**
+     * TTL of fulfilled and closed requests.
+     */
+    static final long SETTLED_TTL =
+            Long.getLong("jenkins.ec2.spotRequestTtl.settled", TimeUnit.MINUTES.toMillis(5));
+
+    static final int MAX_BATCH_SIZE = 1000;
+
+    private static final int MAX_FILTER_VALUES = 200;
+
+    static final String SPOT_REQUEST_NOT_FOUND_ERROR_CODE = "InvalidSpotInstanceRequestID.NotFound";
+
+    private static final Map<EC2Cloud, EC2SpotRequestStore> STORES = new WeakHashMap<>();
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<SpotInstanceRequest>> awaited = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean polling = new AtomicBoolean();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile long lastPrune;
+
+    @VisibleForTesting
+    static LongSupplier clock = System::currentTimeMillis;
+
+    private static final class Entry {
+        @CheckForNull
+        private final SpotInstanceRequest request;
+
+        private final long fetchedAt;
+
+        /**
+         * Last time a caller asked for the request, which is what keeps it in the store.
+         */
+        private volatile long accessedAt;
+
+        private Entry(@CheckForNull SpotInstanceRequest request, long fetchedAt, long accessedAt) {
+            this.request = request;
+            this.fetchedAt = fetchedAt;
+            this.accessedAt = accessedAt;
+        }
+
+        @CheckForNull
+        SpotInstanceRequest request() {
+            return request;
+        }
+
+        boolean isFresh(long now) {
+            return now - fetchedAt < ttl(request);
+        }
+    }
+
+    static EC2SpotRequestStore get(EC2Cloud cloud) {
+        synchronized (STORES) {
+            return STORES.computeIfAbsent(cloud, c -> new EC2SpotRequestStore());
+        }
+    }
+
+    /**
+     * Returns the spot request, from the store if it is still fresh for its state, from EC2 otherwise. Returns
+     * {@code null} if EC2 does not know the request, or could not be asked.
+     */
+    @CheckForNull
+    SpotInstanceRequest getRequest(@CheckForNull String requestId, EC2Cloud cloud) {
+        if (StringUtils.isEmpty(requestId) || cloud == null) {
+            return null;
+        }
+        long now = clock.getAsLong();
+        Entry entry = entries.get(requestId);
+        if (entry != null && entry.isFresh(now)) {
+            hits.incrementAndGet();
+            entry.accessedAt = now;
+            return entry.request();
+        }
+        misses.incrementAndGet();
+        Set<String> ids = new LinkedHashSet<>();
+        ids.add(requestId);
+        EC2NodeIndex index = null;
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (ids.size() >= MAX_BATCH_SIZE) {
+                break;
+            }
+            if (e.getValue().isFresh(now)) {
+                continue;
+            }
+            if (index == null) {
+                index = EC2NodeIndex.get();
+            }
+            // Requests of removed agents are not worth a slot in the call
+            if (index.getBySpotRequestId(e.getKey()) != null) {
+                ids.add(e.getKey());
+            }
+        }
+        try {
+            refresh(ids, cloud);
+        } catch (SdkException e) {
+            LOGGER.log(Level.WARNING, "Failed to fetch spot instance request for requestId: " + requestId, e);
+            return null;
+        }
+        prune(now);
+        Entry refreshed = entries.get(requestId);
+        if (refreshed == null) {
+            return null;
+        }
+        refreshed.accessedAt = now;
+        return refreshed.request();
+    }
+
+    /**
+     * Same as {@link #getRequest} for several requests, those that are not fresh being fetched in one call.
+     *
+     * @return the requests EC2 knows, by ID.
+     */
+    Map<String, SpotInstanceRequest> getRequests(Collection<String> requestIds, EC2Cloud cloud) throws SdkException {
+        long now = clock.getAsLong();
+        Set<String> stale = new LinkedHashSet<>();
+        for (String requestId : requestIds) {
+            Entry entry = entries.get(requestId);
+            if (entry != null && entry.isFresh(now)) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                stale.add(requestId);
+            }
+        }
+        if (!stale.isEmpty()) {
+            refresh(stale, cloud);
+            prune(now);
+        }
+        Map<String, SpotInstanceRequest> requests = new HashMap<>();
+        for (String requestId : requestIds) {
+            Entry entry = entries.get(requestId);
+            if (entry != null) {
+                entry.accessedAt = now;
+                if (entry.request() != null) {
+                    requests.put(requestId, entry.request());
+                }
+            }
+        }
+        return requests;
+    }
+
+    /**
+     * Fetches the spot requests from EC2 and stores them, requests EC2 does not know being stored as missing.
+     *
+     * @return the requests EC2 returned, by ID.
+     */
+    Map<String, SpotInstanceRequest> refresh(Collection<String> requestIds, EC2Cloud cloud) throws SdkException {
+        long now = clock.getAsLong();
+        Map<String, SpotInstanceRequest> found = new HashMap<>();
+        for (List<String> chunk : Lists.partition(new ArrayList<>(requestIds), MAX_BATCH_SIZE)) {
+            try {
+                describe(
+                        DescribeSpotInstanceRequestsRequest.builder()
+                                .spotInstanceRequestIds(chunk)
+                                .build(),
+                        cloud,
+                        found);
+            } catch (AwsServiceException e) {
+                if (e.awsErrorDetails() == null
+                        || !SPOT_REQUEST_NOT_FOUND_ERROR_CODE.equals(
+                                e.awsErrorDetails().errorCode())) {
+                    throw e;
+                }
+                // A single unknown id fails the whole call, whereas a filter just leaves it out
+                for (List<String> filterChunk : Lists.partition(chunk, MAX_FILTER_VALUES)) {
+                    describe(
+                            DescribeSpotInstanceRequestsRequest.builder()
+                                    .filters(Filter.builder()
+                                            .name("spot-instance-request-id")
+                                            .values(filterChunk)
+                                            .build())
+                                    .build(),
+                            cloud,
+                            found);
+                }
+            }
+        }
+        for (String requestId : requestIds) {
+            record(requestId, found.get(requestId), now);
+        }
+        return found;
+    }
+
+    private static void describe(
+            DescribeSpotInstanceRequestsRequest request, EC2Cloud cloud, Map<String, SpotInstanceRequest> found) {
+        DescribeSpotInstanceRequestsResponse response;
+        do {
+            response = cloud.connect().describeSpotInstanceRequests(request);
+            for (SpotInstanceRequest sir : response.spotInstanceRequests()) {
+                found.put(sir.spotInstanceRequestId(), sir);
+            }
+            request = request.toBuilder().nextToken(response.nextToken()).build();
+        } while (response.nextToken() != null);
+    }
+
+    /**
+     * Stores a spot request obtained elsewhere, e.g. from a filtered describe.
+     */
+    void update(SpotInstanceRequest request) {
+        if (request.spotInstanceRequestId() == null) {
+            return;
+        }
+        record(request.spotInstanceRequestId(), request, clock.getAsLong());
+    }
+
+    void invalidate(Collection<String> requestIds) {
+        for (String requestId : requestIds) {
+            entries.remove(requestId);
+        }
+    }
+
+    /**
+     * Completes with the spot request once it has an instance or is dead, or with {@code null} once its agent is gone.
+     */
+    CompletableFuture<SpotInstanceRequest> whenFulfilled(String requestId, EC2Cloud cloud) {
+        Entry entry = entries.get(requestId);
+        if (entry != null && entry.request() != null && isSettled(entry.request())) {
+            return CompletableFuture.completedFuture(entry.request());
+        }
+        CompletableFuture<SpotInstanceRequest> future =
+                awaited.computeIfAbsent(requestId, k -> new CompletableFuture<>());
+        schedulePoll(cloud);
+        return future;
+    }
+
+    private void schedulePoll(EC2Cloud cloud) {
+        if (!polling.compareAndSet(false, true)) {
+            return;
+        }
+        Timer.get()
+                .schedule(
+                        new SafeTimerTask() {
+                            @Override
+                            protected void doRun() {
+                                poll(cloud);
+                            }
+                        },
+                        OPEN_TTL,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    private void poll(EC2Cloud cloud) {
+        try {
+            // Nobody waits for requests whose agent is gone
+            awaited.entrySet().removeIf(e -> {
+                if (EC2NodeIndex.get().getBySpotRequestId(e.getKey()) == null) {
+                    e.getValue().complete(null);
+                    return true;
+                }
+                return false;
+            });
+            if (!awaited.isEmpty()) {
+                refresh(new ArrayList<>(awaited.keySet()), cloud);
+            }
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Failed to refresh awaited spot requests of " + cloud.getDisplayName(), e);
+        } finally {
+            polling.set(false);
+            if (!awaited.isEmpty()) {
+                schedulePoll(cloud);
+            }
+        }
+    }
+
+    private void record(String requestId, @CheckForNull SpotInstanceRequest request, long now) {
+        // Fetching a request does not count as asking for it, else requests fetched in batches would never be dropped
+        entries.compute(
+                requestId, (k, previous) -> new Entry(request, now, previous == null ? now : previous.accessedAt));
+        if (request != null && isSettled(request)) {
+            CompletableFuture<SpotInstanceRequest> future = awaited.remove(requestId);
+            if (future != null) {
+                future.complete(request);
+            }
+        }
+    }
+
+    long getHits() {
+        return hits.get();
+    }
+
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Whether the request will not change anymore for those waiting for it: it has an instance, or it is dead.
+     */
+    private static boolean isSettled(@CheckForNull SpotInstanceRequest request) {
+        return request == null || StringUtils.isNotEmpty(request.instanceId()) || isDead(request);
+    }
+
+    static boolean isDead(SpotInstanceRequest request) {
+        SpotInstanceState state = request.state();
+        return state == SpotInstanceState.CANCELLED
+                || state == SpotInstanceState.CLOSED
+                || state == SpotInstanceState.FAILED;
+    }
+
+    static long ttl(@CheckForNull SpotInstanceRequest request) {
+        // Missing requests are asked again soon, as new requests take a few seconds to be visible
+        return request != null && isSettled(request) ? SETTLED_TTL : OPEN_TTL;
+    }
+
+    /**
+     * Drops entries nobody asked about for a while, e.g. of agents that were removed.
+     */
+    private void prune(long now) {
+        if (now - lastPrune < SETTLED_TTL) {
+            return;
+        }
+        lastPrune = now;
+        int before = entries.size();
+        entries.values().removeIf(e -> now - e.accessedAt > 2 * SETTLED_TTL);
+        LOGGER.log(Level.FINE, "Pruned {0} spot requests", before - entries.size());
+    }
+}
@@ -2,7 +2,6 @@ package hudson.plugins.ec2;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.Extension;
-import hudson.model.Computer;
 import hudson.model.Descriptor.FormException;
 import hudson.plugins.ec2.ssh.EC2UnixLauncher;
 import hudson.plugins.ec2.ssh.EC2WindowsSSHLauncher;
@@ -11,19 +10,16 @@ import hudson.slaves.NodeProperty;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
 import software.amazon.awssdk.core.exception.SdkException;
-import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsRequest;
-import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
-import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
 import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
-import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
-import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
 
 public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
     private static final Logger LOGGER = Logger.getLogger(EC2SpotSlave.class.getName());
@@ -183,72 +179,7 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
      */
     @Override
     public void terminate() {
-        if (terminateScheduled.getCount() == 0) {
-            synchronized (terminateScheduled) {
-                if (terminateScheduled.getCount() == 0) {
-                    Computer.threadPoolForRemoting.submit(() -> {
-                        try {
-                            // Cancel the spot request
-                            Ec2Client ec2 = getCloud().connect();
-
-                            String instanceId = getInstanceId();
-                            List<String> requestIds = Collections.singletonList(spotInstanceRequestId);
-                            CancelSpotInstanceRequestsRequest cancelRequest =
-                                    CancelSpotInstanceRequestsRequest.builder()
-                                            .spotInstanceRequestIds(requestIds)
-                                            .build();
-                            try {
-                                ec2.cancelSpotInstanceRequests(cancelRequest);
-                                LOGGER.info("Cancelled Spot request: " + spotInstanceRequestId);
-                            } catch (SdkException e) {
-                                // Spot request is no longer valid
-                                LOGGER.log(Level.WARNING, "Failed to cancel Spot request: " + spotInstanceRequestId, e);
-                            }
-
-                            // Terminate the agent if it is running
-                            if (instanceId != null && !instanceId.isEmpty()) {
-                                if (!super.isAlive(true)) {
-                                    /*
-                                     * The node has been killed externally, so we've nothing to do here
-                                     */
-                                    LOGGER.info("EC2 instance already terminated: " + instanceId);
-                                } else {
-                                    TerminateInstancesRequest request = TerminateInstancesRequest.builder()
-                                            .instanceIds(Collections.singletonList(instanceId))
-                                            .build();
-                                    try {
-                                        ec2.terminateInstances(request);
-                                        LOGGER.info("Terminated EC2 instance (terminated): " + instanceId);
-                                    } catch (SdkException e) {
-                                        // Spot request is no longer valid
-                                        LOGGER.log(
-                                                Level.WARNING,
-                                                "Failed to terminate the Spot instance: " + instanceId,
-                                                e);
-                                    }
-                                }
-                            }
-                        } catch (Exception e) {
-                            LOGGER.log(Level.WARNING, "Failed to remove agent: ", e);
-                        } finally {
-                            // Remove the instance even if deletion failed, otherwise it will hang around forever in
-                            // the nodes page. One way for this to occur is that an instance was terminated
-                            // manually or a spot instance was killed due to pricing. If we don't remove the node,
-                            // we screw up auto-scaling, since it will continue to count against the quota.
-                            try {
-                                Jenkins.get().removeNode(this);
-                            } catch (IOException e) {
-                                LOGGER.log(Level.WARNING, "Failed to remove agent: " + name, e);
-                            }
-                            synchronized (terminateScheduled) {
-                                terminateScheduled.countDown();
-                            }
-                        }
-                    });
-                    terminateScheduled.reset();
-                }
-            }
-        }
+        queueTermination();
     }
 
     /**
@@ -258,28 +189,11 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
      */
     @CheckForNull
     SpotInstanceRequest getSpotRequest() {
-        Ec2Client ec2 = getCloud().connect();
-
-        if (this.spotInstanceRequestId == null) {
+        EC2Cloud cloud = getCloud();
+        if (cloud == null) {
             return null;
         }
-
-        DescribeSpotInstanceRequestsRequest dsirRequest = DescribeSpotInstanceRequestsRequest.builder()
-                .spotInstanceRequestIds(this.spotInstanceRequestId)
-                .build();
-        try {
-            DescribeSpotInstanceRequestsResponse dsirResult = ec2.describeSpotInstanceRequests(dsirRequest);
-            List<SpotInstanceRequest> siRequests = dsirResult.spotInstanceRequests();
-
-            return siRequests.get(0);
-        } catch (SdkException e) {
-            // Spot request is no longer valid
-            LOGGER.log(
-                    Level.WARNING,
-                    "Failed to fetch spot instance request for requestId: " + this.spotInstanceRequestId);
-        }
-
-        return null;
+        return EC2SpotRequestStore.get(cloud).getRequest(this.spotInstanceRequestId, cloud);
     }
 
     public boolean isSpotRequestDead() {
@@ -288,11 +202,7 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
             return true;
         }
 
-        SpotInstanceState requestState =
-                SpotInstanceState.fromValue(spotRequest.state().toString());
-        return requestState == SpotInstanceState.CANCELLED
-                || requestState == SpotInstanceState.CLOSED
-                || requestState == SpotInstanceState.FAILED;
+        return EC2SpotRequestStore.isDead(spotRequest);
     }
 
     /**
@@ -306,13 +216,24 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
     public String getInstanceId() {
         if (StringUtils.isEmpty(instanceId)) {
             SpotInstanceRequest sr = getSpotRequest();
-            if (sr != null) {
+            if (sr != null && StringUtils.isNotEmpty(sr.instanceId())) {
                 instanceId = sr.instanceId();
+                EC2NodeIndex.get().onInstanceIdKnown(this);
             }
         }
         return instanceId;
     }
 
+    /**
+     * Records the instance fulfilling the spot request, as learned from a batched describe call.
+     */
+    void onSpotRequestFulfilled(String instanceId) {
+        if (StringUtils.isEmpty(this.instanceId)) {
+            this.instanceId = instanceId;
+            EC2NodeIndex.get().onInstanceIdKnown(this);
+        }
+    }
+
     @Override
     public void onConnected() {
         // The spot request has been fulfilled and is connected. If the Spot
@@ -346,6 +267,25 @@ public class EC2SpotSlave extends EC2AbstractSlave implements EC2Readiness {
         return getInstanceId() != null;
     }
 
+    @Override
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        EC2Cloud cloud = getCloud();
+        if (isReady() || cloud == null || this.spotInstanceRequestId == null) {
+            return isReady();
+        }
+        try {
+            SpotInstanceRequest sr = EC2SpotRequestStore.get(cloud)
+                    .whenFulfilled(this.spotInstanceRequestId, cloud)
+                    .get(timeout, unit);
+            if (sr != null && StringUtils.isNotEmpty(sr.instanceId())) {
+                onSpotRequestFulfilled(sr.instanceId());
+            }
+        } catch (ExecutionException | TimeoutException e) {
+            LOGGER.log(Level.FINE, "Spot request " + this.spotInstanceRequestId + " not fulfilled", e);
+        }
+        return isReady();
+    }
+
     @Override
     public String getEc2ReadinessStatus() {
         SpotInstanceRequest sr = getSpotRequest();
@@ -0,0 +1,301 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import software.amazon.awssdk.services.ec2.model.LaunchSpecification;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+
+/**
+ * Chooses the subnet of each launch of a template from the recent launch outcomes in each subnet.
+ *
+ * <p>Outcomes are recorded per subnet and instance type, as capacity is, and shared by every template. Successes and
+ * capacity errors decay exponentially with {@link #HALF_LIFE}, so a subnet recovers from old errors, and the launch
+ * latency of successes is kept as a moving average. A subnet with {@link #FAILURE_THRESHOLD} capacity errors in a row
+ * is ejected for {@link #EJECTION}, then gets one probe launch at a time until one succeeds; another capacity error
+ * ejects it again. Subnets are chosen by smooth weighted round-robin over those not ejected, weighted by their share
+ * of recent successes: subnets without history take turns as plain round-robin did, and a subnet that just failed
+ * comes around less often.
+ *
+ * <p>Errors other than capacity errors say nothing about the subnet and are not recorded.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2SubnetScorer {
+    private static final Logger LOGGER = Logger.getLogger(EC2SubnetScorer.class.getName());
+
+    static final long HALF_LIFE =
+            TimeUnit.MINUTES.toMillis(Long.getLong("jenkins.ec2.subnetScoreHalfLifeMinutes", 10));
+
+    static final int FAILURE_THRESHOLD = Integer.getInteger("jenkins.ec2.subnetFailureThreshold", 3);
+
+    static final long EJECTION = TimeUnit.MINUTES.toMillis(Long.getLong("jenkins.ec2.subnetEjectionMinutes", 5));
+
+    /**
+     * Error codes meaning that the subnet, or its availability zone, could not take the instances at that time.
+     */
+    static final Set<String> CAPACITY_ERROR_CODES = Set.of(
+            "InsufficientInstanceCapacity",
+            "InsufficientHostCapacity",
+            "InsufficientReservedInstanceCapacity",
+            "InsufficientFreeAddressesInSubnet",
+            "Unsupported");
+
+    /**
+     * Status codes of spot requests EC2 could not fulfil for lack of capacity, rather than of a high enough price.
+     */
+    static final Set<String> SPOT_CAPACITY_STATUS_CODES = Set.of("capacity-not-available", "capacity-oversubscribed");
+
+    private static final Map<String, Stats> STATS = new ConcurrentHashMap<>();
+
+    @VisibleForTesting
+    static LongSupplier clock = System::currentTimeMillis;
+
+    /**
+     * Current weights of the smooth weighted round-robin, by subnet.
+     */
+    private final Map<String, Double> currentWeights = new HashMap<>();
+
+    /**
+     * Launch history of one subnet for one instance type.
+     */
+    static final class Stats {
+        private double successes;
+
+        private double failures;
+
+        private long updatedAt = clock.getAsLong();
+
+        private double latency = -1;
+
+        private int consecutiveFailures;
+
+        private long ejectedUntil;
+
+        private long probeStartedAt = -1;
+
+        private void decay(long now) {
+            if (now > updatedAt) {
+                double factor = Math.pow(0.5, (double) (now - updatedAt) / HALF_LIFE);
+                successes *= factor;
+                failures *= factor;
+                updatedAt = now;
+            }
+        }
+
+        synchronized void recordSuccess(long latencyMillis) {
+            decay(clock.getAsLong());
+            successes++;
+            if (latencyMillis >= 0) {
+                latency = latency < 0 ? latencyMillis : 0.8 * latency + 0.2 * latencyMillis;
+            }
+            consecutiveFailures = 0;
+            ejectedUntil = 0;
+            probeStartedAt = -1;
+        }
+
+        synchronized void recordCapacityError() {
+            long now = clock.getAsLong();
+            decay(now);
+            failures++;
+            consecutiveFailures++;
+            // A failed probe ejects the subnet again right away
+            if (consecutiveFailures >= FAILURE_THRESHOLD || probeStartedAt >= 0) {
+                ejectedUntil = now + EJECTION;
+            }
+            probeStartedAt = -1;
+        }
+
+        /**
+         * Share of recent launches that succeeded, 0.5 without history.
+         */
+        synchronized double score() {
+            decay(clock.getAsLong());
+            return (successes + 1) / (successes + failures + 2);
+        }
+
+        /**
+         * Whether a launch may go to the subnet: it is not ejected, or it is due for a probe and none is running.
+         */
+        synchronized boolean isAvailable(long now) {
+            if (ejectedUntil == 0) {
+                return true;
+            }
+            if (now < ejectedUntil) {
+                return false;
+            }
+            // Half-open: a single probe at a time, another one if it got no outcome within the ejection time
+            return probeStartedAt < 0 || now - probeStartedAt > EJECTION;
+        }
+
+        synchronized void onChosen(long now) {
+            if (ejectedUntil != 0 && now >= ejectedUntil) {
+                probeStartedAt = now;
+            }
+        }
+
+        synchronized boolean isEjected(long now) {
+            return ejectedUntil != 0 && now < ejectedUntil;
+        }
+
+        synchronized long getEjectedUntil() {
+            return ejectedUntil;
+        }
+
+        /**
+         * Moving average of the launch latency in milliseconds, -1 if unknown.
+         */
+        synchronized double getLatency() {
+            return latency;
+        }
+    }
+
+    static Stats stats(String subnetId, @CheckForNull String instanceType) {
+        return STATS.computeIfAbsent(subnetId + "/" + instanceType, k -> new Stats());
+    }
+
+    static void recordSuccess(@CheckForNull String subnetId, @CheckForNull String instanceType, long latencyMillis) {
+        if (StringUtils.isNotEmpty(subnetId)) {
+            stats(subnetId, instanceType).recordSuccess(latencyMillis);
+        }
+    }
+
+    /**
+     * Records a failed launch, which only counts against the subnet if EC2 had no capacity for it.
+     */
+    static void recordFailure(
+            @CheckForNull String subnetId, @CheckForNull String instanceType, @CheckForNull String errorCode) {
+        if (errorCode != null && CAPACITY_ERROR_CODES.contains(errorCode)) {
+            recordCapacityError(subnetId, instanceType);
+        }
+    }
+
+    static void recordCapacityError(@CheckForNull String subnetId, @CheckForNull String instanceType) {
+        if (StringUtils.isNotEmpty(subnetId)) {
+            LOGGER.log(Level.FINE, "No capacity in subnet {0} for {1}", new Object[] {subnetId, instanceType});
+            stats(subnetId, instanceType).recordCapacityError();
+        }
+    }
+
+    /**
+     * Subnet a RunInstances request launches into, {@code null} if EC2 chooses.
+     */
+    @CheckForNull
+    static String subnetOf(RunInstancesRequest request) {
+        if (request.subnetId() != null) {
+            return request.subnetId();
+        }
+        if (request.hasNetworkInterfaces()) {
+            for (InstanceNetworkInterfaceSpecification networkInterface : request.networkInterfaces()) {
+                if (networkInterface.subnetId() != null) {
+                    return networkInterface.subnetId();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Subnet a spot request launches into, {@code null} if EC2 chooses.
+     */
+    @CheckForNull
+    static String subnetOf(SpotInstanceRequest request) {
+        LaunchSpecification launchSpecification = request.launchSpecification();
+        if (launchSpecification == null) {
+            return null;
+        }
+        if (launchSpecification.subnetId() != null) {
+            return launchSpecification.subnetId();
+        }
+        if (launchSpecification.hasNetworkInterfaces()) {
+            for (InstanceNetworkInterfaceSpecification networkInterface : launchSpecification.networkInterfaces()) {
+                if (networkInterface.subnetId() != null) {
+                    return networkInterface.subnetId();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Instance type a spot request launches, {@code null} if unknown.
+     */
+    @CheckForNull
+    static String instanceTypeOf(SpotInstanceRequest request) {
+        LaunchSpecification launchSpecification = request.launchSpecification();
+        return launchSpecification == null ? null : launchSpecification.instanceTypeAsString();
+    }
+
+    static boolean isSpotCapacityError(SpotInstanceRequest request) {
+        return request.status() != null && SPOT_CAPACITY_STATUS_CODES.contains(request.status().code());
+    }
+
+    /**
+     * Chooses the subnet of the next launch of the given instance type.
+     */
+    synchronized String choose(List<String> subnetIds, @CheckForNull String instanceType) {
+        long now = clock.getAsLong();
+        List<String> candidates = new ArrayList<>();
+        for (String subnetId : subnetIds) {
+            if (stats(subnetId, instanceType).isAvailable(now)) {
+                candidates.add(subnetId);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // Every subnet is ejected, trying the one coming back first beats not launching at all
+            String soonest = subnetIds.get(0);
+            for (String subnetId : subnetIds) {
+                if (stats(subnetId, instanceType).getEjectedUntil()
+                        < stats(soonest, instanceType).getEjectedUntil()) {
+                    soonest = subnetId;
+                }
+            }
+            LOGGER.log(Level.FINE, "All subnets are ejected for {0}, using {1}", new Object[] {instanceType, soonest});
+            return soonest;
+        }
+
+        String chosen = null;
+        double best = Double.NEGATIVE_INFINITY;
+        double total = 0;
+        for (String subnetId : candidates) {
+            double weight = stats(subnetId, instanceType).score();
+            total += weight;
+            double current = currentWeights.getOrDefault(subnetId, 0.0) + weight;
+            currentWeights.put(subnetId, current);
+            if (current > best) {
+                best = current;
+                chosen = subnetId;
+            }
+        }
+        currentWeights.put(chosen, best - total);
+        // Subnets removed from the template are forgotten
+        currentWeights.keySet().retainAll(subnetIds);
+
+        Stats stats = stats(chosen, instanceType);
+        stats.onChosen(now);
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.log(Level.FINE, "Chose subnet {0} for {1}, score {2}, latency {3} ms", new Object[] {
+                chosen, instanceType, stats.score(), stats.getLatency()
+            });
+        }
+        return chosen;
+    }
+
+    @VisibleForTesting
+    static void reset() {
+        STATS.clear();
+    }
+}
@@ -0,0 +1,126 @@
+package hudson.plugins.ec2;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * Immutable lookup tables over the templates of a cloud, by description, AMI and label atom.
+ *
+ * <p>The cloud builds a new index whenever its templates change and swaps it in, so readers never lock and never see
+ * a partially built index. Lists keep the order of the templates in the cloud, and when several templates share a
+ * description the first one wins, as with a scan of the template list.
+ *
+ * <p>The templates matching a label are memoised, as the provisioner asks for them on every tick. Template labels and
+ * modes are final, so the matches stay valid for the life of the index, and are dropped with it.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2TemplateIndex {
+
+    /**
+     * Most labels whose matches are kept, the least recently used being evicted first.
+     */
+    static final int MATCH_CACHE_SIZE = Integer.getInteger("jenkins.ec2.templateMatchCacheSize", 500);
+
+    static final EC2TemplateIndex EMPTY = new EC2TemplateIndex(Collections.emptyList());
+
+    private final List<SlaveTemplate> templates;
+
+    private final Map<String, SlaveTemplate> byDescription = new HashMap<>();
+
+    private final Map<String, List<SlaveTemplate>> byAmi = new HashMap<>();
+
+    /**
+     * Built on first use, as parsing labels needs Jenkins to be up, which it may not be yet when the cloud is loaded.
+     */
+    private volatile Map<String, List<SlaveTemplate>> byLabelAtom;
+
+    /**
+     * Matching templates by label expression, {@code null} standing for jobs without label.
+     */
+    private final Map<String, List<SlaveTemplate>> matches = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, List<SlaveTemplate>> eldest) {
+            return size() > MATCH_CACHE_SIZE;
+        }
+    };
+
+    EC2TemplateIndex(List<? extends SlaveTemplate> templates) {
+        this.templates = Collections.unmodifiableList(new ArrayList<>(templates));
+        for (SlaveTemplate t : this.templates) {
+            byDescription.putIfAbsent(t.description, t);
+            byAmi.computeIfAbsent(t.getAmi(), k -> new ArrayList<>()).add(t);
+        }
+    }
+
+    List<SlaveTemplate> getTemplates() {
+        return templates;
+    }
+
+    @CheckForNull
+    SlaveTemplate getByDescription(@CheckForNull String description) {
+        return description == null ? null : byDescription.get(description);
+    }
+
+    List<SlaveTemplate> getByAmi(@CheckForNull String ami) {
+        return Collections.unmodifiableList(byAmi.getOrDefault(ami, Collections.emptyList()));
+    }
+
+    /**
+     * Templates whose labels contain the atom, whatever their mode.
+     */
+    List<SlaveTemplate> getByLabelAtom(LabelAtom atom) {
+        Map<String, List<SlaveTemplate>> index = byLabelAtom;
+        if (index == null) {
+            // Racing threads build the same map, so there is no need to lock
+            index = new HashMap<>();
+            for (SlaveTemplate t : templates) {
+                for (LabelAtom templateAtom : t.getLabelSet()) {
+                    index.computeIfAbsent(templateAtom.getName(), k -> new ArrayList<>()).add(t);
+                }
+            }
+            byLabelAtom = index;
+        }
+        return Collections.unmodifiableList(index.getOrDefault(atom.getName(), Collections.emptyList()));
+    }
+
+    /**
+     * Templates that can run builds with the label, following the template modes.
+     */
+    List<SlaveTemplate> getMatching(@CheckForNull Label label) {
+        String key = label == null ? null : label.getExpression();
+        synchronized (matches) {
+            List<SlaveTemplate> matching = matches.get(key);
+            if (matching != null) {
+                return matching;
+            }
+        }
+        // Matched outside the lock, racing threads computing the same list
+        List<SlaveTemplate> matching = new ArrayList<>();
+        for (SlaveTemplate t : label instanceof LabelAtom atom ? getByLabelAtom(atom) : templates) {
+            if (t.getMode() == Node.Mode.NORMAL) {
+                if (label == null || label.matches(t.getLabelSet())) {
+                    matching.add(t);
+                }
+            } else if (t.getMode() == Node.Mode.EXCLUSIVE) {
+                if (label != null && label.matches(t.getLabelSet())) {
+                    matching.add(t);
+                }
+            }
+        }
+        matching = Collections.unmodifiableList(matching);
+        synchronized (matches) {
+            matches.put(key, matching);
+        }
+        return matching;
+    }
+}
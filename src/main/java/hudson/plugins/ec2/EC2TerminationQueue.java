@@ -0,0 +1,298 @@
+package hudson.plugins.ec2;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.Lists;
+import hudson.model.Computer;
+import hudson.triggers.SafeTimerTask;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import org.apache.commons.lang.StringUtils;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.CancelledSpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
+
+/**
+ * Terminates the agents of one cloud in bulk.
+ *
+ * <p>{@link EC2AbstractSlave#terminate()} queues the agent here instead of running its own task. The first agent
+ * queued opens a short window for others to join, then the whole batch is handled with one
+ * {@code CancelSpotInstanceRequests}, one {@code DescribeInstances} and one {@code TerminateInstances} call per
+ * {@link #MAX_BATCH_SIZE} agents, and the agents are removed from Jenkins once EC2 is done with them. Calls failing
+ * for the batch as a whole, for instance because one of the ids is unknown to EC2, are retried one id at a time so that
+ * every agent gets its own outcome. Each agent counts down its {@code terminateScheduled} latch once it has been
+ * handled, as it did when terminating on its own.
+ */
+@Restricted(NoExternalUse.class)
+final class EC2TerminationQueue {
+    private static final Logger LOGGER = Logger.getLogger(EC2TerminationQueue.class.getName());
+
+    /**
+     * Maximum number of ids EC2 accepts in one call.
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /**
+     * How long the first termination of a batch waits for others to join, in milliseconds.
+     */
+    static final long WINDOW_MILLIS = Long.getLong("jenkins.ec2.terminationBatchWindowMillis", 2000);
+
+    private final EC2Cloud cloud;
+
+    private final long windowMillis;
+
+    private final List<EC2AbstractSlave> pending = new ArrayList<>();
+
+    private boolean flushScheduled;
+
+    @VisibleForTesting
+    EC2TerminationQueue(EC2Cloud cloud, long windowMillis) {
+        this.cloud = cloud;
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * Queues the termination of the agent. The caller is expected to have reset its {@code terminateScheduled} latch.
+     */
+    static void submit(EC2AbstractSlave node) {
+        EC2Cloud cloud = node.getCloud();
+        if (cloud == null) {
+            // Nothing can be done in EC2 without the cloud, only forget about the agent
+            Computer.threadPoolForRemoting.submit(() -> {
+                try {
+                    LOGGER.info("No cloud for EC2 agent, removing it without terminating: " + node.getNodeName());
+                    remove(List.of(node));
+                } finally {
+                    done(node);
+                }
+            });
+            return;
+        }
+        cloud.getTerminationQueue().add(node);
+    }
+
+    void add(EC2AbstractSlave node) {
+        synchronized (pending) {
+            pending.add(node);
+            if (flushScheduled) {
+                return;
+            }
+            flushScheduled = true;
+        }
+        Timer.get()
+                .schedule(
+                        new SafeTimerTask() {
+                            @Override
+                            protected void doRun() {
+                                Computer.threadPoolForRemoting.submit(EC2TerminationQueue.this::flush);
+                            }
+                        },
+                        windowMillis,
+                        TimeUnit.MILLISECONDS);
+    }
+
+    int getPendingCount() {
+        synchronized (pending) {
+            return pending.size();
+        }
+    }
+
+    /**
+     * Handles every agent queued so far.
+     */
+    void flush() {
+        List<EC2AbstractSlave> nodes;
+        synchronized (pending) {
+            nodes = new ArrayList<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+        for (List<EC2AbstractSlave> batch : Lists.partition(nodes, MAX_BATCH_SIZE)) {
+            try {
+                terminate(batch);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to terminate EC2 agents", e);
+                // Spot agents would otherwise hang around forever, see EC2SpotSlave#terminate()
+                List<EC2AbstractSlave> spotNodes = new ArrayList<>();
+                for (EC2AbstractSlave node : batch) {
+                    if (node instanceof EC2SpotSlave) {
+                        spotNodes.add(node);
+                    }
+                }
+                remove(spotNodes);
+            } finally {
+                for (EC2AbstractSlave node : batch) {
+                    done(node);
+                }
+            }
+        }
+    }
+
+    private void terminate(List<EC2AbstractSlave> batch) {
+        LOGGER.log(
+                Level.FINE, "Terminating {0} EC2 agents of {1}", new Object[] {batch.size(), cloud.getDisplayName()});
+        Ec2Client ec2 = cloud.connect();
+
+        Map<String, EC2SpotSlave> spotRequests = new LinkedHashMap<>();
+        for (EC2AbstractSlave node : batch) {
+            if (node instanceof EC2SpotSlave spotSlave && spotSlave.getSpotInstanceRequestId() != null) {
+                spotRequests.put(spotSlave.getSpotInstanceRequestId(), spotSlave);
+            }
+        }
+        Collection<String> cancelledRequests = cancelSpotRequests(ec2, spotRequests.keySet());
+        for (String cancelled : cancelledRequests) {
+            LOGGER.info("Cancelled Spot request: " + cancelled);
+            cloud.releaseCapacity(spotRequests.get(cancelled));
+        }
+        EC2SpotRequestStore.get(cloud).invalidate(cancelledRequests);
+
+        // Spot agents are removed even if their instance could not be checked or terminated, on-demand ones are kept
+        // so that the termination is attempted again
+        List<EC2AbstractSlave> removable = new ArrayList<>();
+        Map<String, EC2AbstractSlave> instances = new LinkedHashMap<>();
+        for (EC2AbstractSlave node : batch) {
+            String instanceId = node.getInstanceId();
+            if (StringUtils.isNotEmpty(instanceId)) {
+                instances.put(instanceId, node);
+            }
+            if (node instanceof EC2SpotSlave || StringUtils.isEmpty(instanceId)) {
+                removable.add(node);
+            }
+        }
+
+        Map<String, Instance> described;
+        try {
+            described = CloudHelper.describeInstances(instances.keySet(), cloud);
+        } catch (SdkException e) {
+            LOGGER.log(Level.WARNING, "Failed to check EC2 instances before terminating them: " + instances.keySet(), e);
+            remove(removable);
+            return;
+        }
+        List<String> alive = new ArrayList<>();
+        for (Map.Entry<String, EC2AbstractSlave> entry : instances.entrySet()) {
+            Instance instance = described.get(entry.getKey());
+            if (instance == null || instance.state().name() == InstanceStateName.TERMINATED) {
+                // The instance has been killed externally, so there is nothing to do in EC2
+                LOGGER.info("EC2 instance already terminated: " + entry.getKey());
+                if (!(entry.getValue() instanceof EC2SpotSlave)) {
+                    removable.add(entry.getValue());
+                }
+            } else {
+                alive.add(entry.getKey());
+            }
+        }
+
+        for (String terminated : terminateInstances(ec2, alive)) {
+            EC2AbstractSlave node = instances.get(terminated);
+            LOGGER.info("Terminated EC2 instance (terminated): " + terminated);
+            if (!(node instanceof EC2SpotSlave)) {
+                cloud.releaseCapacity(node);
+                removable.add(node);
+            }
+        }
+        EC2InstanceStateStore.get(cloud).invalidate(alive);
+
+        remove(removable);
+    }
+
+    /**
+     * Cancels the spot requests, returning those that were cancelled.
+     */
+    private static Collection<String> cancelSpotRequests(Ec2Client ec2, Collection<String> requestIds) {
+        if (requestIds.isEmpty()) {
+            return List.of();
+        }
+        try {
+            CancelSpotInstanceRequestsResponse response =
+                    ec2.cancelSpotInstanceRequests(CancelSpotInstanceRequestsRequest.builder()
+                            .spotInstanceRequestIds(requestIds)
+                            .build());
+            List<String> cancelled = new ArrayList<>();
+            for (CancelledSpotInstanceRequest request : response.cancelledSpotInstanceRequests()) {
+                cancelled.add(request.spotInstanceRequestId());
+            }
+            return cancelled;
+        } catch (AwsServiceException e) {
+            if (requestIds.size() == 1
+                    || !EC2SpotRequestStore.SPOT_REQUEST_NOT_FOUND_ERROR_CODE.equals(errorCode(e))) {
+                // Spot request is no longer valid
+                LOGGER.log(Level.WARNING, "Failed to cancel Spot requests: " + requestIds, e);
+                return List.of();
+            }
+        } catch (SdkException e) {
+            LOGGER.log(Level.WARNING, "Failed to cancel Spot requests: " + requestIds, e);
+            return List.of();
+        }
+        List<String> cancelled = new ArrayList<>();
+        for (String requestId : requestIds) {
+            cancelled.addAll(cancelSpotRequests(ec2, List.of(requestId)));
+        }
+        return cancelled;
+    }
+
+    /**
+     * Terminates the instances, returning those that were terminated.
+     */
+    private static Collection<String> terminateInstances(Ec2Client ec2, Collection<String> instanceIds) {
+        if (instanceIds.isEmpty()) {
+            return List.of();
+        }
+        try {
+            ec2.terminateInstances(
+                    TerminateInstancesRequest.builder().instanceIds(instanceIds).build());
+            return instanceIds;
+        } catch (SdkException e) {
+            if (instanceIds.size() == 1) {
+                LOGGER.log(Level.WARNING, "Failed to terminate EC2 instance: " + instanceIds, e);
+                return List.of();
+            }
+            LOGGER.log(Level.FINE, "Failed to terminate EC2 instances in bulk, retrying one by one", e);
+        }
+        List<String> terminated = new ArrayList<>();
+        for (String instanceId : instanceIds) {
+            terminated.addAll(terminateInstances(ec2, List.of(instanceId)));
+        }
+        return terminated;
+    }
+
+    private static String errorCode(AwsServiceException e) {
+        return e.awsErrorDetails() == null ? null : e.awsErrorDetails().errorCode();
+    }
+
+    /**
+     * Removes the agents from Jenkins. Each removal takes the queue lock on its own, holding it across all of them
+     * would block the scheduler while every removal is saved.
+     */
+    private static void remove(List<EC2AbstractSlave> nodes) {
+        for (EC2AbstractSlave node : nodes) {
+            try {
+                Jenkins.get().removeNode(node);
+                LOGGER.info("Removed EC2 instance from jenkins controller: " + node.getInstanceId());
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove agent: " + node.getNodeName(), e);
+            }
+        }
+    }
+
+    private static void done(EC2AbstractSlave node) {
+        synchronized (node.terminateScheduled) {
+            node.terminateScheduled.countDown();
+        }
+    }
+}
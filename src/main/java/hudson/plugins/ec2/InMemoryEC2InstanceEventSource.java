@@ -0,0 +1,40 @@
+package hudson.plugins.ec2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Event source fed programmatically, e.g. by tests or by a bridge from another notification channel.
+ *
+ * <p>Register it with {@code ExtensionList.lookup(EC2InstanceEventSource.class).add(source)}.
+ */
+public class InMemoryEC2InstanceEventSource implements EC2InstanceEventSource {
+
+    private final Queue<EC2InstanceEvent> events = new ConcurrentLinkedQueue<>();
+
+    public void offer(EC2InstanceEvent event) {
+        events.add(event);
+    }
+
+    /**
+     * Queues an EventBridge message, ignoring messages that are not instance events.
+     */
+    public void offer(String eventBridgeMessage) {
+        EC2InstanceEvent event = EC2InstanceEvent.fromEventBridge(eventBridgeMessage);
+        if (event != null) {
+            offer(event);
+        }
+    }
+
+    @Override
+    public List<EC2InstanceEvent> receive(int maxEvents) {
+        List<EC2InstanceEvent> received = new ArrayList<>();
+        EC2InstanceEvent event;
+        while (received.size() < maxEvents && (event = events.poll()) != null) {
+            received.add(event);
+        }
+        return received;
+    }
+}
@@ -25,6 +25,7 @@ package hudson.plugins.ec2;
 
 import hudson.Extension;
 import hudson.Plugin;
+import hudson.model.Computer;
 import hudson.model.Describable;
 import hudson.model.Descriptor;
 import hudson.plugins.ec2.util.MinimumInstanceChecker;
@@ -84,6 +85,7 @@ public class PluginImpl extends Plugin implements Describable<PluginImpl> {
 
         load();
 
-        MinimumInstanceChecker.checkForMinimumInstances();
+        // Provisioning the minimum instances must not hold up the startup of Jenkins
+        Computer.threadPoolForRemoting.submit(MinimumInstanceChecker::checkForMinimumInstances);
     }
 }
@@ -76,7 +76,6 @@ import java.util.Objects;
 import java.util.stream.Stream;
 import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
-import jenkins.slaves.iterators.api.NodeIterator;
 import org.apache.commons.lang.StringUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -91,7 +90,6 @@ import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.core.exception.SdkException;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.BlockDeviceMapping;
-import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsRequest;
 import software.amazon.awssdk.services.ec2.model.CreateTagsRequest;
 import software.amazon.awssdk.services.ec2.model.CreditSpecificationRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
@@ -101,7 +99,6 @@ import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeSecurityGroupsRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeSecurityGroupsResponse;
-import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeSubnetsRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeSubnetsResponse;
 import software.amazon.awssdk.services.ec2.model.DeviceType;
@@ -233,8 +230,17 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     private boolean avoidUsingOrphanedNodes;
 
+    private boolean useFleet;
+
+    private String fleetInstanceTypes;
+
     private /* lazily initialized */ DescribableList<NodeProperty<?>, NodePropertyDescriptor> nodeProperties;
 
+    private transient EC2SubnetScorer subnetScorer;
+
+    /**
+     * No longer used for the choice of the subnet, see {@link EC2SubnetScorer}, only kept in step with it.
+     */
     public int nextSubnet;
 
     public String currentSubnetId;
@@ -1612,15 +1618,18 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         return amiType.isSSHAgent() ? ((SSHData) amiType).getSlaveCommandSuffix() : "";
     }
 
-    public String chooseSubnetId() {
+    public synchronized String chooseSubnetId() {
         if (StringUtils.isBlank(subnetId)) {
             return null;
         } else {
-            String[] subnetIdList = getSubnetId().split(EC2_RESOURCE_ID_DELIMETERS);
+            List<String> subnetIdList = Arrays.asList(getSubnetId().split(EC2_RESOURCE_ID_DELIMETERS));
+            if (subnetScorer == null) {
+                subnetScorer = new EC2SubnetScorer();
+            }
 
-            // Round-robin subnet selection.
-            currentSubnetId = subnetIdList[nextSubnet];
-            nextSubnet = (nextSubnet + 1) % subnetIdList.length;
+            // Weighted by the recent launch outcomes in each subnet, round-robin while they are alike
+            currentSubnetId = subnetScorer.choose(subnetIdList, type);
+            nextSubnet = (subnetIdList.indexOf(currentSubnetId) + 1) % subnetIdList.size();
 
             return currentSubnetId;
         }
@@ -1696,6 +1705,9 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
     public void setAmi(String ami) {
         this.ami = ami;
+        if (parent != null) {
+            parent.reindexTemplates();
+        }
     }
 
     public AMITypeData getAmiType() {
@@ -1815,6 +1827,24 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         this.avoidUsingOrphanedNodes = avoidUsingOrphanedNodes;
     }
 
+    @DataBoundSetter
+    public void setUseFleet(boolean useFleet) {
+        this.useFleet = useFleet;
+    }
+
+    public boolean isUseFleet() {
+        return useFleet;
+    }
+
+    @DataBoundSetter
+    public void setFleetInstanceTypes(String fleetInstanceTypes) {
+        this.fleetInstanceTypes = Util.fixEmptyAndTrim(fleetInstanceTypes);
+    }
+
+    public String getFleetInstanceTypes() {
+        return fleetInstanceTypes;
+    }
+
     @Override
     public String toString() {
         return "SlaveTemplate{" + "description='" + description + '\'' + ", labels='" + labels + '\'' + '}';
@@ -1870,6 +1900,13 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     public List<EC2AbstractSlave> provision(int number, EnumSet<ProvisionOptions> provisionOptions)
             throws SdkException, IOException {
         final Image image = getImage();
+        if (useFleet) {
+            if (provisionOptions.contains(ProvisionOptions.ALLOW_CREATE)
+                    || provisionOptions.contains(ProvisionOptions.FORCE_CREATE)) {
+                return provisionFleet(image, number);
+            }
+            return Collections.emptyList();
+        }
         if (this.spotConfig != null) {
             if (provisionOptions.contains(ProvisionOptions.ALLOW_CREATE)
                     || provisionOptions.contains(ProvisionOptions.FORCE_CREATE)) {
@@ -1884,13 +1921,10 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
      * Safely we can pickup only instance that is not known by Jenkins at all.
      */
     private boolean checkInstance(Instance instance) {
-        for (EC2AbstractSlave node : NodeIterator.nodes(EC2AbstractSlave.class)) {
-            if ((node.getInstanceId().equals(instance.instanceId()))
-                    && (!(instance.state().name().equals(InstanceStateName.STOPPED)))) {
-                logInstanceCheck(
-                        instance, ". false - found existing corresponding Jenkins agent: " + node.getInstanceId());
-                return false;
-            }
+        EC2AbstractSlave node = EC2NodeIndex.get().getByInstanceId(instance.instanceId());
+        if (node != null && !instance.state().name().equals(InstanceStateName.STOPPED)) {
+            logInstanceCheck(instance, ". false - found existing corresponding Jenkins agent: " + node.getInstanceId());
+            return false;
         }
         logInstanceCheck(instance, " true - Instance is not connected to Jenkins");
         return true;
@@ -2163,7 +2197,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             wakeOrphansOrStoppedUp(ec2, orphansOrStopped);
 
             if (orphansOrStopped.size() == number) {
-                return toSlaves(orphansOrStopped);
+                return toSlaves(orphansOrStopped, orphansOrStopped);
             }
         }
 
@@ -2182,42 +2216,70 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             }
             riRequestBuilder.instanceMarketOptions(instanceMarketOptionsRequestBuilder.build());
             RunInstancesRequest request = riRequestBuilder.build();
+            int requested = request.maxCount();
+            long start = System.currentTimeMillis();
             try {
                 RunInstancesResponse response = ec2.runInstances(request);
                 newInstances = new ArrayList<>(response.instances());
-                
+                EC2SubnetScorer.recordSuccess(
+                        EC2SubnetScorer.subnetOf(request), type, System.currentTimeMillis() - start);
+
                 // Record successful provisioning
                 recordProvisioningEvent(request, newInstances, "SUCCESS", null, newInstances.size());
             } catch (Ec2Exception e) {
+                recordSubnetFailure(EC2SubnetScorer.subnetOf(request), e);
                 // Record failed provisioning
                 recordProvisioningEvent(request, "FAILURE", e.getMessage(), 0);
-                
-                if (fallbackSpotToOndemand
-                        && "InsufficientInstanceCapacity"
-                                .equals(e.awsErrorDetails().errorCode())) {
-                    logProvisionInfo(
-                            "There is no spot capacity available matching your request, falling back to on-demand instance.");
-                    riRequestBuilder.instanceMarketOptions(instanceMarketOptionsRequestBuilder.build());
-                    
-                    RunInstancesRequest fallbackRequest = riRequestBuilder.build();
+
+                if (!fallbackSpotToOndemand || !isInsufficientCapacity(e)) {
+                    throw e;
+                }
+                logProvisionInfo(
+                        "There is no spot capacity available matching your request, falling back to on-demand instance.");
+                newInstances = new ArrayList<>();
+            }
+
+            // With a minimum count of 1, EC2 launches as many spot instances as it has capacity for
+            int missing = requested - newInstances.size();
+            if (fallbackSpotToOndemand && missing > 0) {
+                if (!newInstances.isEmpty()) {
+                    logProvisionInfo("Only " + newInstances.size() + " of " + requested
+                            + " spot instances were launched, falling back to on-demand for the other " + missing);
+                }
+                RunInstancesRequest fallbackRequest = riRequestBuilder
+                        .instanceMarketOptions((InstanceMarketOptionsRequest) null)
+                        .maxCount(missing)
+                        .build();
+                try {
                     RunInstancesResponse fallbackResponse = ec2.runInstances(fallbackRequest);
-                    newInstances = new ArrayList<>(fallbackResponse.instances());
-                    
+                    List<Instance> fallbackInstances = fallbackResponse.instances();
+                    newInstances.addAll(fallbackInstances);
+
                     // Record successful fallback provisioning
-                    recordProvisioningEvent(fallbackRequest, newInstances, "SUCCESS_FALLBACK", null, newInstances.size());
-                } else {
-                    throw e;
+                    recordProvisioningEvent(
+                            fallbackRequest, fallbackInstances, "SUCCESS_FALLBACK", null, fallbackInstances.size());
+                } catch (Ec2Exception e) {
+                    recordProvisioningEvent(fallbackRequest, "FAILURE", e.getMessage(), 0);
+                    if (newInstances.isEmpty()) {
+                        throw e;
+                    }
+                    // The spot instances already launched are kept, the rest is left to the next round
+                    logProvisionInfo("Failed to launch " + missing + " on-demand instances: " + e.getMessage());
                 }
             }
         } else {
             RunInstancesRequest request = riRequestBuilder.build();
+            long start = System.currentTimeMillis();
             try {
                 RunInstancesResponse response = ec2.runInstances(request);
                 newInstances = new ArrayList<>(response.instances());
+                EC2SubnetScorer.recordSuccess(
+                        EC2SubnetScorer.subnetOf(request), type, System.currentTimeMillis() - start);
                 
                 // Record successful provisioning
                 recordProvisioningEvent(request, newInstances, "SUCCESS", null, newInstances.size());
             } catch (Ec2Exception e) {
+                recordSubnetFailure(EC2SubnetScorer.subnetOf(request), e);
                 // Record failed provisioning
                 recordProvisioningEvent(request, "FAILURE", e.getMessage(), 0);
                 
@@ -2235,7 +2297,91 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
 
         newInstances.addAll(orphansOrStopped);
 
-        return toSlaves(newInstances);
+        return toSlaves(newInstances, orphansOrStopped);
+    }
+
+    /**
+     * Provisions agents with one EC2 Fleet call over the instance types and subnets of the template, after starting
+     * stopped or reusing orphaned instances as on-demand provisioning does. Spot instances launched this way are
+     * handled like on-demand ones, as when spot instances are launched without a bid price.
+     */
+    private List<EC2AbstractSlave> provisionFleet(Image image, int number) throws IOException {
+        Ec2Client ec2 = getParent().connect();
+
+        logProvisionInfo("Considering launching with a fleet");
+        HashMap<RunInstancesRequest, List<Filter>> runInstancesRequestFilterMap =
+                makeRunInstancesRequestAndFilters(image, number, ec2);
+        if (runInstancesRequestFilterMap == null) {
+            return Collections.emptyList();
+        }
+        Map.Entry<RunInstancesRequest, List<Filter>> entry =
+                runInstancesRequestFilterMap.entrySet().iterator().next();
+        RunInstancesRequest riRequest = entry.getKey();
+
+        List<Instance> orphansOrStopped = new ArrayList<>();
+        if (!avoidUsingOrphanedNodes) {
+            DescribeInstancesResponse diResult = ec2.describeInstances(
+                    DescribeInstancesRequest.builder().filters(entry.getValue()).build());
+            orphansOrStopped = findOrphansOrStopped(diResult, number);
+            wakeOrphansOrStoppedUp(ec2, orphansOrStopped);
+            if (orphansOrStopped.size() == number) {
+                return toSlaves(orphansOrStopped, orphansOrStopped);
+            }
+        }
+
+        List<String> instanceTypes = new ArrayList<>();
+        instanceTypes.add(type);
+        for (String fleetType : Util.tokenize(Util.fixNull(fleetInstanceTypes), " ,;")) {
+            if (!instanceTypes.contains(fleetType)) {
+                instanceTypes.add(fleetType);
+            }
+        }
+        List<String> subnetIds = StringUtils.isBlank(subnetId)
+                ? Collections.emptyList()
+                : Arrays.asList(subnetId.trim().split(EC2_RESOURCE_ID_DELIMETERS));
+        boolean spot = spotConfig != null;
+        String maxSpotPrice = spot && spotConfig.useBidPrice ? getSpotMaxBidPrice() : null;
+        int requested = number - orphansOrStopped.size();
+
+        RunInstancesRequest request = riRequest.toBuilder().maxCount(requested).build();
+        List<Instance> newInstances;
+        try {
+            newInstances = new ArrayList<>(EC2FleetLauncher.launch(
+                    ec2,
+                    EC2FleetLauncher.launchTemplateName(getParent().name, description),
+                    request,
+                    instanceTypes,
+                    subnetIds,
+                    spot,
+                    maxSpotPrice,
+                    requested));
+            recordProvisioningEvent(request, newInstances, "SUCCESS", null, newInstances.size());
+        } catch (SdkException e) {
+            recordProvisioningEvent(request, "FAILURE", e.getMessage(), 0);
+            logProvisionInfo("Jenkins attempted to launch " + requested
+                    + " instances with a fleet and received this exception: " + e.getMessage());
+            throw e;
+        }
+
+        newInstances.addAll(orphansOrStopped);
+        return toSlaves(newInstances, orphansOrStopped);
+    }
+
+    /**
+     * Launches on-demand instances in place of spot requests EC2 has no capacity for.
+     */
+    List<EC2AbstractSlave> provisionOndemandFallback(int number) throws IOException {
+        return provisionOndemand(getImage(), number, EnumSet.of(ProvisionOptions.ALLOW_CREATE));
+    }
+
+    private void recordSubnetFailure(String subnet, Ec2Exception e) {
+        if (e.awsErrorDetails() != null) {
+            EC2SubnetScorer.recordFailure(subnet, type, e.awsErrorDetails().errorCode());
+        }
+    }
+
+    private static boolean isInsufficientCapacity(Ec2Exception e) {
+        return e.awsErrorDetails() != null && "InsufficientInstanceCapacity".equals(e.awsErrorDetails().errorCode());
     }
 
     void wakeOrphansOrStoppedUp(Ec2Client ec2, List<Instance> orphansOrStopped) {
@@ -2257,6 +2403,9 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                     StartInstancesRequest.builder().instanceIds(instances).build();
             StartInstancesResponse siResult = ec2.startInstances(siRequest);
             logProvisionInfo("Result of starting stopped instances:" + siResult);
+            if (parent != null) {
+                EC2InstanceStateStore.get(parent).invalidate(instances);
+            }
         }
     }
 
@@ -2274,6 +2423,26 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
         }
     }
 
+    /**
+     * Same as {@link #toSlaves(List)}, the agents of the {@code existing} instances that were already pending or
+     * running, and thus adopted rather than launched, being marked as such. Stopped instances being woken up are
+     * launched as far as the instance caps are concerned.
+     */
+    private List<EC2AbstractSlave> toSlaves(List<Instance> instances, List<Instance> existing) throws IOException {
+        List<EC2AbstractSlave> slaves = toSlaves(instances);
+        Set<String> existingIds = new HashSet<>();
+        for (Instance instance : existing) {
+            InstanceStateName state = instance.state().name();
+            if (state == InstanceStateName.PENDING || state == InstanceStateName.RUNNING) {
+                existingIds.add(instance.instanceId());
+            }
+        }
+        for (EC2AbstractSlave slave : slaves) {
+            slave.setExistingInstance(existingIds.contains(slave.instanceId));
+        }
+        return slaves;
+    }
+
     List<Instance> findOrphansOrStopped(DescribeInstancesResponse diResult, int number) {
         List<Instance> orphansOrStopped = new ArrayList<>();
         int count = 0;
@@ -2448,7 +2617,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
     private List<EC2AbstractSlave> provisionSpot(Image image, int number, EnumSet<ProvisionOptions> provisionOptions)
             throws IOException {
         if (!spotConfig.useBidPrice) {
-            return provisionOndemand(image, 1, provisionOptions, true, spotConfig.getFallbackToOndemand());
+            return provisionOndemand(image, number, provisionOptions, true, spotConfig.getFallbackToOndemand());
         }
 
         Ec2Client ec2 = getParent().connect();
@@ -2532,6 +2701,11 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
             launchSpecificationBuilder.blockDeviceMappings(getBlockDeviceMappings(image));
 
             spotRequestBuilder.launchSpecification(launchSpecificationBuilder.build());
+            // Tagged at creation, so that the requests are never seen without their tags
+            spotRequestBuilder.tagSpecifications(TagSpecification.builder()
+                    .tags(instTags)
+                    .resourceType(ResourceType.SPOT_INSTANCES_REQUEST)
+                    .build());
 
             if (getSpotBlockReservationDuration() != 0) {
                 spotRequestBuilder.blockDurationMinutes(getSpotBlockReservationDuration() * 60);
@@ -2546,6 +2720,7 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 // Record successful spot provisioning
                 recordSpotProvisioningEvent(spotRequest, "SUCCESS", null, reqResult.spotInstanceRequests().size());
             } catch (Ec2Exception e) {
+                recordSubnetFailure(subnetId, e);
                 RequestSpotInstancesRequest spotRequest = spotRequestBuilder.build();
                 // Record failed spot provisioning
                 recordSpotProvisioningEvent(spotRequest, "FAILURE", e.getMessage(), 0);
@@ -2566,56 +2741,37 @@ public class SlaveTemplate implements Describable<SlaveTemplate> {
                 throw SdkException.builder().message("No spot instances found").build();
             }
 
-            List<EC2AbstractSlave> slaves = new ArrayList<>(reqInstances.size());
+            List<String> untagged = new ArrayList<>();
             for (SpotInstanceRequest spotInstReq : reqInstances) {
                 if (spotInstReq == null) {
                     throw SdkException.builder()
                             .message("Spot instance request is null")
                             .build();
                 }
-                String slaveName = spotInstReq.spotInstanceRequestId();
-
-                if (spotConfig.getFallbackToOndemand()) {
-                    for (int i = 0; i < 2 && spotInstReq.status().code().equals("pending-evaluation"); i++) {
-                        LOGGER.info("Spot request " + slaveName + " is still pending evaluation");
-                        Thread.sleep(5000);
-                        LOGGER.info("Fetching info about spot request " + slaveName);
-                        DescribeSpotInstanceRequestsRequest describeRequest =
-                                DescribeSpotInstanceRequestsRequest.builder()
-                                        .spotInstanceRequestIds(slaveName)
-                                        .build();
-                        spotInstReq = ec2.describeSpotInstanceRequests(describeRequest)
-                                .spotInstanceRequests()
-                                .get(0);
-                    }
-
-                    List<String> spotRequestBadCodes =
-                            Arrays.asList("capacity-not-available", "capacity-oversubscribed", "price-too-low");
-                    if (spotRequestBadCodes.contains(spotInstReq.status().code())) {
-                        LOGGER.info(
-                                "There is no spot capacity available matching your request, falling back to on-demand instance.");
-                        List<String> requestsToCancel = reqInstances.stream()
-                                .map(SpotInstanceRequest::spotInstanceRequestId)
-                                .collect(Collectors.toList());
-                        CancelSpotInstanceRequestsRequest cancelRequest = CancelSpotInstanceRequestsRequest.builder()
-                                .spotInstanceRequestIds(requestsToCancel)
-                                .build();
-                        ec2.cancelSpotInstanceRequests(cancelRequest);
-                        return provisionOndemand(image, number, provisionOptions);
-                    }
+                if (!spotInstReq.hasTags() || spotInstReq.tags().isEmpty()) {
+                    untagged.add(spotInstReq.spotInstanceRequestId());
                 }
-
-                // Now that we have our Spot request, we can set tags on it
+            }
+            if (!untagged.isEmpty()) {
+                // EC2 did not apply the tag specifications, tag all the requests in one go instead
                 updateRemoteTags(
-                        ec2, instTags, "InvalidSpotInstanceRequestID.NotFound", spotInstReq.spotInstanceRequestId());
+                        ec2, instTags, "InvalidSpotInstanceRequestID.NotFound", untagged.toArray(new String[0]));
+            }
 
+            List<EC2AbstractSlave> slaves = new ArrayList<>(reqInstances.size());
+            for (SpotInstanceRequest spotInstReq : reqInstances) {
                 // That was a remote request - we should also update our local instance data
                 SpotInstanceRequest.Builder spotInstReqBuilder = spotInstReq.toBuilder();
                 spotInstReqBuilder.tags(instTags);
 
                 LOGGER.info("Spot instance id in provision: " + spotInstReq.spotInstanceRequestId());
 
-                slaves.add(newSpotSlave(spotInstReqBuilder.build()));
+                EC2SpotSlave slave = newSpotSlave(spotInstReqBuilder.build());
+                if (spotConfig.getFallbackToOndemand()) {
+                    // Whether EC2 has capacity for the request is decided in the background
+                    getParent().getSpotFallbackEvaluator().watch(this, slave, spotInstReq);
+                }
+                slaves.add(slave);
             }
 
             return slaves;
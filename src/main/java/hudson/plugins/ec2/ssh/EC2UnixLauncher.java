@@ -41,6 +41,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.attribute.PosixFilePermission;
 import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.model.Jenkins;
@@ -95,18 +96,12 @@ public class EC2UnixLauncher extends EC2SSHLauncher {
         }
 
         if (node instanceof EC2Readiness readinessNode) {
-            int tries = readinessTries;
-
-            while (tries-- > 0) {
-                if (readinessNode.isReady()) {
-                    break;
-                }
-
+            if (!readinessNode.isReady()) {
                 logInfo(
                         computer,
                         listener,
                         "Node still not ready. Current status: " + readinessNode.getEc2ReadinessStatus());
-                Thread.sleep(readinessSleepMs);
+                readinessNode.awaitReady((long) readinessTries * readinessSleepMs, TimeUnit.MILLISECONDS);
             }
 
             if (!readinessNode.isReady()) {
@@ -1,10 +1,12 @@
 package hudson.plugins.ec2.util;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import hudson.ExtensionList;
 import hudson.ExtensionPoint;
 import java.net.URI;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 
 public interface AmazonEC2Factory extends ExtensionPoint {
@@ -14,4 +16,14 @@ public interface AmazonEC2Factory extends ExtensionPoint {
     }
 
     Ec2Client connect(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint);
+
+    /**
+     * Creates a non-blocking client, used by sweeps that issue many calls at once.
+     *
+     * @return {@code null} if this factory has no async support, in which case callers use {@link #connect}.
+     */
+    @CheckForNull
+    default Ec2AsyncClient connectAsync(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        return null;
+    }
 }
@@ -4,19 +4,43 @@ import hudson.Extension;
 import hudson.plugins.ec2.EC2Cloud;
 import java.net.URI;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.client.config.ClientOverrideConfiguration;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClientBuilder;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.Ec2ClientBuilder;
 
 @Extension
 public class AmazonEC2FactoryImpl implements AmazonEC2Factory {
-
     @Override
     public Ec2Client connect(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        EC2HttpTransports.Transport transport = EC2HttpTransports.get(region, endpoint);
         Ec2ClientBuilder ec2ClientBuilder = Ec2Client.builder()
                 .credentialsProvider(credentialsProvider)
-                .httpClient(EC2Cloud.getHttpClient())
-                .overrideConfiguration(EC2Cloud.createClientOverrideConfiguration());
+                .httpClient(transport.getHttpClient())
+                .overrideConfiguration(createOverrideConfiguration(credentialsProvider, region, endpoint).toBuilder()
+                        .addMetricPublisher(transport)
+                        .build());
+        if (region != null) {
+            ec2ClientBuilder.region(region);
+        }
+        if (endpoint != null) {
+            ec2ClientBuilder.endpointOverride(endpoint);
+        }
+        return ec2ClientBuilder.build();
+    }
+
+    @Override
+    public Ec2AsyncClient connectAsync(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        Ec2AsyncClientBuilder ec2ClientBuilder = Ec2AsyncClient.builder()
+                .credentialsProvider(credentialsProvider)
+                .httpClient(EC2HttpTransports.getAsyncHttpClient())
+                .overrideConfiguration(EC2Cloud.createClientOverrideConfiguration().toBuilder()
+                        // Interceptors run on SDK threads here, which must not wait for a token
+                        .addExecutionInterceptor(
+                                EC2ApiRateLimiter.get(credentialsProvider, region, endpoint).nonBlocking())
+                        .build());
         if (region != null) {
             ec2ClientBuilder.region(region);
         }
@@ -25,4 +49,11 @@ public class AmazonEC2FactoryImpl implements AmazonEC2Factory {
         }
         return ec2ClientBuilder.build();
     }
+
+    private static ClientOverrideConfiguration createOverrideConfiguration(
+            AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        return EC2Cloud.createClientOverrideConfiguration().toBuilder()
+                .addExecutionInterceptor(EC2ApiRateLimiter.get(credentialsProvider, region, endpoint))
+                .build();
+    }
 }
@@ -0,0 +1,351 @@
+package hudson.plugins.ec2.util;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.net.URI;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+import software.amazon.awssdk.core.interceptor.SdkExecutionAttribute;
+import software.amazon.awssdk.regions.Region;
+
+/**
+ * Client side rate limiter for the EC2 API, installed on every {@code Ec2Client} built by {@link AmazonEC2FactoryImpl}.
+ *
+ * <p>EC2 throttles each account and region with token buckets, one per category of action: describe calls, mutating
+ * calls, and resource intensive calls such as {@code RunInstances}. This limiter keeps one bucket per category as
+ * well, shared by all clients of the same account talking to the same region and endpoint, so that provisioning,
+ * monitoring, cleanup and UI calls stop retrying independently against an API that already throttles them. The
+ * account is told by credentials providers implementing {@link AccountScoped}; clients of other providers share the
+ * buckets of their region and endpoint.
+ *
+ * <p>Each bucket adapts its refill rate (AIMD): it is halved whenever EC2 answers with a throttling error, and grows
+ * back slowly with every successful call. Calls made in a {@link #prioritize()} scope (provisioning) may use the whole
+ * bucket and are served first, while background calls leave a reserve for them.
+ *
+ * <p>Async clients run interceptors on SDK threads, which must never block. They get {@link #nonBlocking()} instead,
+ * which takes a token without waiting for one, leaving the bucket in debt that blocking callers then wait out.
+ */
+@Restricted(NoExternalUse.class)
+public final class EC2ApiRateLimiter implements ExecutionInterceptor {
+    private static final Logger LOGGER = Logger.getLogger(EC2ApiRateLimiter.class.getName());
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("jenkins.ec2.rateLimit.enabled", "true"));
+
+    /**
+     * Share of each bucket kept for prioritized calls.
+     */
+    static final double BACKGROUND_RESERVE =
+            Double.parseDouble(System.getProperty("jenkins.ec2.rateLimit.backgroundReserve", "0.2"));
+
+    /**
+     * Lowest refill rate throttling can bring a bucket to, as a share of its configured rate.
+     */
+    private static final double MIN_RATE_FACTOR = 0.05;
+
+    /**
+     * Share of the configured rate regained with each successful call.
+     */
+    private static final double INCREASE_FACTOR = 0.01;
+
+    private static final Map<String, EC2ApiRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private static final ThreadLocal<Boolean> PRIORITY = ThreadLocal.withInitial(() -> Boolean.FALSE);
+
+    /**
+     * Actions EC2 rate limits as resource intensive.
+     */
+    private static final Set<String> RESOURCE_INTENSIVE_ACTIONS =
+            Set.of("RunInstances", "RequestSpotInstances", "CreateFleet", "StartInstances");
+
+    public enum Category {
+        DESCRIBE(100, 20),
+        MUTATE(200, 5),
+        RUN_INSTANCES(50, 5);
+
+        final double capacity;
+        final double rate;
+
+        Category(int capacity, int rate) {
+            String prefix = "jenkins.ec2.rateLimit." + name().toLowerCase() + ".";
+            this.capacity = Integer.getInteger(prefix + "capacity", capacity);
+            this.rate = Integer.getInteger(prefix + "refillPerSecond", rate);
+        }
+
+        static Category of(String operationName) {
+            if (operationName == null) {
+                return MUTATE;
+            }
+            if (RESOURCE_INTENSIVE_ACTIONS.contains(operationName)) {
+                return RUN_INSTANCES;
+            }
+            if (operationName.startsWith("Describe")
+                    || operationName.startsWith("Get")
+                    || operationName.startsWith("List")) {
+                return DESCRIBE;
+            }
+            return MUTATE;
+        }
+    }
+
+    /**
+     * Restores the previous priority of the thread when closed.
+     */
+    public interface Scope extends AutoCloseable {
+        @Override
+        void close();
+    }
+
+    private static final class Bucket {
+        final Category category;
+        final double minRate;
+        double rate;
+        double tokens;
+        long lastRefill;
+        int priorityWaiters;
+
+        Bucket(Category category, long now) {
+            this.category = category;
+            this.minRate = Math.max(category.rate * MIN_RATE_FACTOR, 0.1);
+            this.rate = category.rate;
+            this.tokens = category.capacity;
+            this.lastRefill = now;
+        }
+
+        void refill(long now) {
+            tokens = Math.min(category.capacity, tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+        }
+    }
+
+    private final Map<Category, Bucket> buckets = new EnumMap<>(Category.class);
+
+    private final LongSupplier nanoClock;
+
+    private final AtomicLong throttled = new AtomicLong();
+
+    private final AtomicLong delayed = new AtomicLong();
+
+    private final ExecutionInterceptor nonBlocking = new ExecutionInterceptor() {
+        @Override
+        public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+            if (ENABLED) {
+                charge(Category.of(executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME)));
+            }
+        }
+
+        @Override
+        public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+            EC2ApiRateLimiter.this.afterTransmission(context, executionAttributes);
+        }
+    };
+
+    @VisibleForTesting
+    EC2ApiRateLimiter(LongSupplier nanoClock) {
+        this.nanoClock = nanoClock;
+        long now = nanoClock.getAsLong();
+        for (Category c : Category.values()) {
+            buckets.put(c, new Bucket(c, now));
+        }
+    }
+
+    /**
+     * Returns the limiter shared by all clients of the given account, region and endpoint.
+     */
+    public static EC2ApiRateLimiter get(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        String account = credentialsProvider instanceof AccountScoped scoped ? scoped.getAccountKey() : null;
+        String key = account + "|" + region + "|" + endpoint;
+        return LIMITERS.computeIfAbsent(key, k -> new EC2ApiRateLimiter(System::nanoTime));
+    }
+
+    /**
+     * Credentials provider knowing which AWS account its clients act for, so that clients of different accounts do
+     * not share buckets.
+     */
+    public interface AccountScoped {
+        /**
+         * Identifies the account, or {@code null} if unknown. Providers acting for the same account should return the
+         * same key, so that their clients share buckets as EC2 does.
+         */
+        @CheckForNull
+        String getAccountKey();
+    }
+
+    /**
+     * Interceptor sharing the buckets of this limiter without ever blocking, for async clients.
+     */
+    public ExecutionInterceptor nonBlocking() {
+        return nonBlocking;
+    }
+
+    /**
+     * Gives EC2 calls made by the current thread priority over background calls, until the returned scope is closed.
+     */
+    public static Scope prioritize() {
+        Boolean previous = PRIORITY.get();
+        PRIORITY.set(Boolean.TRUE);
+        return () -> PRIORITY.set(previous);
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        if (!ENABLED) {
+            return;
+        }
+        // Called for every attempt, retries included, as each one costs EC2 request tokens
+        Category category = Category.of(executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME));
+        try {
+            acquire(category, PRIORITY.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw SdkClientException.builder()
+                    .message("Interrupted while waiting for the EC2 API rate limiter")
+                    .cause(e)
+                    .build();
+        }
+    }
+
+    @Override
+    public void afterTransmission(Context.AfterTransmission context, ExecutionAttributes executionAttributes) {
+        if (!ENABLED) {
+            return;
+        }
+        Category category = Category.of(executionAttributes.getAttribute(SdkExecutionAttribute.OPERATION_NAME));
+        int status = context.httpResponse().statusCode();
+        if (status == 503 || status == 429) {
+            // RequestLimitExceeded
+            onThrottled(category);
+        } else if (status < 400) {
+            onSuccess(category);
+        }
+    }
+
+    /**
+     * Blocks until a token of the given category is available.
+     */
+    void acquire(Category category, boolean priority) throws InterruptedException {
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            if (tryAcquire(b, priority)) {
+                return;
+            }
+            delayed.incrementAndGet();
+            if (priority) {
+                b.priorityWaiters++;
+            }
+            try {
+                while (!tryAcquire(b, priority)) {
+                    double missing = 1 + (priority ? 0 : category.capacity * BACKGROUND_RESERVE) - b.tokens;
+                    long waitMillis = Math.max(1, (long) Math.ceil(Math.max(missing, 0) / b.rate * 1000));
+                    b.wait(waitMillis);
+                }
+            } finally {
+                if (priority) {
+                    b.priorityWaiters--;
+                    b.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes a token of the given category if one is available to a caller of that priority.
+     */
+    boolean tryAcquire(Category category, boolean priority) {
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            return tryAcquire(b, priority);
+        }
+    }
+
+    private boolean tryAcquire(Bucket b, boolean priority) {
+        b.refill(nanoClock.getAsLong());
+        if (!priority && b.priorityWaiters > 0) {
+            return false;
+        }
+        double floor = priority ? 0 : b.category.capacity * BACKGROUND_RESERVE;
+        if (b.tokens >= 1 + floor) {
+            b.tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes a token of the given category right away, even if none is available.
+     */
+    void charge(Category category) {
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            b.refill(nanoClock.getAsLong());
+            // The debt is bounded, so that blocking callers wait at most as long as refilling a whole bucket takes
+            b.tokens = Math.max(-b.category.capacity, b.tokens - 1);
+        }
+    }
+
+    void onThrottled(Category category) {
+        throttled.incrementAndGet();
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            b.refill(nanoClock.getAsLong());
+            b.rate = Math.max(b.minRate, b.rate / 2);
+            // Stop the burst that got us throttled
+            b.tokens = Math.min(b.tokens, 0);
+            LOGGER.log(
+                    Level.FINE,
+                    "EC2 throttled a {0} call, lowering the rate to {1}/s",
+                    new Object[] {category, b.rate});
+        }
+    }
+
+    void onSuccess(Category category) {
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            if (b.rate < category.rate) {
+                b.refill(nanoClock.getAsLong());
+                b.rate = Math.min(category.rate, b.rate + category.rate * INCREASE_FACTOR);
+            }
+        }
+    }
+
+    /**
+     * Current refill rate of the given category, in calls per second.
+     */
+    public double getRate(Category category) {
+        Bucket b = buckets.get(category);
+        synchronized (b) {
+            return b.rate;
+        }
+    }
+
+    /**
+     * Number of calls EC2 answered with a throttling error.
+     */
+    public long getThrottledCount() {
+        return throttled.get();
+    }
+
+    /**
+     * Number of calls that had to wait for a token.
+     */
+    public long getDelayedCount() {
+        return delayed.get();
+    }
+
+    @Override
+    public String toString() {
+        return "EC2ApiRateLimiter{throttled=" + throttled.get() + ", delayed=" + delayed.get() + "}";
+    }
+}
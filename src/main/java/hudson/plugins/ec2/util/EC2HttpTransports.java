@@ -0,0 +1,258 @@
+package hudson.plugins.ec2.util;
+
+import hudson.ProxyConfiguration;
+import hudson.util.Secret;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.async.SdkAsyncHttpClient;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+import software.amazon.awssdk.regions.Region;
+
+/**
+ * Pooled HTTP transports shared by every AWS client of the plugin.
+ *
+ * <p>Clients talking to the same region or endpoint through the same proxy share one connection pool, whichever cloud
+ * they belong to, so that reconnecting a cloud or provisioning in bursts reuses warm TLS connections instead of opening
+ * new ones. The pool is tuned with system properties, and every transport publishes its utilisation as gauges.
+ */
+@Restricted(NoExternalUse.class)
+public final class EC2HttpTransports {
+    private static final Logger LOGGER = Logger.getLogger(EC2HttpTransports.class.getName());
+
+    private static final String PREFIX = "jenkins.ec2.http.";
+
+    /**
+     * Maximum number of open connections per transport. The SDK default is 50.
+     */
+    static final int MAX_CONNECTIONS = Integer.getInteger(PREFIX + "maxConnections", 100);
+
+    /**
+     * How long a connection may be reused at all, so that DNS changes of the endpoint are eventually picked up.
+     */
+    static final Duration CONNECTION_TTL = Duration.ofSeconds(Long.getLong(PREFIX + "connectionTtlSeconds", 300));
+
+    /**
+     * How long a connection may stay idle in the pool before it is reaped.
+     */
+    static final Duration MAX_IDLE = Duration.ofSeconds(Long.getLong(PREFIX + "maxIdleSeconds", 60));
+
+    /**
+     * How long a call waits for a connection when the pool is exhausted.
+     */
+    static final Duration ACQUISITION_TIMEOUT =
+            Duration.ofSeconds(Long.getLong(PREFIX + "acquisitionTimeoutSeconds", 10));
+
+    static final boolean TCP_KEEP_ALIVE = Boolean.parseBoolean(System.getProperty(PREFIX + "tcpKeepAlive", "true"));
+
+    static final boolean IDLE_REAPER = Boolean.parseBoolean(System.getProperty(PREFIX + "idleReaper", "true"));
+
+    private static final Map<String, Transport> TRANSPORTS = new ConcurrentHashMap<>();
+
+    private static final Map<String, SdkAsyncHttpClient> ASYNC_HTTP_CLIENTS = new ConcurrentHashMap<>();
+
+    private EC2HttpTransports() {}
+
+    /**
+     * A shared pool, together with the gauges of its utilisation. Register it as a {@link MetricPublisher} of the
+     * clients using it to keep the gauges up to date.
+     */
+    public static final class Transport implements MetricPublisher {
+        private final String name;
+        private final SdkHttpClient httpClient;
+        private final AtomicInteger leased = new AtomicInteger();
+        private final AtomicInteger available = new AtomicInteger();
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicInteger maxLeased = new AtomicInteger();
+
+        Transport(String name, SdkHttpClient httpClient) {
+            this.name = name;
+            this.httpClient = httpClient;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public SdkHttpClient getHttpClient() {
+            return httpClient;
+        }
+
+        /**
+         * Connections in use, as of the last call.
+         */
+        public int getLeasedConnections() {
+            return leased.get();
+        }
+
+        /**
+         * Idle connections ready for reuse, as of the last call.
+         */
+        public int getAvailableConnections() {
+            return available.get();
+        }
+
+        /**
+         * Calls waiting for a connection, as of the last call. Anything above zero means the pool is exhausted.
+         */
+        public int getPendingAcquires() {
+            return pending.get();
+        }
+
+        /**
+         * Highest number of connections in use seen so far.
+         */
+        public int getMaxLeasedConnections() {
+            return maxLeased.get();
+        }
+
+        /**
+         * Share of the pool in use, as of the last call.
+         */
+        public double getUtilisation() {
+            int max = MAX_CONNECTIONS;
+            return max > 0 ? (double) leased.get() / max : 0;
+        }
+
+        @Override
+        public void publish(MetricCollection metrics) {
+            List<MetricCollection> todo = new ArrayList<>();
+            todo.add(metrics);
+            while (!todo.isEmpty()) {
+                MetricCollection collection = todo.remove(todo.size() - 1);
+                last(collection.metricValues(HttpMetric.LEASED_CONCURRENCY), leased);
+                last(collection.metricValues(HttpMetric.AVAILABLE_CONCURRENCY), available);
+                last(collection.metricValues(HttpMetric.PENDING_CONCURRENCY_ACQUIRES), pending);
+                collection.children().forEach(todo::add);
+            }
+            maxLeased.accumulateAndGet(leased.get(), Math::max);
+        }
+
+        private static void last(List<Integer> values, AtomicInteger gauge) {
+            if (!values.isEmpty()) {
+                gauge.set(values.get(values.size() - 1));
+            }
+        }
+
+        @Override
+        public void close() {
+            // Shared, lives as long as Jenkins
+        }
+
+        @Override
+        public String toString() {
+            return name + "{leased=" + leased.get() + ", available=" + available.get() + ", pending=" + pending.get()
+                    + ", maxLeased=" + maxLeased.get() + "}";
+        }
+    }
+
+    /**
+     * Returns the transport shared by clients of the given region and endpoint, through the current Jenkins proxy.
+     */
+    public static Transport get(Region region, URI endpoint) {
+        ProxyConfiguration proxy = getProxy();
+        String target = endpoint != null ? endpoint.toString() : String.valueOf(region);
+        String key = proxyKey(proxy) + "|" + target;
+        ProxyConfiguration p = proxy;
+        return TRANSPORTS.computeIfAbsent(key, k -> {
+            LOGGER.log(Level.FINE, "Creating HTTP transport for {0}", target);
+            return new Transport(target, createHttpClient(p));
+        });
+    }
+
+    /**
+     * Returns the non-blocking HTTP client shared by every async client, through the current Jenkins proxy. Its event
+     * loop and connection pools serve all regions and endpoints at once.
+     */
+    public static SdkAsyncHttpClient getAsyncHttpClient() {
+        ProxyConfiguration proxy = getProxy();
+        return ASYNC_HTTP_CLIENTS.computeIfAbsent(proxyKey(proxy), k -> {
+            LOGGER.log(Level.FINE, "Creating non-blocking HTTP client");
+            return createAsyncHttpClient(proxy);
+        });
+    }
+
+    private static ProxyConfiguration getProxy() {
+        Jenkins instance = Jenkins.getInstanceOrNull();
+        ProxyConfiguration proxy = instance != null ? instance.proxy : null;
+        if (proxy == null || proxy.name == null || proxy.name.isEmpty()) {
+            return null;
+        }
+        return proxy;
+    }
+
+    /**
+     * All transports created so far, for monitoring.
+     */
+    public static List<Transport> getTransports() {
+        return new ArrayList<>(TRANSPORTS.values());
+    }
+
+    private static String proxyKey(ProxyConfiguration proxy) {
+        if (proxy == null) {
+            return "direct";
+        }
+        // Credentials are part of the key so that changing them creates a new pool, but only as a hash
+        return proxy.name + ":" + proxy.port + ":" + proxy.getUserName() + ":"
+                + Objects.hashCode(Secret.toString(proxy.getSecretPassword()));
+    }
+
+    private static SdkHttpClient createHttpClient(ProxyConfiguration proxy) {
+        ApacheHttpClient.Builder builder = ApacheHttpClient.builder()
+                .maxConnections(MAX_CONNECTIONS)
+                .connectionTimeToLive(CONNECTION_TTL)
+                .connectionMaxIdleTime(MAX_IDLE)
+                .connectionAcquisitionTimeout(ACQUISITION_TIMEOUT)
+                .tcpKeepAlive(TCP_KEEP_ALIVE)
+                .useIdleConnectionReaper(IDLE_REAPER);
+        if (proxy != null) {
+            software.amazon.awssdk.http.apache.ProxyConfiguration.Builder proxyConfiguration =
+                    software.amazon.awssdk.http.apache.ProxyConfiguration.builder()
+                            .endpoint(URI.create(String.format("http://%s:%s", proxy.name, proxy.port)));
+            if (proxy.getUserName() != null) {
+                proxyConfiguration.username(proxy.getUserName());
+                proxyConfiguration.password(Secret.toString(proxy.getSecretPassword()));
+            }
+            builder.proxyConfiguration(proxyConfiguration.build());
+        }
+        return builder.build();
+    }
+
+    private static SdkAsyncHttpClient createAsyncHttpClient(ProxyConfiguration proxy) {
+        NettyNioAsyncHttpClient.Builder builder = NettyNioAsyncHttpClient.builder()
+                .maxConcurrency(MAX_CONNECTIONS)
+                .connectionTimeToLive(CONNECTION_TTL)
+                .connectionMaxIdleTime(MAX_IDLE)
+                .connectionAcquisitionTimeout(ACQUISITION_TIMEOUT)
+                .tcpKeepAlive(TCP_KEEP_ALIVE)
+                .useIdleConnectionReaper(IDLE_REAPER);
+        if (proxy != null) {
+            software.amazon.awssdk.http.nio.netty.ProxyConfiguration.Builder proxyConfiguration =
+                    software.amazon.awssdk.http.nio.netty.ProxyConfiguration.builder()
+                            .scheme("http")
+                            .host(proxy.name)
+                            .port(proxy.port);
+            if (proxy.getUserName() != null) {
+                proxyConfiguration.username(proxy.getUserName());
+                proxyConfiguration.password(Secret.toString(proxy.getSecretPassword()));
+            }
+            builder.proxyConfiguration(proxyConfiguration.build());
+        }
+        return builder.build();
+    }
+}
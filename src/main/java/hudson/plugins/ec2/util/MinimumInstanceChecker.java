@@ -3,16 +3,21 @@ package hudson.plugins.ec2.util;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.model.Computer;
-import hudson.model.Label;
-import hudson.model.Queue;
+import hudson.plugins.ec2.EC2AbstractSlave;
 import hudson.plugins.ec2.EC2Cloud;
 import hudson.plugins.ec2.EC2Computer;
+import hudson.plugins.ec2.EC2NodeIndex;
 import hudson.plugins.ec2.SlaveTemplate;
 import java.time.Clock;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
-import java.util.Arrays;
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 import java.util.stream.Stream;
 import jenkins.model.Jenkins;
 import org.kohsuke.accmod.Restricted;
@@ -20,18 +25,16 @@ import org.kohsuke.accmod.restrictions.NoExternalUse;
 
 @Restricted(NoExternalUse.class)
 public class MinimumInstanceChecker {
+    private static final Logger LOGGER = Logger.getLogger(MinimumInstanceChecker.class.getName());
 
     @SuppressFBWarnings(value = "MS_SHOULD_BE_FINAL", justification = "Needs to be overridden from tests")
     public static Clock clock = Clock.systemDefaultZone();
 
     private static Stream<Computer> agentsForTemplate(@NonNull SlaveTemplate agentTemplate) {
-        return Arrays.stream(Jenkins.get().getComputers())
+        return EC2NodeIndex.get().getNodes(agentTemplate.description).stream()
+                .map(node -> node.toComputer())
                 .filter(EC2Computer.class::isInstance)
-                .filter(computer -> {
-                    SlaveTemplate computerTemplate = ((EC2Computer) computer).getSlaveTemplate();
-                    return computerTemplate != null
-                            && Objects.equals(computerTemplate.description, agentTemplate.description);
-                });
+                .filter(computer -> ((EC2Computer) computer).getSlaveTemplate() != null);
     }
 
     public static int countCurrentNumberOfAgents(@NonNull SlaveTemplate agentTemplate) {
@@ -57,56 +60,130 @@ public class MinimumInstanceChecker {
         Get the number of queued builds that match an AMI (agentTemplate)
     */
     public static int countQueueItemsForAgentTemplate(@NonNull SlaveTemplate agentTemplate) {
-        return (int) Queue.getInstance().getBuildableItems().stream()
-                .map((Queue.Item item) -> item.getAssignedLabel())
-                .filter(Objects::nonNull)
-                .filter((Label label) -> label.matches(agentTemplate.getLabelSet()))
-                .count();
+        return countQueueItemsForAgentTemplate(agentTemplate, QueueSnapshot.take());
+    }
+
+    private static int countQueueItemsForAgentTemplate(
+            @NonNull SlaveTemplate agentTemplate, @NonNull QueueSnapshot queue) {
+        return queue.countBuildableItems(agentTemplate.getLabelSet());
+    }
+
+    /**
+     * Counters of the agents of one template.
+     */
+    private static final class AgentCounts {
+        int total;
+        int spare;
+        int provisioning;
+    }
+
+    /**
+     * Counts the agents of every template in one pass, the same way as the {@code countCurrentNumberOf*} methods.
+     */
+    private static Map<String, AgentCounts> countAgentsByTemplate() {
+        Map<String, AgentCounts> counts = new HashMap<>();
+        for (EC2AbstractSlave node : EC2NodeIndex.get().getNodes()) {
+            Computer computer = node.toComputer();
+            if (!(computer instanceof EC2Computer) || ((EC2Computer) computer).getSlaveTemplate() == null) {
+                continue;
+            }
+            AgentCounts templateCounts = counts.computeIfAbsent(node.templateDescription, k -> new AgentCounts());
+            templateCounts.total++;
+            if (computer.countBusy() == 0) {
+                if (computer.isOnline()) {
+                    templateCounts.spare++;
+                } else if (computer.isConnecting()) {
+                    templateCounts.provisioning++;
+                }
+            }
+        }
+        return counts;
     }
 
     public static void checkForMinimumInstances() {
+        Map<String, AgentCounts> counts = countAgentsByTemplate();
+        // Taken lazily, as templates may all be outside of their time range
+        QueueSnapshot[] queue = new QueueSnapshot[1];
+        Map<EC2Cloud, Future<?>> provisioning = new LinkedHashMap<>();
         Jenkins.get().clouds.stream()
                 .filter(EC2Cloud.class::isInstance)
                 .map(EC2Cloud.class::cast)
-                .forEach(cloud -> cloud.getTemplates().forEach(agentTemplate -> {
-                    // Minimum instances now have a time range, check to see
-                    // if we are within that time range and return early if not.
-                    if (!minimumInstancesActive(agentTemplate.getMinimumNumberOfInstancesTimeRangeConfig())) {
+                .forEach(cloud -> {
+                    Map<SlaveTemplate, Integer> deficits = new LinkedHashMap<>();
+                    cloud.getTemplates().forEach(agentTemplate -> {
+                        // Minimum instances now have a time range, check to see
+                        // if we are within that time range and return early if not.
+                        if (!minimumInstancesActive(agentTemplate.getMinimumNumberOfInstancesTimeRangeConfig())) {
+                            return;
+                        }
+                        if (queue[0] == null) {
+                            queue[0] = QueueSnapshot.take();
+                        }
+                        AgentCounts templateCounts = counts.getOrDefault(agentTemplate.description, new AgentCounts());
+                        int requiredMinAgents = agentTemplate.getMinimumNumberOfInstances();
+                        int requiredMinSpareAgents = agentTemplate.getMinimumNumberOfSpareInstances();
+                        int currentNumberOfAgentsForTemplate = templateCounts.total;
+                        int currentNumberOfSpareAgentsForTemplate = templateCounts.spare;
+                        int currentNumberOfProvisioningAgentsForTemplate = templateCounts.provisioning;
+                        int currentBuildsWaitingForTemplate = countQueueItemsForAgentTemplate(agentTemplate, queue[0]);
+                        int provisionForMinAgents = 0;
+                        int provisionForMinSpareAgents = 0;
+
+                        // Check if we need to provision any agents because we
+                        // don't have the minimum number of agents
+                        provisionForMinAgents = requiredMinAgents - currentNumberOfAgentsForTemplate;
+                        if (provisionForMinAgents < 0) {
+                            provisionForMinAgents = 0;
+                        }
+
+                        // Check if we need to provision any agents because we
+                        // don't have the minimum number of spare agents.
+                        // Don't double provision if minAgents and minSpareAgents are set.
+                        provisionForMinSpareAgents = (requiredMinSpareAgents + currentBuildsWaitingForTemplate)
+                                - (currentNumberOfSpareAgentsForTemplate
+                                        + provisionForMinAgents
+                                        + currentNumberOfProvisioningAgentsForTemplate);
+                        if (provisionForMinSpareAgents < 0) {
+                            provisionForMinSpareAgents = 0;
+                        }
+
+                        int numberToProvision = provisionForMinAgents + provisionForMinSpareAgents;
+                        if (numberToProvision > 0) {
+                            deficits.put(agentTemplate, numberToProvision);
+                        }
+                    });
+                    if (deficits.isEmpty()) {
                         return;
                     }
-                    int requiredMinAgents = agentTemplate.getMinimumNumberOfInstances();
-                    int requiredMinSpareAgents = agentTemplate.getMinimumNumberOfSpareInstances();
-                    int currentNumberOfAgentsForTemplate = countCurrentNumberOfAgents(agentTemplate);
-                    int currentNumberOfSpareAgentsForTemplate = countCurrentNumberOfSpareAgents(agentTemplate);
-                    int currentNumberOfProvisioningAgentsForTemplate =
-                            countCurrentNumberOfProvisioningAgents(agentTemplate);
-                    int currentBuildsWaitingForTemplate = countQueueItemsForAgentTemplate(agentTemplate);
-                    int provisionForMinAgents = 0;
-                    int provisionForMinSpareAgents = 0;
-
-                    // Check if we need to provision any agents because we
-                    // don't have the minimum number of agents
-                    provisionForMinAgents = requiredMinAgents - currentNumberOfAgentsForTemplate;
-                    if (provisionForMinAgents < 0) {
-                        provisionForMinAgents = 0;
-                    }
-
-                    // Check if we need to provision any agents because we
-                    // don't have the minimum number of spare agents.
-                    // Don't double provision if minAgents and minSpareAgents are set.
-                    provisionForMinSpareAgents = (requiredMinSpareAgents + currentBuildsWaitingForTemplate)
-                            - (currentNumberOfSpareAgentsForTemplate
-                                    + provisionForMinAgents
-                                    + currentNumberOfProvisioningAgentsForTemplate);
-                    if (provisionForMinSpareAgents < 0) {
-                        provisionForMinSpareAgents = 0;
-                    }
+                    // Clouds are provisioned concurrently. The templates of one cloud are provisioned one after the
+                    // other, so that a cloud is not flooded with launches at startup.
+                    provisioning.put(cloud, Computer.threadPoolForRemoting.submit(() -> provision(cloud, deficits)));
+                });
+        try {
+            for (Map.Entry<EC2Cloud, Future<?>> entry : provisioning.entrySet()) {
+                try {
+                    entry.getValue().get();
+                } catch (ExecutionException e) {
+                    LOGGER.log(
+                            Level.WARNING,
+                            entry.getKey().getDisplayName() + ". Exception during provisioning",
+                            e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-                    int numberToProvision = provisionForMinAgents + provisionForMinSpareAgents;
-                    if (numberToProvision > 0) {
-                        cloud.provision(agentTemplate, numberToProvision);
-                    }
-                }));
+    private static void provision(EC2Cloud cloud, Map<SlaveTemplate, Integer> deficits) {
+        for (Map.Entry<SlaveTemplate, Integer> deficit : deficits.entrySet()) {
+            try {
+                cloud.provision(deficit.getKey(), deficit.getValue());
+            } catch (RuntimeException e) {
+                // The other templates of the cloud still get their agents
+                LOGGER.log(Level.WARNING, deficit.getKey() + ". Exception during provisioning", e);
+            }
+        }
     }
 
     public static boolean minimumInstancesActive(
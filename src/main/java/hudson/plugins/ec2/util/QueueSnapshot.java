@@ -0,0 +1,83 @@
+package hudson.plugins.ec2.util;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import jenkins.model.Jenkins;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+/**
+ * The build queue as seen at one point in time, indexed by assigned label.
+ *
+ * <p>Taken once per check run and shared by the checks of that run, so that the queue is copied once instead of once
+ * per agent or template, and a label expression is matched once per distinct label and set of template labels instead
+ * of once per queued item.
+ */
+@Restricted(NoExternalUse.class)
+public final class QueueSnapshot {
+
+    /**
+     * Labels assigned to any item of the queue, compared by identity as Jenkins interns labels.
+     */
+    private final Set<Label> assignedLabels = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Number of buildable items by assigned label.
+     */
+    private final Map<Label, Integer> buildableByLabel = new HashMap<>();
+
+    /**
+     * Number of buildable items matching each set of template labels, filled as templates are looked at.
+     */
+    private final Map<Set<LabelAtom>, Integer> buildableByLabelSet = new HashMap<>();
+
+    QueueSnapshot(Queue.Item[] items, Collection<? extends Queue.Item> buildableItems) {
+        for (Queue.Item item : items) {
+            Label label = item.getAssignedLabel();
+            if (label != null) {
+                assignedLabels.add(label);
+            }
+        }
+        for (Queue.Item item : buildableItems) {
+            Label label = item.getAssignedLabel();
+            if (label != null) {
+                buildableByLabel.merge(label, 1, Integer::sum);
+            }
+        }
+    }
+
+    public static QueueSnapshot take() {
+        Queue queue = Jenkins.get().getQueue();
+        return new QueueSnapshot(queue.getItems(), queue.getBuildableItems());
+    }
+
+    /**
+     * Whether an item of the queue, buildable or not, is waiting for the label.
+     */
+    public boolean hasItemsFor(@CheckForNull Label label) {
+        return label != null && assignedLabels.contains(label);
+    }
+
+    /**
+     * Number of buildable items whose label matches the given labels, e.g. those of a template.
+     */
+    public synchronized int countBuildableItems(Set<LabelAtom> labels) {
+        return buildableByLabelSet.computeIfAbsent(labels, k -> {
+            int count = 0;
+            for (Map.Entry<Label, Integer> entry : buildableByLabel.entrySet()) {
+                if (entry.getKey().matches(k)) {
+                    count += entry.getValue();
+                }
+            }
+            return count;
+        });
+    }
+}
@@ -2,8 +2,12 @@ package hudson.plugins.ec2;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
+import java.time.Instant;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -14,10 +18,13 @@ import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.stubbing.Answer;
 import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
 import software.amazon.awssdk.services.ec2.model.Reservation;
 
 @ExtendWith(MockitoExtension.class)
@@ -139,4 +146,90 @@ class CloudHelperTest {
         Instance result = CloudHelper.getInstanceWithRetry("test-instance-id", spyCloud);
         assertEquals(mockedInstance, result);
     }
+
+    @Test
+    void testDescribeInstancesLeavesOutUnknownIds() {
+        EC2Cloud spyCloud = Mockito.spy(cloud);
+        Ec2Client mockEc2 = Mockito.mock(Ec2Client.class);
+        Mockito.doReturn(mockEc2).when(spyCloud).connect();
+        AwsServiceException notFound = AwsServiceException.builder()
+                .message("test exception")
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode("InvalidInstanceID.NotFound")
+                        .build())
+                .build();
+        Mockito.doAnswer(invocation -> {
+                    DescribeInstancesRequest request = invocation.getArgument(0);
+                    if (!request.instanceIds().isEmpty()) {
+                        throw notFound;
+                    }
+                    // The filtered lookup comes back in two pages
+                    if (request.nextToken() == null) {
+                        return DescribeInstancesResponse.builder()
+                                .reservations(Reservation.builder()
+                                        .instances(instance("i-1"))
+                                        .build())
+                                .nextToken("page-2")
+                                .build();
+                    }
+                    return DescribeInstancesResponse.builder()
+                            .reservations(
+                                    Reservation.builder().instances(instance("i-2")).build())
+                            .build();
+                })
+                .when(mockEc2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+
+        Map<String, Instance> result = CloudHelper.describeInstances(List.of("i-1", "i-2", "i-gone"), spyCloud);
+
+        assertEquals(Set.of("i-1", "i-2"), result.keySet());
+        Mockito.verify(mockEc2, Mockito.times(3)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    void testDescribeInstancesWithTheAsyncClient() {
+        EC2Cloud spyCloud = Mockito.spy(cloud);
+        Ec2AsyncClient mockEc2 = Mockito.mock(Ec2AsyncClient.class);
+        Mockito.doReturn(mockEc2).when(spyCloud).connectAsync();
+        AwsServiceException notFound = AwsServiceException.builder()
+                .message("test exception")
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode("InvalidInstanceID.NotFound")
+                        .build())
+                .build();
+        Mockito.doAnswer(invocation -> {
+                    DescribeInstancesRequest request = invocation.getArgument(0);
+                    if (!request.instanceIds().isEmpty()) {
+                        return CompletableFuture.failedFuture(notFound);
+                    }
+                    if (request.nextToken() == null) {
+                        return CompletableFuture.completedFuture(DescribeInstancesResponse.builder()
+                                .reservations(Reservation.builder()
+                                        .instances(instance("i-1"))
+                                        .build())
+                                .nextToken("page-2")
+                                .build());
+                    }
+                    return CompletableFuture.completedFuture(DescribeInstancesResponse.builder()
+                            .reservations(
+                                    Reservation.builder().instances(instance("i-2")).build())
+                            .build());
+                })
+                .when(mockEc2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+
+        Map<String, Instance> result = CloudHelper.describeInstances(List.of("i-1", "i-2", "i-gone"), spyCloud);
+
+        assertEquals(Set.of("i-1", "i-2"), result.keySet());
+        Mockito.verify(mockEc2, Mockito.times(3)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        Mockito.verify(spyCloud, Mockito.never()).connect();
+    }
+
+    private static Instance instance(String id) {
+        return Instance.builder()
+                .instanceId(id)
+                .launchTime(Instant.now())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .build();
+    }
 }
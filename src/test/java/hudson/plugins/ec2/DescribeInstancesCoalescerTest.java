@@ -0,0 +1,146 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+class DescribeInstancesCoalescerTest {
+
+    private final List<DescribeInstancesRequest> requests = new ArrayList<>();
+
+    private EC2Cloud cloud;
+
+    private ExecutorService executor;
+
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @BeforeEach
+    void init() {
+        Ec2Client ec2 = Mockito.mock(Ec2Client.class);
+        Mockito.doAnswer(invocation -> {
+                    DescribeInstancesRequest request = invocation.getArgument(0);
+                    synchronized (requests) {
+                        requests.add(request);
+                    }
+                    if (request.instanceIds().contains("i-bad")) {
+                        throw AwsServiceException.builder()
+                                .message("The instance ID 'i-bad' does not exist")
+                                .awsErrorDetails(AwsErrorDetails.builder()
+                                        .errorCode("InvalidInstanceID.NotFound")
+                                        .build())
+                                .build();
+                    }
+                    if (request.instanceIds().contains("i-0")) {
+                        // Keeps a lookup in flight while the test starts others
+                        release.await();
+                    }
+                    List<String> ids = request.hasFilters()
+                            ? request.filters().get(0).values()
+                            : request.instanceIds();
+                    List<Instance> instances = new ArrayList<>();
+                    for (String id : ids) {
+                        if (!id.equals("i-bad")) {
+                            instances.add(Instance.builder().instanceId(id).build());
+                        }
+                    }
+                    return DescribeInstancesResponse.builder()
+                            .reservations(
+                                    Reservation.builder().instances(instances).build())
+                            .build();
+                })
+                .when(ec2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        cloud = Mockito.mock(EC2Cloud.class);
+        Mockito.doReturn(ec2).when(cloud).connect();
+        executor = Executors.newFixedThreadPool(8);
+    }
+
+    @AfterEach
+    void tearDown() {
+        release.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Starts a lookup that stays in flight until {@link #release} is counted down.
+     */
+    private Future<Instance> startBlockingLookup(DescribeInstancesCoalescer coalescer) throws Exception {
+        Future<Instance> blocking = executor.submit(() -> coalescer.describe("i-0", cloud));
+        while (true) {
+            synchronized (requests) {
+                if (!requests.isEmpty()) {
+                    return blocking;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    void testConcurrentLookupsShareOneCall() throws Exception {
+        DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(500);
+        Future<Instance> blocking = startBlockingLookup(coalescer);
+        List<Future<Instance>> results = new ArrayList<>();
+        for (String id : List.of("i-1", "i-2", "i-3", "i-1")) {
+            results.add(executor.submit(() -> coalescer.describe(id, cloud)));
+        }
+
+        assertEquals("i-1", results.get(0).get().instanceId());
+        assertEquals("i-2", results.get(1).get().instanceId());
+        assertEquals("i-3", results.get(2).get().instanceId());
+        assertEquals("i-1", results.get(3).get().instanceId());
+        release.countDown();
+        assertEquals("i-0", blocking.get().instanceId());
+        assertEquals(2, requests.size());
+        assertEquals(3, requests.get(1).instanceIds().size());
+    }
+
+    @Test
+    void testLoneLookupDoesNotWait() throws Exception {
+        DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(60_000);
+
+        assertEquals("i-1", executor.submit(() -> coalescer.describe("i-1", cloud))
+                .get(30, TimeUnit.SECONDS)
+                .instanceId());
+    }
+
+    @Test
+    void testUnknownInstanceOnlyFailsItsOwnLookup() throws Exception {
+        DescribeInstancesCoalescer coalescer = new DescribeInstancesCoalescer(500);
+        startBlockingLookup(coalescer);
+        Future<Instance> good = executor.submit(() -> coalescer.describe("i-1", cloud));
+        Future<Instance> bad = executor.submit(() -> coalescer.describe("i-bad", cloud));
+
+        assertEquals("i-1", good.get().instanceId());
+        // Unknown ids left out with a filter rather than described one by one
+        synchronized (requests) {
+            assertEquals(3, requests.size());
+            assertTrue(requests.get(2).hasFilters());
+        }
+        ExecutionException e = assertThrows(ExecutionException.class, bad::get);
+        assertTrue(e.getCause() instanceof AwsServiceException);
+        assertEquals(
+                "InvalidInstanceID.NotFound",
+                ((AwsServiceException) e.getCause()).awsErrorDetails().errorCode());
+    }
+}
@@ -0,0 +1,135 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToIntFunction;
+import org.junit.jupiter.api.Test;
+
+class EC2CapacityLedgerTest {
+
+    @Test
+    void testSeedsOnlyOnce() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        AtomicInteger scans = new AtomicInteger();
+        ToIntFunction<String> scanner = d -> {
+            scans.incrementAndGet();
+            return d == null ? 10 : 3;
+        };
+
+        assertEquals(10, ledger.count(null, scanner));
+        assertEquals(3, ledger.count("tmpl", scanner));
+        assertEquals(10, ledger.count(null, scanner));
+        assertEquals(3, ledger.count("tmpl", scanner));
+        assertEquals(2, scans.get());
+    }
+
+    @Test
+    void testLaunchAndReleaseAdjustCounts() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        ToIntFunction<String> scanner = d -> d == null ? 5 : 2;
+        ledger.count(null, scanner);
+        ledger.count("tmpl", scanner);
+
+        ledger.recordLaunched("tmpl", List.of("i-1", "i-2"));
+        // Recording the same id again does not count twice
+        ledger.recordLaunched("tmpl", List.of("i-2"));
+        assertEquals(7, ledger.count(null, scanner));
+        assertEquals(4, ledger.count("tmpl", scanner));
+
+        ledger.recordReleased("tmpl", "i-1");
+        ledger.recordReleased("tmpl", "i-1");
+        assertEquals(6, ledger.count(null, scanner));
+        assertEquals(3, ledger.count("tmpl", scanner));
+
+        // Launches for a template that was never seeded only move the total
+        ledger.recordLaunched("other", List.of("i-3"));
+        assertEquals(7, ledger.count(null, scanner));
+        assertNull(ledger.peek("other"));
+    }
+
+    @Test
+    void testReconcileRecordsDrift() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        ledger.count(null, d -> 5);
+        ledger.count("tmpl", d -> 5);
+        ledger.recordLaunched("tmpl", List.of("i-1"));
+
+        ledger.reconcile(List.of("tmpl"), d -> d == null ? 4 : 2);
+
+        assertEquals(2, ledger.getLastTotalDrift());
+        assertEquals(2, ledger.getMaxTotalDrift());
+        assertEquals(Map.of("tmpl", 4), ledger.getLastTemplateDrift());
+        assertEquals(1, ledger.getReconcileCount());
+        assertEquals(4, ledger.peek(null));
+        assertEquals(2, ledger.peek("tmpl"));
+
+        // The id was forgotten by the reconcile, releasing it still applies once
+        ledger.recordReleased("tmpl", "i-1");
+        assertEquals(3, ledger.peek(null));
+        assertEquals(1, ledger.peek("tmpl"));
+    }
+
+    @Test
+    void testLaunchDuringReconcileIsKept() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        ledger.count(null, d -> 1);
+        ledger.count("tmpl", d -> 1);
+
+        ledger.reconcile(Collections.singletonList("tmpl"), d -> {
+            if (d == null) {
+                // EC2 does not list this launch yet
+                ledger.recordLaunched("tmpl", List.of("i-new"));
+            }
+            return 1;
+        });
+
+        assertEquals(2, ledger.peek(null));
+        assertEquals(2, ledger.peek("tmpl"));
+        assertEquals(0, ledger.getLastTotalDrift());
+    }
+
+    @Test
+    void testReservationsCountUntilSettled() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        ledger.count(null, d -> 1);
+        ledger.count("tmpl", d -> 1);
+
+        ledger.reserve("tmpl", 3);
+        assertEquals(4, ledger.peek(null));
+        assertEquals(4, ledger.peek("tmpl"));
+
+        // Only two of the three reserved agents were launched
+        ledger.settle("tmpl", 3, List.of("i-1", "i-2"));
+        assertEquals(3, ledger.peek(null));
+        assertEquals(3, ledger.peek("tmpl"));
+
+        // A failed launch gives its reservation back
+        ledger.reserve("tmpl", 2);
+        ledger.settle("tmpl", 2, Collections.emptyList());
+        assertEquals(3, ledger.peek(null));
+        assertEquals(3, ledger.peek("tmpl"));
+    }
+
+    @Test
+    void testReservationsSurviveSeedsAndReconciles() {
+        EC2CapacityLedger ledger = new EC2CapacityLedger();
+        ledger.reserve("tmpl", 2);
+
+        // EC2 does not list the agents being launched
+        assertEquals(3, ledger.count(null, d -> 1));
+        assertEquals(3, ledger.count("tmpl", d -> 1));
+
+        ledger.reconcile(List.of("tmpl"), d -> 1);
+        assertEquals(3, ledger.peek(null));
+        assertEquals(0, ledger.getLastTotalDrift());
+
+        ledger.settle("tmpl", 2, List.of("i-1", "i-2"));
+        assertEquals(3, ledger.peek(null));
+        assertEquals(3, ledger.peek("tmpl"));
+    }
+}
@@ -2,18 +2,24 @@ package hudson.plugins.ec2;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.allOf;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.hasItem;
 import static org.hamcrest.Matchers.not;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
 import java.util.List;
 import java.util.function.Consumer;
 import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.mockito.ArgumentCaptor;
 import org.mockito.MockedStatic;
@@ -27,11 +33,17 @@ import software.amazon.awssdk.services.ec2.model.Tag;
 import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
 
 public class EC2CleanupOrphanedNodesTest {
-    @Test
-    public void testCleanupOrphanedAndActiveNodes() {
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2Client;
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    @BeforeEach
+    void setUp() {
         // Mock EC2Cloud and Ec2Client
-        EC2Cloud cloud = mock(EC2Cloud.class);
-        Ec2Client ec2Client = mock(Ec2Client.class);
+        cloud = mock(EC2Cloud.class);
+        ec2Client = mock(Ec2Client.class);
         when(cloud.connect()).thenReturn(ec2Client);
         when(cloud.isCleanUpOrphanedNodes()).thenReturn(true);
 
@@ -77,10 +89,18 @@ public class EC2CleanupOrphanedNodesTest {
         when(node2.getCloud()).thenReturn(cloud);
 
         Jenkins jenkins = mock(Jenkins.class);
-        MockedStatic<Jenkins> mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
         mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
         when(jenkins.getNodes()).thenReturn(List.of(node1, node2));
+    }
+
+    @AfterEach
+    void tearDown() {
+        mockedJenkins.close();
+    }
 
+    @Test
+    public void testCleanupOrphanedAndActiveNodes() {
         // Run Orphaned Nodes cleanup
         new EC2CleanupOrphanedNodes().cleanCloud(cloud);
 
@@ -95,6 +115,47 @@ public class EC2CleanupOrphanedNodesTest {
         assertThat(
                 actualRequest.instanceIds(),
                 allOf(hasItem("i-orphaned"), not(hasItem("i-active1")), not(hasItem("i-active2"))));
-        mockedJenkins.close();
+    }
+
+    @Test
+    public void testCleanupTerminatesAllOrphansInOneCall() {
+        Tag oldTag = Tag.builder()
+                .key(EC2CleanupOrphanedNodes.NODE_EXPIRES_AT_TAG_NAME)
+                .value("2024-01-01T00:00:00Z")
+                .build();
+        when(ec2Client.describeInstances((DescribeInstancesRequest) any()))
+                .thenReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder()
+                                .instances(
+                                        Instance.builder()
+                                                .instanceId("i-orphaned1")
+                                                .tags(oldTag)
+                                                .build(),
+                                        Instance.builder()
+                                                .instanceId("i-orphaned2")
+                                                .tags(oldTag)
+                                                .build())
+                                .build())
+                        .build());
+
+        new EC2CleanupOrphanedNodes().cleanCloud(cloud);
+
+        ArgumentCaptor<Consumer<TerminateInstancesRequest.Builder>> captor = ArgumentCaptor.forClass(Consumer.class);
+        verify(ec2Client).terminateInstances(captor.capture());
+        TerminateInstancesRequest.Builder builder = TerminateInstancesRequest.builder();
+        captor.getValue().accept(builder);
+        assertThat(builder.build().instanceIds(), containsInAnyOrder("i-orphaned1", "i-orphaned2"));
+    }
+
+    @Test
+    public void testCleanupTerminatesOrphansWithAsyncClient() {
+        when(cloud.connectAsync()).thenReturn(AmazonEC2FactoryMockImpl.createAmazonEC2AsyncMock(ec2Client));
+
+        new EC2CleanupOrphanedNodes().cleanCloud(cloud);
+
+        ArgumentCaptor<TerminateInstancesRequest> captor = ArgumentCaptor.forClass(TerminateInstancesRequest.class);
+        verify(ec2Client).terminateInstances(captor.capture());
+        assertThat(captor.getValue().instanceIds(), contains("i-orphaned"));
+        verify(ec2Client, never()).terminateInstances(Mockito.<Consumer<TerminateInstancesRequest.Builder>>any());
     }
 }
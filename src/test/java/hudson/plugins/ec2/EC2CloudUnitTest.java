@@ -29,16 +29,21 @@ import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.when;
 
+import hudson.model.Computer;
 import hudson.model.Node;
 import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
+import hudson.slaves.NodeProvisioner;
 import java.lang.reflect.Method;
 import java.net.URI;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -75,6 +80,30 @@ class EC2CloudUnitTest {
                 Region.US_GOV_WEST_1, EC2Cloud.getBootstrapRegion(new URI("https://ec2.us-gov-west-1.amazonaws.com/")));
     }
 
+    @Test
+    void testAccountKey() {
+        assertEquals(
+                "account:123456789012",
+                createCloud(false, null, "arn:aws:iam::123456789012:role/jenkins").getAccountKey());
+        assertEquals("instance-profile", createCloud(true, null, null).getAccountKey());
+        assertEquals("credentials:abc", createCloud(false, "abc", "").getAccountKey());
+        assertNull(createCloud(false, null, null).getAccountKey());
+    }
+
+    private static EC2Cloud createCloud(boolean useInstanceProfileForCredentials, String credentialsId, String roleArn) {
+        return new EC2Cloud(
+                "us-east-1",
+                useInstanceProfileForCredentials,
+                credentialsId,
+                "us-east-1",
+                null,
+                "key",
+                null,
+                Collections.emptyList(),
+                roleArn,
+                "roleSessionName");
+    }
+
     @Test
     void testInstanceCap() {
         EC2Cloud cloud = new EC2Cloud(
@@ -219,6 +248,11 @@ class EC2CloudUnitTest {
                 EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED);
         cloud.addTemplate(orig);
         assertNotNull(cloud.getTemplate(orig.description));
+        assertEquals(List.of(orig), cloud.getTemplatesByAmi("ami-123"));
+
+        orig.setAmi("ami-456");
+        assertTrue(cloud.getTemplatesByAmi("ami-123").isEmpty());
+        assertEquals(List.of(orig), cloud.getTemplatesByAmi("ami-456"));
     }
 
     @Test
@@ -443,4 +477,131 @@ class EC2CloudUnitTest {
             assertArrayEquals(expectedNodes, listOfJenkinsNodes.toArray());
         }
     }
+
+    @Test
+    void testProvisionReturnsPlannedNodesBeforeEc2Answers() throws Exception {
+        SlaveTemplate template = mock(SlaveTemplate.class);
+        when(template.getMode()).thenReturn(Node.Mode.NORMAL);
+        when(template.getNumExecutors()).thenReturn(1);
+        when(template.getInstanceCap()).thenReturn(Integer.MAX_VALUE);
+        when(template.getDisplayName()).thenReturn("template");
+        CountDownLatch ec2Answered = new CountDownLatch(1);
+        when(template.provision(Mockito.anyInt(), Mockito.any())).thenAnswer(invocation -> {
+            ec2Answered.await();
+            return Collections.emptyList();
+        });
+        EC2Cloud cloud = new EC2Cloud(
+                "us-east-1",
+                true,
+                "abc",
+                "us-east-1",
+                null,
+                "ghi",
+                "3",
+                Collections.singletonList(template),
+                "roleArn",
+                "roleSessionName");
+        // Capacity already known, so nothing has to be scanned
+        cloud.getCapacityLedger().count(null, d -> 0);
+
+        Jenkins mockJenkins = Mockito.mock(Jenkins.class);
+        when(mockJenkins.getComputers()).thenReturn(new Computer[0]);
+        try (MockedStatic<Jenkins> mocked = Mockito.mockStatic(Jenkins.class)) {
+            mocked.when(Jenkins::get).thenReturn(mockJenkins);
+
+            Collection<NodeProvisioner.PlannedNode> plannedNodes = cloud.provision(null, 5);
+
+            // Capped by the cloud instance cap, and still waiting on EC2
+            assertEquals(3, plannedNodes.size());
+            for (NodeProvisioner.PlannedNode plannedNode : plannedNodes) {
+                assertFalse(plannedNode.future.isDone());
+            }
+
+            ec2Answered.countDown();
+            for (NodeProvisioner.PlannedNode plannedNode : plannedNodes) {
+                assertNull(plannedNode.future.get(10, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    @Test
+    void testOnlyLaunchedInstancesCountAgainstTheCaps() throws Exception {
+        EC2Cloud cloud = new EC2Cloud(
+                "us-east-1",
+                true,
+                "abc",
+                "us-east-1",
+                null,
+                "ghi",
+                "3",
+                Collections.emptyList(),
+                "roleArn",
+                "roleSessionName");
+        SlaveTemplate template = Mockito.spy(new SlaveTemplate(
+                "ami-123",
+                EC2AbstractSlave.TEST_ZONE,
+                null,
+                "default",
+                "foo",
+                InstanceType.M1_LARGE.toString(),
+                false,
+                "ttt",
+                Node.Mode.NORMAL,
+                "description",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                EC2AbstractSlave.DEFAULT_JAVA_PATH,
+                "-Xmx1g",
+                false,
+                "subnet 456",
+                null,
+                null,
+                0,
+                0,
+                null,
+                "iamInstanceProfile",
+                true,
+                false,
+                "",
+                false,
+                "",
+                false,
+                false,
+                false,
+                ConnectionStrategy.PUBLIC_IP,
+                -1,
+                Collections.emptyList(),
+                null,
+                Tenancy.Default,
+                EbsEncryptRootVolume.DEFAULT,
+                EC2AbstractSlave.DEFAULT_METADATA_ENDPOINT_ENABLED,
+                EC2AbstractSlave.DEFAULT_METADATA_TOKENS_REQUIRED,
+                EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT,
+                EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED,
+                EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED));
+        EC2AbstractSlave launched = mock(EC2OndemandSlave.class);
+        when(launched.getInstanceId()).thenReturn("i-launched");
+        EC2AbstractSlave adopted = mock(EC2OndemandSlave.class);
+        when(adopted.getInstanceId()).thenReturn("i-adopted");
+        when(adopted.isExistingInstance()).thenReturn(true);
+        Mockito.doReturn(List.of(launched, adopted)).when(template).provisionOndemandFallback(2);
+        cloud.getCapacityLedger().count(null, d -> 0);
+        cloud.getCapacityLedger().count("description", d -> 0);
+
+        Jenkins mockJenkins = Mockito.mock(Jenkins.class);
+        try (MockedStatic<Jenkins> mocked = Mockito.mockStatic(Jenkins.class)) {
+            mocked.when(Jenkins::get).thenReturn(mockJenkins);
+
+            cloud.provisionOndemandFallback(template, 2);
+        }
+
+        // The adopted instance was already running, and counted
+        assertEquals(1, cloud.getCapacityLedger().peek(null));
+        assertEquals(1, cloud.getCapacityLedger().peek("description"));
+        Mockito.verify(mockJenkins).addNode(adopted);
+    }
 }
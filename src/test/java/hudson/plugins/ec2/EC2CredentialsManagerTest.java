@@ -0,0 +1,133 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.utils.SdkAutoCloseable;
+
+class EC2CredentialsManagerTest {
+
+    private static AwsSessionCredentials expiringAt(Instant expiration) {
+        return AwsSessionCredentials.builder()
+                .accessKeyId("id")
+                .secretAccessKey("secret")
+                .sessionToken("token")
+                .expirationTime(expiration)
+                .build();
+    }
+
+    @Test
+    void testRefreshAheadOfExpiry() {
+        Instant now = Instant.now();
+
+        assertEquals(
+                Duration.ofHours(1).minus(EC2CredentialsManager.PREFETCH),
+                EC2CredentialsManager.nextRefreshDelay(expiringAt(now.plus(Duration.ofHours(1))), now));
+        // Shorter lived than the prefetch window
+        assertEquals(
+                Duration.ofMinutes(2),
+                EC2CredentialsManager.nextRefreshDelay(expiringAt(now.plus(Duration.ofMinutes(4))), now));
+        assertEquals(
+                Duration.ZERO, EC2CredentialsManager.nextRefreshDelay(expiringAt(now.minusSeconds(1)), now));
+        assertEquals(
+                EC2CredentialsManager.REFRESH_PERIOD,
+                EC2CredentialsManager.nextRefreshDelay(AwsBasicCredentials.create("id", "secret"), now));
+    }
+
+    @Test
+    void testExpiry() {
+        Instant now = Instant.now();
+
+        assertTrue(EC2CredentialsManager.isExpired(expiringAt(now.minusSeconds(1)), now));
+        assertFalse(EC2CredentialsManager.isExpired(expiringAt(now.plusSeconds(60)), now));
+        assertFalse(EC2CredentialsManager.isExpired(AwsBasicCredentials.create("id", "secret"), now));
+    }
+
+    private static AwsCredentialsProvider provider(String accessKeyId) {
+        AwsCredentialsProvider provider =
+                mock(AwsCredentialsProvider.class, withSettings().extraInterfaces(SdkAutoCloseable.class));
+        if (accessKeyId == null) {
+            when(provider.resolveCredentials()).thenThrow(new IllegalStateException("STS unavailable"));
+        } else {
+            when(provider.resolveCredentials()).thenReturn(AwsBasicCredentials.create(accessKeyId, "secret"));
+        }
+        return provider;
+    }
+
+    @Test
+    void testRefreshRebuildsProvider() {
+        List<AwsCredentialsProvider> providers = new ArrayList<>(List.of(provider("key-1"), provider("key-2")));
+        List<AwsCredentialsProvider> built = new ArrayList<>();
+        EC2CredentialsManager manager = new EC2CredentialsManager("test", null, () -> {
+            built.add(providers.remove(0));
+            return built.get(built.size() - 1);
+        });
+        try {
+            assertEquals("key-1", manager.resolveCredentials().accessKeyId());
+
+            // e.g. the keys were rotated in the credentials store
+            manager.refresh();
+
+            assertEquals("key-2", manager.resolveCredentials().accessKeyId());
+            verify((SdkAutoCloseable) built.get(0)).close();
+            verify((SdkAutoCloseable) built.get(1), never()).close();
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    void testFailedRefreshKeepsCredentialsAndRebuildsAgain() {
+        List<AwsCredentialsProvider> providers =
+                new ArrayList<>(List.of(provider("key-1"), provider(null), provider("key-2")));
+        List<AwsCredentialsProvider> built = new ArrayList<>();
+        EC2CredentialsManager manager = new EC2CredentialsManager("test", null, () -> {
+            built.add(providers.remove(0));
+            return built.get(built.size() - 1);
+        });
+        try {
+            manager.resolveCredentials();
+
+            manager.refresh();
+            assertEquals(1, manager.getFailures());
+            assertEquals("key-1", manager.resolveCredentials().accessKeyId());
+            verify((SdkAutoCloseable) built.get(1)).close();
+
+            manager.refresh();
+            assertEquals(0, manager.getFailures());
+            assertEquals("key-2", manager.resolveCredentials().accessKeyId());
+        } finally {
+            manager.close();
+        }
+    }
+
+    @Test
+    void testClosesManagersOfRemovedClouds() {
+        EC2Cloud kept = mock(EC2Cloud.class);
+        EC2Cloud removed = mock(EC2Cloud.class);
+        EC2CredentialsManager keptManager = EC2CredentialsManager.get(kept);
+        EC2CredentialsManager removedManager = EC2CredentialsManager.get(removed);
+
+        EC2CredentialsManager.closeRemoved(List.of(kept));
+
+        assertTrue(removedManager.isClosed());
+        assertFalse(keptManager.isClosed());
+        assertNotSame(removedManager, EC2CredentialsManager.get(removed));
+        EC2CredentialsManager.closeRemoved(List.of());
+    }
+}
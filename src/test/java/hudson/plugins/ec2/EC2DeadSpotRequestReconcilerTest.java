@@ -0,0 +1,92 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+
+class EC2DeadSpotRequestReconcilerTest {
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    private Jenkins jenkins;
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    @BeforeEach
+    void setUp() {
+        jenkins = mock(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+        when(jenkins.getNodes()).thenReturn(nodes);
+        ec2 = mock(Ec2Client.class);
+        cloud = mock(EC2Cloud.class);
+        when(cloud.connect()).thenReturn(ec2);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mockedJenkins.close();
+    }
+
+    private EC2SpotSlave agent(String requestId) {
+        EC2SpotSlave node = mock(EC2SpotSlave.class);
+        when(node.getSpotInstanceRequestId()).thenReturn(requestId);
+        when(node.getCloud()).thenReturn(cloud);
+        nodes.add(node);
+        return node;
+    }
+
+    private static SpotInstanceRequest request(String id, SpotInstanceState state) {
+        return SpotInstanceRequest.builder()
+                .spotInstanceRequestId(id)
+                .state(state)
+                .build();
+    }
+
+    @Test
+    void testRemovesAgentsOfDeadRequestsOnly() throws Exception {
+        EC2SpotSlave active = agent("sir-active");
+        EC2SpotSlave open = agent("sir-open");
+        EC2SpotSlave cancelled = agent("sir-cancelled");
+        EC2SpotSlave unknown = agent("sir-unknown");
+        when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class)))
+                .thenReturn(DescribeSpotInstanceRequestsResponse.builder()
+                        .spotInstanceRequests(
+                                request("sir-active", SpotInstanceState.ACTIVE),
+                                request("sir-open", SpotInstanceState.OPEN),
+                                request("sir-cancelled", SpotInstanceState.CANCELLED))
+                        .build());
+
+        assertEquals(1, EC2DeadSpotRequestReconciler.reconcile());
+
+        verify(jenkins).removeNode(cancelled);
+        verify(jenkins, never()).removeNode(active);
+        verify(jenkins, never()).removeNode(open);
+        verify(jenkins, never()).removeNode(unknown);
+        // All the requests of the cloud in one call
+        verify(ec2, times(1)).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+    }
+}
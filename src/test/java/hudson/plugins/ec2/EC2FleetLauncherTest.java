@@ -0,0 +1,159 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.List;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.CreateFleetError;
+import software.amazon.awssdk.services.ec2.model.CreateFleetInstance;
+import software.amazon.awssdk.services.ec2.model.CreateFleetRequest;
+import software.amazon.awssdk.services.ec2.model.CreateFleetResponse;
+import software.amazon.awssdk.services.ec2.model.CreateLaunchTemplateRequest;
+import software.amazon.awssdk.services.ec2.model.CreateLaunchTemplateResponse;
+import software.amazon.awssdk.services.ec2.model.CreateLaunchTemplateVersionRequest;
+import software.amazon.awssdk.services.ec2.model.DefaultTargetCapacityType;
+import software.amazon.awssdk.services.ec2.model.FleetLaunchTemplateOverridesRequest;
+import software.amazon.awssdk.services.ec2.model.FleetType;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceNetworkInterfaceSpecification;
+import software.amazon.awssdk.services.ec2.model.LaunchTemplate;
+import software.amazon.awssdk.services.ec2.model.Placement;
+import software.amazon.awssdk.services.ec2.model.RequestLaunchTemplateData;
+import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.SpotAllocationStrategy;
+
+class EC2FleetLauncherTest {
+
+    private Ec2Client ec2;
+
+    private final RunInstancesRequest request = RunInstancesRequest.builder()
+            .imageId("ami-1")
+            .instanceType("m5.large")
+            .minCount(1)
+            .maxCount(3)
+            .placement(Placement.builder()
+                    .availabilityZone("us-east-1a")
+                    .tenancy("default")
+                    .build())
+            .networkInterfaces(InstanceNetworkInterfaceSpecification.builder()
+                    .subnetId("subnet-1")
+                    .deviceIndex(0)
+                    .associatePublicIpAddress(true)
+                    .build())
+            .build();
+
+    @BeforeEach
+    void init() {
+        ec2 = mock(Ec2Client.class);
+        when(ec2.createLaunchTemplate(any(CreateLaunchTemplateRequest.class)))
+                .thenReturn(CreateLaunchTemplateResponse.builder()
+                        .launchTemplate(LaunchTemplate.builder()
+                                .launchTemplateId("lt-1")
+                                .latestVersionNumber(1L)
+                                .build())
+                        .build());
+    }
+
+    @Test
+    void testLaunchesAcrossAllPoolsInOneCall() {
+        when(ec2.createFleet(any(CreateFleetRequest.class)))
+                .thenReturn(CreateFleetResponse.builder()
+                        .fleetId("fleet-1")
+                        .instances(CreateFleetInstance.builder()
+                                .instanceIds("i-1", "i-2")
+                                .instanceType("m5.large")
+                                .build())
+                        .errors(CreateFleetError.builder()
+                                .errorCode("InsufficientInstanceCapacity")
+                                .build())
+                        .build());
+
+        List<Instance> instances = EC2FleetLauncher.launch(
+                ec2,
+                "jenkins-ec2-test-pools",
+                request,
+                List.of("m5.large", "m6i.large"),
+                List.of("subnet-1", "subnet-2"),
+                true,
+                null,
+                3);
+
+        assertEquals(2, instances.size());
+        assertEquals("i-1", instances.get(0).instanceId());
+        ArgumentCaptor<CreateFleetRequest> captor = ArgumentCaptor.forClass(CreateFleetRequest.class);
+        verify(ec2).createFleet(captor.capture());
+        CreateFleetRequest fleetRequest = captor.getValue();
+        assertEquals(FleetType.INSTANT, fleetRequest.type());
+        assertEquals(3, fleetRequest.targetCapacitySpecification().totalTargetCapacity());
+        assertEquals(
+                DefaultTargetCapacityType.SPOT,
+                fleetRequest.targetCapacitySpecification().defaultTargetCapacityType());
+        assertEquals(
+                SpotAllocationStrategy.CAPACITY_OPTIMIZED,
+                fleetRequest.spotOptions().allocationStrategy());
+        List<FleetLaunchTemplateOverridesRequest> overrides =
+                fleetRequest.launchTemplateConfigs().get(0).overrides();
+        assertEquals(4, overrides.size());
+        assertEquals(
+                "lt-1",
+                fleetRequest
+                        .launchTemplateConfigs()
+                        .get(0)
+                        .launchTemplateSpecification()
+                        .launchTemplateId());
+    }
+
+    @Test
+    void testReusesLaunchTemplateVersionWhileSettingsAreUnchanged() {
+        when(ec2.createFleet(any(CreateFleetRequest.class)))
+                .thenReturn(CreateFleetResponse.builder()
+                        .instances(CreateFleetInstance.builder().instanceIds("i-1").build())
+                        .build());
+
+        for (int i = 0; i < 2; i++) {
+            EC2FleetLauncher.launch(
+                    ec2, "jenkins-ec2-test-reuse", request, List.of("m5.large"), List.of(), false, null, 1);
+        }
+
+        verify(ec2, times(1)).createLaunchTemplate(any(CreateLaunchTemplateRequest.class));
+        verify(ec2, never()).createLaunchTemplateVersion(any(CreateLaunchTemplateVersionRequest.class));
+        verify(ec2, times(2)).createFleet(any(CreateFleetRequest.class));
+    }
+
+    @Test
+    void testFailsWhenNoPoolHasCapacity() {
+        when(ec2.createFleet(any(CreateFleetRequest.class)))
+                .thenReturn(CreateFleetResponse.builder()
+                        .errors(CreateFleetError.builder()
+                                .errorCode("InsufficientInstanceCapacity")
+                                .build())
+                        .build());
+
+        assertThrows(
+                SdkException.class,
+                () -> EC2FleetLauncher.launch(
+                        ec2, "jenkins-ec2-test-none", request, List.of("m5.large"), List.of(), false, null, 1));
+    }
+
+    @Test
+    void testSubnetAndZoneLeftToOverrides() {
+        RequestLaunchTemplateData data = EC2FleetLauncher.toLaunchTemplateData(request, true);
+
+        assertNull(data.placement().availabilityZone());
+        assertEquals("default", data.placement().tenancy());
+        assertNull(data.networkInterfaces().get(0).subnetId());
+        assertEquals("ami-1", data.imageId());
+    }
+}
@@ -0,0 +1,60 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.Instant;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+
+class EC2InstanceEventTest {
+
+    @Test
+    void testParseStateChange() {
+        EC2InstanceEvent event = EC2InstanceEvent.fromEventBridge("{\"version\":\"0\",\"id\":\"1\","
+                + "\"detail-type\":\"EC2 Instance State-change Notification\",\"source\":\"aws.ec2\","
+                + "\"time\":\"2024-05-01T12:00:00Z\",\"region\":\"us-east-1\","
+                + "\"detail\":{\"instance-id\":\"i-1234\",\"state\":\"terminated\"}}");
+
+        assertEquals(EC2InstanceEvent.Type.STATE_CHANGE, event.getType());
+        assertEquals("i-1234", event.getInstanceId());
+        assertEquals(InstanceStateName.TERMINATED, event.getState());
+        assertEquals(Instant.parse("2024-05-01T12:00:00Z"), event.getTime());
+    }
+
+    @Test
+    void testParseSpotInterruption() {
+        EC2InstanceEvent event = EC2InstanceEvent.fromEventBridge(
+                "{\"detail-type\":\"EC2 Spot Instance Interruption Warning\","
+                        + "\"detail\":{\"instance-id\":\"i-5678\",\"instance-action\":\"terminate\"}}");
+
+        assertEquals(EC2InstanceEvent.Type.SPOT_INTERRUPTION, event.getType());
+        assertEquals("i-5678", event.getInstanceId());
+        assertNull(event.getState());
+    }
+
+    @Test
+    void testIgnoreOtherMessages() {
+        assertNull(EC2InstanceEvent.fromEventBridge(
+                "{\"detail-type\":\"AWS API Call via CloudTrail\",\"detail\":{\"instance-id\":\"i-1\"}}"));
+        assertNull(EC2InstanceEvent.fromEventBridge("not json"));
+    }
+
+    @Test
+    void testInMemorySourceHandsEventsOutOnce() {
+        InMemoryEC2InstanceEventSource source = new InMemoryEC2InstanceEventSource();
+        source.offer(EC2InstanceEvent.stateChange("i-1", InstanceStateName.RUNNING));
+        source.offer(EC2InstanceEvent.spotInterruption("i-2"));
+        source.offer("{\"detail-type\":\"EC2 Instance State-change Notification\","
+                + "\"detail\":{\"instance-id\":\"i-3\",\"state\":\"stopped\"}}");
+
+        List<EC2InstanceEvent> first = source.receive(2);
+        assertEquals(2, first.size());
+        assertEquals("i-1", first.get(0).getInstanceId());
+        List<EC2InstanceEvent> second = source.receive(10);
+        assertEquals(1, second.size());
+        assertEquals(InstanceStateName.STOPPED, second.get(0).getState());
+        assertEquals(0, source.receive(10).size());
+    }
+}
@@ -0,0 +1,103 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+class EC2InstanceStateStoreTest {
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    @BeforeEach
+    void init() {
+        ec2 = Mockito.mock(Ec2Client.class);
+        cloud = Mockito.mock(EC2Cloud.class);
+        Mockito.doReturn(ec2).when(cloud).connect();
+    }
+
+    private void respondWith(Instance instance) {
+        Mockito.doReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder().instances(instance).build())
+                        .build())
+                .when(ec2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    private static Instance instance(InstanceStateName state, Instant launchTime) {
+        return Instance.builder()
+                .instanceId("i-1")
+                .launchTime(launchTime)
+                .state(InstanceState.builder().name(state).build())
+                .build();
+    }
+
+    @Test
+    void testTtlDependsOnState() {
+        long now = System.currentTimeMillis();
+        Instant justLaunched = Instant.ofEpochMilli(now);
+        Instant longAgo = Instant.ofEpochMilli(now - TimeUnit.DAYS.toMillis(1));
+
+        assertEquals(
+                EC2InstanceStateStore.TRANSITIONAL_TTL,
+                EC2InstanceStateStore.ttl(instance(InstanceStateName.PENDING, justLaunched), now));
+        assertEquals(
+                EC2InstanceStateStore.TRANSITIONAL_TTL,
+                EC2InstanceStateStore.ttl(instance(InstanceStateName.STOPPING, longAgo), now));
+        assertEquals(
+                EC2InstanceStateStore.RUNNING_MIN_TTL,
+                EC2InstanceStateStore.ttl(instance(InstanceStateName.RUNNING, justLaunched), now));
+        assertEquals(
+                EC2InstanceStateStore.RUNNING_MAX_TTL,
+                EC2InstanceStateStore.ttl(instance(InstanceStateName.RUNNING, longAgo), now));
+        assertEquals(
+                EC2InstanceStateStore.SETTLED_TTL,
+                EC2InstanceStateStore.ttl(instance(InstanceStateName.TERMINATED, longAgo), now));
+        assertEquals(EC2InstanceStateStore.SETTLED_TTL, EC2InstanceStateStore.ttl(null, now));
+    }
+
+    @Test
+    void testFreshDescriptionIsShared() throws Exception {
+        Instance running = instance(InstanceStateName.RUNNING, Instant.now());
+        respondWith(running);
+        EC2InstanceStateStore store = EC2InstanceStateStore.get(cloud);
+
+        assertSame(running, store.getInstance("i-1", cloud, false));
+        assertSame(running, store.getInstance("i-1", cloud, false));
+        assertSame(store, EC2InstanceStateStore.get(cloud));
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getMisses());
+        Mockito.verify(ec2, Mockito.times(1)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    void testForceAndInvalidateGoToEc2() throws Exception {
+        respondWith(instance(InstanceStateName.RUNNING, Instant.now()));
+        EC2InstanceStateStore store = EC2InstanceStateStore.get(cloud);
+        store.getInstance("i-1", cloud, false);
+
+        Instance stopping = instance(InstanceStateName.STOPPING, Instant.now());
+        respondWith(stopping);
+        assertSame(stopping, store.getInstance("i-1", cloud, true));
+
+        Instance stopped = instance(InstanceStateName.STOPPED, Instant.now());
+        respondWith(stopped);
+        store.invalidate(List.of("i-1"));
+        assertSame(stopped, store.getInstance("i-1", cloud, false));
+        Mockito.verify(ec2, Mockito.times(3)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+}
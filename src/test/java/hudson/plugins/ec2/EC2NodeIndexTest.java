@@ -0,0 +1,110 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.List;
+import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+
+class EC2NodeIndexTest {
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        Jenkins jenkins = mock(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+        when(jenkins.getNodes()).thenReturn(nodes);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mockedJenkins.close();
+    }
+
+    private static EC2AbstractSlave onDemandSlave(String instanceId) {
+        EC2AbstractSlave slave = mock(EC2OndemandSlave.class);
+        when(slave.getInstanceId()).thenReturn(instanceId);
+        return slave;
+    }
+
+    @Test
+    void testLookupsAfterBuild() {
+        EC2AbstractSlave onDemand = onDemandSlave("i-1");
+        EC2SpotSlave spot = mock(EC2SpotSlave.class);
+        when(spot.getSpotInstanceRequestId()).thenReturn("sir-1");
+        nodes.add(onDemand);
+        nodes.add(spot);
+
+        EC2NodeIndex index = EC2NodeIndex.get();
+
+        assertSame(onDemand, index.getByInstanceId("i-1"));
+        assertSame(spot, index.getBySpotRequestId("sir-1"));
+        assertNull(index.getByInstanceId("i-2"));
+        assertEquals(List.of(spot), index.getSpotNodes());
+        assertEquals(2, index.getNodes().size());
+        // The spot agent is not looked up while its instance is unknown
+        Mockito.verify(spot, Mockito.never()).getInstanceId();
+    }
+
+    @Test
+    void testListenerKeepsIndexCurrent() {
+        EC2NodeIndex index = EC2NodeIndex.get();
+        assertEquals(0, index.getNodes().size());
+
+        EC2NodeIndex.Listener listener = new EC2NodeIndex.Listener();
+        EC2AbstractSlave first = onDemandSlave("i-1");
+        listener.onCreated(first);
+        assertSame(first, index.getByInstanceId("i-1"));
+
+        EC2AbstractSlave replacement = onDemandSlave("i-2");
+        listener.onUpdated(first, replacement);
+        assertNull(index.getByInstanceId("i-1"));
+        assertSame(replacement, index.getByInstanceId("i-2"));
+
+        listener.onDeleted(replacement);
+        assertNull(index.getByInstanceId("i-2"));
+        assertEquals(0, index.getNodes().size());
+    }
+
+    @Test
+    void testSpotAgentIsIndexedOnceFulfilled() {
+        EC2SpotSlave spot = mock(EC2SpotSlave.class);
+        when(spot.getSpotInstanceRequestId()).thenReturn("sir-1");
+        nodes.add(spot);
+        EC2NodeIndex index = EC2NodeIndex.get();
+        assertNull(index.getByInstanceId("i-1"));
+
+        spot.instanceId = "i-1";
+        index.onInstanceIdKnown(spot);
+
+        assertSame(spot, index.getByInstanceId("i-1"));
+        assertSame(spot, index.getBySpotRequestId("sir-1"));
+    }
+
+    @Test
+    void testInvalidateRebuilds() {
+        EC2NodeIndex index = EC2NodeIndex.get();
+        assertNull(index.getByInstanceId("i-1"));
+
+        // Added without listener event, e.g. on configuration reload
+        nodes.add(onDemandSlave("i-1"));
+        assertNull(index.getByInstanceId("i-1"));
+        index.invalidate();
+
+        assertSame(nodes.get(0), index.getByInstanceId("i-1"));
+    }
+}
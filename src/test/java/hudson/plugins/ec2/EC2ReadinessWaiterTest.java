@@ -0,0 +1,283 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.model.Node;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.LaunchSpecification;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceStatus;
+
+class EC2ReadinessWaiterTest {
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    private SlaveTemplate template;
+
+    @BeforeEach
+    void init() {
+        ec2 = Mockito.mock(Ec2Client.class);
+        cloud = Mockito.mock(EC2Cloud.class);
+        Mockito.doReturn(ec2).when(cloud).connect();
+        template = Mockito.mock(SlaveTemplate.class);
+    }
+
+    private EC2AbstractSlave onDemandSlave(String instanceId) {
+        EC2AbstractSlave slave = Mockito.mock(EC2OndemandSlave.class);
+        Mockito.doReturn(cloud).when(slave).getCloud();
+        Mockito.doReturn(instanceId).when(slave).getInstanceId();
+        return slave;
+    }
+
+    private static Instance instance(String id, InstanceStateName state) {
+        return Instance.builder()
+                .instanceId(id)
+                .launchTime(Instant.now())
+                .state(InstanceState.builder().name(state).build())
+                .build();
+    }
+
+    @Test
+    void testDueAgentsAreCheckedInOneCall() {
+        Mockito.doReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder()
+                                .instances(
+                                        instance("i-1", InstanceStateName.RUNNING),
+                                        instance("i-2", InstanceStateName.PENDING))
+                                .build())
+                        .build())
+                .when(ec2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        EC2AbstractSlave running = onDemandSlave("i-1");
+        CompletableFuture<Node> runningFuture = new CompletableFuture<>();
+        CompletableFuture<Node> pendingFuture = new CompletableFuture<>();
+        EC2ReadinessWaiter waiter = new EC2ReadinessWaiter();
+        waiter.await(template, running, runningFuture);
+        waiter.await(template, onDemandSlave("i-2"), pendingFuture);
+
+        waiter.tick();
+
+        ArgumentCaptor<DescribeInstancesRequest> request = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        Mockito.verify(ec2, Mockito.times(1)).describeInstances(request.capture());
+        assertEquals(List.of("i-1", "i-2"), request.getValue().instanceIds());
+        assertSame(running, runningFuture.getNow(null));
+        assertFalse(pendingFuture.isDone());
+        assertEquals(1, waiter.getPendingCount());
+
+        // The pending agent backs off, so an immediate tick does not describe it again
+        waiter.tick();
+        Mockito.verify(ec2, Mockito.times(1)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    void testTicksOnlyRunWhileAgentsWait() throws InterruptedException {
+        EC2ReadinessWaiter waiter = new EC2ReadinessWaiter(true);
+        assertFalse(waiter.isScheduled());
+
+        // Cancelled by the NodeProvisioner, the next tick drops it and finds nothing left to wait for
+        CompletableFuture<Node> future = new CompletableFuture<>();
+        future.cancel(false);
+        waiter.await(template, onDemandSlave("i-1"), future);
+        assertTrue(waiter.isScheduled());
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (waiter.isScheduled() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertFalse(waiter.isScheduled());
+        assertEquals(0, waiter.getPendingCount());
+        Mockito.verifyNoInteractions(ec2);
+    }
+
+    @Test
+    void testInstanceNotVisibleYetDoesNotFailTheOthers() {
+        Mockito.doAnswer(invocation -> {
+                    DescribeInstancesRequest request = invocation.getArgument(0);
+                    if (!request.hasFilters()) {
+                        throw AwsServiceException.builder()
+                                .awsErrorDetails(AwsErrorDetails.builder()
+                                        .errorCode(CloudHelper.INSTANCE_NOT_FOUND_ERROR_CODE)
+                                        .build())
+                                .build();
+                    }
+                    return DescribeInstancesResponse.builder()
+                            .reservations(Reservation.builder()
+                                    .instances(instance("i-1", InstanceStateName.RUNNING))
+                                    .build())
+                            .build();
+                })
+                .when(ec2)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        EC2AbstractSlave running = onDemandSlave("i-1");
+        CompletableFuture<Node> runningFuture = new CompletableFuture<>();
+        CompletableFuture<Node> newFuture = new CompletableFuture<>();
+        EC2ReadinessWaiter waiter = new EC2ReadinessWaiter();
+        waiter.await(template, running, runningFuture);
+        waiter.await(template, onDemandSlave("i-new"), newFuture);
+
+        waiter.tick();
+
+        // One call failing on the unknown id, then one with a filter, rather than one call per id
+        Mockito.verify(ec2, Mockito.times(2)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        assertSame(running, runningFuture.getNow(null));
+        assertFalse(newFuture.isDone());
+        assertEquals(1, waiter.getPendingCount());
+    }
+
+    @Test
+    void testDeadSpotRequestCompletesWithNull() {
+        Mockito.doReturn(DescribeSpotInstanceRequestsResponse.builder()
+                        .spotInstanceRequests(SpotInstanceRequest.builder()
+                                .spotInstanceRequestId("sir-1")
+                                .state(SpotInstanceState.CANCELLED)
+                                .build())
+                        .build())
+                .when(ec2)
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+        EC2SpotSlave slave = Mockito.mock(EC2SpotSlave.class);
+        Mockito.doReturn(cloud).when(slave).getCloud();
+        Mockito.doReturn("sir-1").when(slave).getSpotInstanceRequestId();
+        CompletableFuture<Node> future = new CompletableFuture<>();
+        EC2ReadinessWaiter waiter = new EC2ReadinessWaiter();
+        waiter.await(template, slave, future);
+
+        waiter.tick();
+
+        assertTrue(future.isDone());
+        assertNull(future.getNow(null));
+        assertEquals(0, waiter.getPendingCount());
+        Mockito.verify(ec2, Mockito.never()).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+    }
+
+    @Test
+    void testInstanceEventsCompleteWithoutPolling() {
+        EC2AbstractSlave running = onDemandSlave("i-1");
+        running.instanceId = "i-1";
+        EC2AbstractSlave terminated = onDemandSlave("i-2");
+        terminated.instanceId = "i-2";
+        CompletableFuture<Node> runningFuture = new CompletableFuture<>();
+        CompletableFuture<Node> terminatedFuture = new CompletableFuture<>();
+        EC2ReadinessWaiter waiter = new EC2ReadinessWaiter();
+        waiter.await(template, running, runningFuture);
+        waiter.await(template, terminated, terminatedFuture);
+
+        waiter.onInstanceState("i-1", InstanceStateName.RUNNING);
+        waiter.onInstanceState("i-2", InstanceStateName.TERMINATED);
+
+        assertSame(running, runningFuture.getNow(null));
+        assertTrue(terminatedFuture.isDone());
+        assertNull(terminatedFuture.getNow(running));
+        assertEquals(0, waiter.getPendingCount());
+        Mockito.verifyNoInteractions(ec2);
+    }
+
+    @Test
+    void testSpotRequestsKeepPollingWhileEventsAreReceived() {
+        EC2SpotSlave spotSlave = Mockito.mock(EC2SpotSlave.class);
+        EC2ReadinessWaiter.Waiting unfulfilled =
+                new EC2ReadinessWaiter.Waiting(template, spotSlave, new CompletableFuture<>());
+        EC2AbstractSlave launched = onDemandSlave("i-1");
+        launched.instanceId = "i-1";
+        EC2ReadinessWaiter.Waiting pending =
+                new EC2ReadinessWaiter.Waiting(template, launched, new CompletableFuture<>());
+
+        try (MockedStatic<EC2InstanceEventIngestor> ingestor = Mockito.mockStatic(EC2InstanceEventIngestor.class)) {
+            ingestor.when(EC2InstanceEventIngestor::isActive).thenReturn(true);
+            for (int i = 0; i < 20; i++) {
+                EC2ReadinessWaiter.reschedule(unfulfilled, 0);
+                EC2ReadinessWaiter.reschedule(pending, 0);
+            }
+        }
+
+        // Spot requests get no events, their polls back off no further than without events
+        assertEquals(EC2ReadinessWaiter.MAX_POLL_MILLIS, unfulfilled.interval);
+        assertEquals(EC2ReadinessWaiter.EVENT_FALLBACK_POLL_MILLIS, pending.interval);
+    }
+
+    private static SpotInstanceRequest spotRequest(String id, String statusCode, String instanceId) {
+        return SpotInstanceRequest.builder()
+                .spotInstanceRequestId(id)
+                .state(instanceId == null ? SpotInstanceState.OPEN : SpotInstanceState.ACTIVE)
+                .status(SpotInstanceStatus.builder().code(statusCode).build())
+                .instanceId(instanceId)
+                .launchSpecification(LaunchSpecification.builder()
+                        .subnetId("subnet-a")
+                        .instanceType("m5.large")
+                        .build())
+                .build();
+    }
+
+    private EC2SpotSlave spotSlave(String spotInstanceRequestId, String instanceId) {
+        EC2SpotSlave slave = Mockito.mock(EC2SpotSlave.class);
+        Mockito.doReturn(cloud).when(slave).getCloud();
+        Mockito.doReturn(spotInstanceRequestId).when(slave).getSpotInstanceRequestId();
+        Mockito.doReturn(instanceId).when(slave).getInstanceId();
+        return slave;
+    }
+
+    @Test
+    void testSpotOutcomesAreRecordedForTheSubnet() {
+        EC2SubnetScorer.reset();
+        try {
+            Mockito.doReturn(DescribeSpotInstanceRequestsResponse.builder()
+                            .spotInstanceRequests(
+                                    spotRequest("sir-1", "capacity-not-available", null),
+                                    spotRequest("sir-2", "fulfilled", "i-2"))
+                            .build())
+                    .when(ec2)
+                    .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+            Mockito.doReturn(DescribeInstancesResponse.builder()
+                            .reservations(Reservation.builder()
+                                    .instances(instance("i-2", InstanceStateName.PENDING))
+                                    .build())
+                            .build())
+                    .when(ec2)
+                    .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+            for (int i = 0; i < EC2SubnetScorer.FAILURE_THRESHOLD - 1; i++) {
+                EC2SubnetScorer.recordFailure("subnet-a", "m5.large", "InsufficientInstanceCapacity");
+            }
+            EC2ReadinessWaiter waiter = new EC2ReadinessWaiter();
+            waiter.await(template, spotSlave("sir-1", null), new CompletableFuture<>());
+
+            waiter.tick();
+
+            // The template does not fall back to on-demand, the capacity error is recorded here
+            EC2SubnetScorer.Stats stats = EC2SubnetScorer.stats("subnet-a", "m5.large");
+            assertTrue(stats.isEjected(System.currentTimeMillis()));
+
+            waiter.await(template, spotSlave("sir-2", "i-2"), new CompletableFuture<>());
+            waiter.tick();
+
+            // The fulfilled request closes the breaker, whatever the template
+            assertFalse(stats.isEjected(System.currentTimeMillis()));
+        } finally {
+            EC2SubnetScorer.reset();
+        }
+    }
+}
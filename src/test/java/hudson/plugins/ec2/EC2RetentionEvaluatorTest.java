@@ -0,0 +1,135 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Node;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.HashMap;
+import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+
+class EC2RetentionEvaluatorTest {
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    private final List<Node> nodes = new ArrayList<>();
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    private SlaveTemplate template;
+
+    @BeforeEach
+    void setUp() {
+        Jenkins jenkins = mock(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+        when(jenkins.getNodes()).thenReturn(nodes);
+        ec2 = mock(Ec2Client.class);
+        cloud = mock(EC2Cloud.class);
+        when(cloud.connect()).thenReturn(ec2);
+        template = mock(SlaveTemplate.class);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mockedJenkins.close();
+    }
+
+    private EC2RetentionStrategy agent(String instanceId, boolean idle) {
+        EC2OndemandSlave node = mock(EC2OndemandSlave.class);
+        when(node.getInstanceId()).thenReturn(instanceId);
+        when(node.getCloud()).thenReturn(cloud);
+        EC2Computer computer = mock(EC2Computer.class);
+        when(node.toComputer()).thenReturn(computer);
+        when(computer.getNode()).thenReturn(node);
+        when(computer.getCloud()).thenReturn(cloud);
+        when(computer.getSlaveTemplate()).thenReturn(template);
+        when(computer.isIdle()).thenReturn(idle);
+        EC2RetentionStrategy strategy = mock(EC2RetentionStrategy.class);
+        when(computer.getRetentionStrategy()).thenReturn(strategy);
+        nodes.add(node);
+        return strategy;
+    }
+
+    private static Instance instance(String id) {
+        return Instance.builder()
+                .instanceId(id)
+                .launchTime(Instant.now())
+                .state(InstanceState.builder().name(InstanceStateName.RUNNING).build())
+                .build();
+    }
+
+    @Test
+    void testIdleInstancesAreDescribedTogether() {
+        when(ec2.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+                .thenReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder()
+                                .instances(instance("i-1"), instance("i-2"))
+                                .build())
+                        .build());
+        EC2RetentionStrategy first = agent("i-1", true);
+        EC2RetentionStrategy second = agent("i-2", true);
+        EC2RetentionStrategy busy = agent("i-3", false);
+
+        new EC2RetentionEvaluator().evaluate();
+
+        ArgumentCaptor<DescribeInstancesRequest> request = ArgumentCaptor.forClass(DescribeInstancesRequest.class);
+        verify(ec2, times(1)).describeInstances(request.capture());
+        assertEquals(List.of("i-1", "i-2"), request.getValue().instanceIds());
+
+        ArgumentCaptor<EC2Computer> computer = ArgumentCaptor.forClass(EC2Computer.class);
+        ArgumentCaptor<EC2RetentionEvaluator.Snapshot> snapshot =
+                ArgumentCaptor.forClass(EC2RetentionEvaluator.Snapshot.class);
+        verify(first).check(computer.capture(), snapshot.capture());
+        verify(second).check(Mockito.any(EC2Computer.class), Mockito.same(snapshot.getValue()));
+        verify(busy).check(Mockito.any(EC2Computer.class), Mockito.same(snapshot.getValue()));
+        assertEquals("i-1", snapshot.getValue().getInstance(computer.getValue()).instanceId());
+        // Mocked agents and template have no description, so all agents are of the template
+        assertEquals(3, snapshot.getValue().countAgents(template));
+    }
+
+    @Test
+    void testComputersOfCloudFailingToDescribeAreLeftToTheirOwnCheck() {
+        when(ec2.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+                .thenThrow(SdkException.builder().message("test exception").build());
+        EC2RetentionStrategy idle = agent("i-1", true);
+
+        new EC2RetentionEvaluator().evaluate();
+
+        verify(idle, Mockito.never()).check(Mockito.any(EC2Computer.class), Mockito.any());
+    }
+
+    @Test
+    void testSnapshotOfOtherComputers() {
+        EC2RetentionEvaluator.Snapshot snapshot = new EC2RetentionEvaluator.Snapshot(new HashMap<>(), new HashMap<>());
+        EC2Computer computer = mock(EC2Computer.class);
+        EC2OndemandSlave node = mock(EC2OndemandSlave.class);
+        when(node.getInstanceId()).thenReturn("i-1");
+        when(computer.getNode()).thenReturn(node);
+
+        assertNull(snapshot.getInstance(computer));
+        assertEquals(0, snapshot.countAgents(template));
+    }
+}
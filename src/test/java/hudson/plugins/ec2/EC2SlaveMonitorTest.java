@@ -3,22 +3,43 @@ package hudson.plugins.ec2;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import hudson.model.Node;
+import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
 import hudson.plugins.ec2.util.SSHCredentialHelper;
 import java.security.Security;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
 import software.amazon.awssdk.services.ec2.model.InstanceType;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
 
 @WithJenkins
 class EC2SlaveMonitorTest {
 
     private JenkinsRule r;
 
+    @AfterEach
+    void restoreClock() {
+        EC2SlaveMonitor.clock = System::currentTimeMillis;
+    }
+
     @BeforeEach
     void setUp(JenkinsRule rule) {
         r = rule;
@@ -165,4 +186,180 @@ class EC2SlaveMonitorTest {
                         .filter(EC2Computer.class::isInstance)
                         .count());
     }
+
+    /**
+     * Adds a cloud with two on-demand agents, and no minimum number of instances that would replace them.
+     */
+    private EC2Cloud cloudWithTwoAgents() throws Exception {
+        AmazonEC2FactoryMockImpl.mock = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        SlaveTemplate template = new SlaveTemplate(
+                "ami1",
+                EC2AbstractSlave.TEST_ZONE,
+                null,
+                "default",
+                "foo",
+                InstanceType.M1_LARGE.toString(),
+                false,
+                "ttt",
+                Node.Mode.NORMAL,
+                "foo ami",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                EC2AbstractSlave.DEFAULT_JAVA_PATH,
+                "-Xmx1g",
+                false,
+                "subnet 456",
+                null,
+                null,
+                0,
+                0,
+                null,
+                null,
+                true,
+                true,
+                "",
+                false,
+                "",
+                false,
+                false,
+                true,
+                ConnectionStrategy.PRIVATE_IP,
+                -1,
+                Collections.emptyList(),
+                null,
+                Tenancy.Default,
+                EbsEncryptRootVolume.DEFAULT,
+                EC2AbstractSlave.DEFAULT_METADATA_ENDPOINT_ENABLED,
+                EC2AbstractSlave.DEFAULT_METADATA_TOKENS_REQUIRED,
+                EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT,
+                EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED,
+                EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED);
+        SSHCredentialHelper.assureSshCredentialAvailableThroughCredentialProviders("ghi");
+        EC2Cloud cloud = new EC2Cloud(
+                "us-east-1",
+                true,
+                "abc",
+                "us-east-1",
+                null,
+                "ghi",
+                "10",
+                Collections.singletonList(template),
+                "roleArn",
+                "roleSessionName");
+        r.jenkins.clouds.add(cloud);
+        cloud.provision(template, 2);
+        assertEquals(2, countEC2Computers());
+        return cloud;
+    }
+
+    private static long countEC2Computers() {
+        return Arrays.stream(Jenkins.get().getComputers())
+                .filter(EC2Computer.class::isInstance)
+                .count();
+    }
+
+    @Test
+    void testRemovesAgentsOfTerminatedAndMissingInstances() throws Exception {
+        cloudWithTwoAgents();
+        Instance terminated = AmazonEC2FactoryMockImpl.instances.get(0);
+        AmazonEC2FactoryMockImpl.instances.set(
+                0,
+                terminated.toBuilder()
+                        .state(InstanceState.builder()
+                                .name(InstanceStateName.TERMINATED)
+                                .build())
+                        .build());
+        // The other instance is gone from EC2 altogether
+        AmazonEC2FactoryMockImpl.instances.remove(1);
+
+        EC2SlaveMonitor monitor = new EC2SlaveMonitor();
+        monitor.removeDeadNodes();
+
+        // The missing instance may just not be listed yet
+        assertEquals(1, monitor.getLastRemovedCount());
+        awaitEC2Computers(1);
+
+        long later = System.currentTimeMillis() + EC2SlaveMonitor.NOT_FOUND_GRACE;
+        EC2SlaveMonitor.clock = () -> later;
+        monitor.removeDeadNodes();
+
+        assertEquals(1, monitor.getLastRemovedCount());
+        awaitEC2Computers(0);
+    }
+
+    /**
+     * Waits for the agents to be removed once their termination has been handled in the background.
+     */
+    private static void awaitEC2Computers(long expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (countEC2Computers() > expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(expected, countEC2Computers());
+    }
+
+    @Test
+    void testSpotAgentsAreCheckedFromOneBatchOfRequests() {
+        Ec2Client ec2 = Mockito.mock(Ec2Client.class);
+        EC2Cloud cloud = Mockito.mock(EC2Cloud.class);
+        Mockito.doReturn(ec2).when(cloud).connect();
+        Mockito.doReturn(DescribeSpotInstanceRequestsResponse.builder()
+                        .spotInstanceRequests(
+                                SpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-open")
+                                        .state(SpotInstanceState.OPEN)
+                                        .build(),
+                                SpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-cancelled")
+                                        .state(SpotInstanceState.CANCELLED)
+                                        .build())
+                        .build())
+                .when(ec2)
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+        EC2SpotSlave open = spotSlave("sir-open");
+        EC2SpotSlave cancelled = spotSlave("sir-cancelled");
+        // Agents loaded from disk are not new, a request EC2 does not list is gone
+        EC2SpotSlave missing = spotSlave("sir-missing");
+
+        int removed = new EC2SlaveMonitor().sweep(cloud, List.of(open, cancelled, missing));
+
+        assertEquals(2, removed);
+        Mockito.verify(open, Mockito.never()).terminate();
+        Mockito.verify(cancelled).terminate();
+        Mockito.verify(missing).terminate();
+        Mockito.verify(ec2, Mockito.times(1))
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+        for (EC2SpotSlave node : List.of(open, cancelled, missing)) {
+            Mockito.verify(node, Mockito.never()).isAlive(Mockito.anyBoolean());
+        }
+    }
+
+    private static EC2SpotSlave spotSlave(String spotInstanceRequestId) {
+        EC2SpotSlave node = Mockito.mock(EC2SpotSlave.class);
+        Mockito.doReturn(spotInstanceRequestId).when(node).getSpotInstanceRequestId();
+        return node;
+    }
+
+    @Test
+    void testFailedDescribeRemovesNothing() throws Exception {
+        cloudWithTwoAgents();
+        Mockito.doThrow(Ec2Exception.builder()
+                        .message("test exception")
+                        .awsErrorDetails(AwsErrorDetails.builder()
+                                .errorCode("InternalError")
+                                .build())
+                        .build())
+                .when(AmazonEC2FactoryMockImpl.mock)
+                .describeInstances(Mockito.any(DescribeInstancesRequest.class));
+
+        EC2SlaveMonitor monitor = new EC2SlaveMonitor();
+        monitor.removeDeadNodes();
+
+        assertEquals(0, monitor.getLastRemovedCount());
+        assertEquals(2, countEC2Computers());
+    }
 }
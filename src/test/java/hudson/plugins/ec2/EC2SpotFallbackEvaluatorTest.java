@@ -0,0 +1,85 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceStatus;
+
+class EC2SpotFallbackEvaluatorTest {
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    private SlaveTemplate template;
+
+    @BeforeEach
+    void init() {
+        ec2 = mock(Ec2Client.class);
+        cloud = mock(EC2Cloud.class);
+        when(cloud.connect()).thenReturn(ec2);
+        template = mock(SlaveTemplate.class);
+    }
+
+    private static SpotInstanceRequest request(String id, String code) {
+        return SpotInstanceRequest.builder()
+                .spotInstanceRequestId(id)
+                .state(SpotInstanceState.OPEN)
+                .status(SpotInstanceStatus.builder().code(code).build())
+                .build();
+    }
+
+    private void respondWith(SpotInstanceRequest... requests) {
+        when(ec2.describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class)))
+                .thenReturn(DescribeSpotInstanceRequestsResponse.builder()
+                        .spotInstanceRequests(requests)
+                        .build());
+    }
+
+    @Test
+    void testFallsBackForRequestsWithoutCapacity() throws Exception {
+        EC2SpotFallbackEvaluator evaluator = new EC2SpotFallbackEvaluator(cloud);
+        EC2SpotSlave noCapacity = mock(EC2SpotSlave.class);
+        EC2SpotSlave fulfilled = mock(EC2SpotSlave.class);
+        evaluator.watch(template, noCapacity, request("sir-1", EC2SpotFallbackEvaluator.PENDING_EVALUATION));
+        evaluator.watch(template, fulfilled, request("sir-2", EC2SpotFallbackEvaluator.PENDING_EVALUATION));
+        respondWith(request("sir-1", "capacity-not-available"), request("sir-2", "fulfilled"));
+
+        evaluator.evaluate();
+
+        verify(noCapacity).terminate();
+        verify(fulfilled, never()).terminate();
+        verify(cloud).provisionOndemandFallback(template, 1);
+        // Both requests refreshed in one call
+        verify(ec2, times(1)).describeSpotInstanceRequests(any(DescribeSpotInstanceRequestsRequest.class));
+        assertEquals(0, evaluator.getPendingCount());
+    }
+
+    @Test
+    void testKeepsWatchingRequestsPendingEvaluation() throws Exception {
+        EC2SpotFallbackEvaluator evaluator = new EC2SpotFallbackEvaluator(cloud);
+        EC2SpotSlave node = mock(EC2SpotSlave.class);
+        SpotInstanceRequest pending = request("sir-1", EC2SpotFallbackEvaluator.PENDING_EVALUATION);
+        evaluator.watch(template, node, pending);
+        respondWith(pending);
+
+        evaluator.evaluate();
+
+        verify(node, never()).terminate();
+        verify(cloud, never()).provisionOndemandFallback(any(), anyInt());
+        assertEquals(1, evaluator.getPendingCount());
+    }
+}
@@ -0,0 +1,196 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import hudson.model.Node;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.awscore.exception.AwsServiceException;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceState;
+
+class EC2SpotRequestStoreTest {
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    private long now = 1_000_000L;
+
+    @BeforeEach
+    void init() {
+        ec2 = Mockito.mock(Ec2Client.class);
+        cloud = Mockito.mock(EC2Cloud.class);
+        Mockito.doReturn(ec2).when(cloud).connect();
+        EC2SpotRequestStore.clock = () -> now;
+    }
+
+    @AfterEach
+    void restoreClock() {
+        EC2SpotRequestStore.clock = System::currentTimeMillis;
+    }
+
+    /**
+     * Mocks Jenkins with a spot agent for each of the given requests.
+     */
+    private static MockedStatic<Jenkins> mockAgents(String... requestIds) {
+        Jenkins jenkins = Mockito.mock(Jenkins.class);
+        List<Node> nodes = new ArrayList<>();
+        for (String requestId : requestIds) {
+            EC2SpotSlave node = Mockito.mock(EC2SpotSlave.class);
+            Mockito.doReturn(requestId).when(node).getSpotInstanceRequestId();
+            nodes.add(node);
+        }
+        Mockito.doReturn(nodes).when(jenkins).getNodes();
+        MockedStatic<Jenkins> mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+        return mockedJenkins;
+    }
+
+    private static SpotInstanceRequest request(String id, SpotInstanceState state, String instanceId) {
+        return SpotInstanceRequest.builder()
+                .spotInstanceRequestId(id)
+                .state(state)
+                .instanceId(instanceId)
+                .build();
+    }
+
+    private void respondWith(SpotInstanceRequest... requests) {
+        Mockito.doReturn(DescribeSpotInstanceRequestsResponse.builder()
+                        .spotInstanceRequests(requests)
+                        .build())
+                .when(ec2)
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+    }
+
+    @Test
+    void testFulfilledRequestIsServedFromStore() {
+        SpotInstanceRequest fulfilled = request("sir-1", SpotInstanceState.ACTIVE, "i-1");
+        respondWith(fulfilled);
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+
+        assertSame(fulfilled, store.getRequest("sir-1", cloud));
+        assertSame(fulfilled, store.getRequest("sir-1", cloud));
+
+        Mockito.verify(ec2, Mockito.times(1))
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+        assertEquals(1, store.getHits());
+        assertEquals(1, store.getMisses());
+    }
+
+    @Test
+    void testCancelledRequestIsFetchedAgain() {
+        respondWith(request("sir-1", SpotInstanceState.ACTIVE, "i-1"));
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+        store.getRequest("sir-1", cloud);
+
+        store.invalidate(List.of("sir-1"));
+        SpotInstanceRequest cancelled = request("sir-1", SpotInstanceState.CANCELLED, "i-1");
+        respondWith(cancelled);
+
+        assertSame(cancelled, store.getRequest("sir-1", cloud));
+        ArgumentCaptor<DescribeSpotInstanceRequestsRequest> captor =
+                ArgumentCaptor.forClass(DescribeSpotInstanceRequestsRequest.class);
+        Mockito.verify(ec2, Mockito.times(2)).describeSpotInstanceRequests(captor.capture());
+        assertEquals(List.of("sir-1"), captor.getValue().spotInstanceRequestIds());
+    }
+
+    @Test
+    void testUnknownRequestIsLeftOut() {
+        AwsServiceException notFound = AwsServiceException.builder()
+                .message("test exception")
+                .awsErrorDetails(AwsErrorDetails.builder()
+                        .errorCode(EC2SpotRequestStore.SPOT_REQUEST_NOT_FOUND_ERROR_CODE)
+                        .build())
+                .build();
+        SpotInstanceRequest known = request("sir-1", SpotInstanceState.ACTIVE, "i-1");
+        Mockito.doAnswer(invocation -> {
+                    DescribeSpotInstanceRequestsRequest request = invocation.getArgument(0);
+                    if (!request.spotInstanceRequestIds().isEmpty()) {
+                        throw notFound;
+                    }
+                    return DescribeSpotInstanceRequestsResponse.builder()
+                            .spotInstanceRequests(known)
+                            .build();
+                })
+                .when(ec2)
+                .describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+
+        store.refresh(List.of("sir-1", "sir-gone"), cloud);
+
+        assertSame(known, store.getRequest("sir-1", cloud));
+        assertNull(store.getRequest("sir-gone", cloud));
+    }
+
+    @Test
+    void testWaitersAreCompletedOnceFulfilled() {
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+        store.update(request("sir-1", SpotInstanceState.OPEN, null));
+        CompletableFuture<SpotInstanceRequest> future = store.whenFulfilled("sir-1", cloud);
+        assertFalse(future.isDone());
+
+        SpotInstanceRequest fulfilled = request("sir-1", SpotInstanceState.ACTIVE, "i-1");
+        store.update(fulfilled);
+
+        assertSame(fulfilled, future.getNow(null));
+        assertSame(fulfilled, store.whenFulfilled("sir-1", cloud).getNow(null));
+    }
+
+    @Test
+    void testOnlyRequestsOfRemainingAgentsAreBatched() {
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+        store.update(request("sir-kept", SpotInstanceState.OPEN, null));
+        store.update(request("sir-removed", SpotInstanceState.OPEN, null));
+        now += EC2SpotRequestStore.OPEN_TTL;
+        respondWith(request("sir-new", SpotInstanceState.OPEN, null));
+
+        try (MockedStatic<Jenkins> ignored = mockAgents("sir-kept", "sir-new")) {
+            store.getRequest("sir-new", cloud);
+        }
+
+        ArgumentCaptor<DescribeSpotInstanceRequestsRequest> captor =
+                ArgumentCaptor.forClass(DescribeSpotInstanceRequestsRequest.class);
+        Mockito.verify(ec2).describeSpotInstanceRequests(captor.capture());
+        assertEquals(List.of("sir-new", "sir-kept"), captor.getValue().spotInstanceRequestIds());
+    }
+
+    @Test
+    void testRequestsNobodyAsksForAreDroppedAlthoughFetched() {
+        EC2SpotRequestStore store = new EC2SpotRequestStore();
+        respondWith(
+                request("sir-asked", SpotInstanceState.ACTIVE, "i-1"),
+                request("sir-forgotten", SpotInstanceState.ACTIVE, "i-2"));
+        store.getRequests(List.of("sir-asked", "sir-forgotten"), cloud);
+
+        // Only one of them is asked for from then on, while both keep being fetched
+        for (int i = 0; i < 5; i++) {
+            now += EC2SpotRequestStore.SETTLED_TTL;
+            store.refresh(List.of("sir-asked", "sir-forgotten"), cloud);
+            store.getRequests(List.of("sir-asked"), cloud);
+        }
+        // A miss, which prunes the store
+        respondWith(request("sir-new", SpotInstanceState.ACTIVE, "i-3"));
+        store.getRequests(List.of("sir-asked", "sir-new"), cloud);
+
+        Mockito.clearInvocations(ec2);
+        respondWith();
+        assertNull(store.getRequests(List.of("sir-forgotten"), cloud).get("sir-forgotten"));
+        Mockito.verify(ec2).describeSpotInstanceRequests(Mockito.any(DescribeSpotInstanceRequestsRequest.class));
+    }
+}
@@ -6,7 +6,6 @@ import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.when;
 
-import hudson.model.PeriodicWork;
 import hudson.model.Result;
 import hudson.plugins.ec2.util.AmazonEC2FactoryMockImpl;
 import java.util.ArrayList;
@@ -21,13 +20,10 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 import org.mockito.Mock;
-import org.mockito.internal.stubbing.answers.ThrowsException;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.mockito.junit.jupiter.MockitoSettings;
 import org.mockito.quality.Strictness;
-import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
 import software.amazon.awssdk.services.ec2.Ec2Client;
-import software.amazon.awssdk.services.ec2.model.Ec2Exception;
 
 /**
  * @author Alicia Doblas
@@ -66,35 +62,19 @@ class EC2StepTest {
     }
 
     @Test
-    void testExpiredConnection() {
+    void testConnectionIsKept() {
         when(cl.connect()).thenCallRealMethod();
         when(cl.createCredentialsProvider()).thenCallRealMethod();
+        when(cl.getCredentialsManager()).thenCallRealMethod();
 
-        // not expired ec2 client
-        Ec2Client notExpiredClient = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
-        AmazonEC2FactoryMockImpl.mock = notExpiredClient;
-        assertSame(notExpiredClient, cl.connect(), "EC2 client not expired should be reused");
-
-        // expired ec2 client
-        //  based on a real exception
-        //  > Request has expired. (Service: AmazonEC2; Status Code: 400; Error Code: RequestExpired; Request ID:
-        // 00000000-0000-0000-0000-000000000000)
-        Ec2Exception.Builder expiredExceptionBuilder = Ec2Exception.builder();
-        expiredExceptionBuilder.message("Request has expired");
-        expiredExceptionBuilder.statusCode(400);
-        expiredExceptionBuilder.awsErrorDetails(AwsErrorDetails.builder()
-                .serviceName("AmazonEC2")
-                .errorCode("RequestExpired")
-                .build());
-        expiredExceptionBuilder.requestId("00000000-0000-0000-0000-000000000000");
-
-        Ec2Client expiredClient =
-                AmazonEC2FactoryMockImpl.createAmazonEC2Mock(new ThrowsException(expiredExceptionBuilder.build()));
-        AmazonEC2FactoryMockImpl.mock = expiredClient;
-        PeriodicWork work = PeriodicWork.all().get(EC2Cloud.EC2ConnectionUpdater.class);
-        assertNotNull(work);
-        work.run();
-        assertNotSame(expiredClient, cl.connect(), "EC2 client should be re-created when it is expired");
+        Ec2Client client = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        AmazonEC2FactoryMockImpl.mock = client;
+        assertSame(client, cl.connect(), "EC2 client should be reused");
+
+        // Credentials are refreshed by the credentials manager, the client does not need to be re-created
+        AmazonEC2FactoryMockImpl.mock = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        assertSame(client, cl.connect(), "EC2 client should be kept across credential refreshes");
+        assertNotNull(cl.getCredentialsManager());
     }
 
     @Test
@@ -0,0 +1,115 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class EC2SubnetScorerTest {
+
+    private static final String TYPE = "m5.large";
+
+    private static final List<String> SUBNETS = List.of("subnet-a", "subnet-b");
+
+    private long now = 1_000_000L;
+
+    @BeforeEach
+    void init() {
+        EC2SubnetScorer.reset();
+        EC2SubnetScorer.clock = () -> now;
+    }
+
+    @AfterEach
+    void restoreClock() {
+        EC2SubnetScorer.clock = System::currentTimeMillis;
+        EC2SubnetScorer.reset();
+    }
+
+    private static List<String> choose(EC2SubnetScorer scorer, int times) {
+        List<String> chosen = new ArrayList<>();
+        for (int i = 0; i < times; i++) {
+            chosen.add(scorer.choose(SUBNETS, TYPE));
+        }
+        return chosen;
+    }
+
+    @Test
+    void testRoundRobinWithoutHistory() {
+        assertEquals(
+                List.of("subnet-a", "subnet-b", "subnet-a", "subnet-b"), choose(new EC2SubnetScorer(), 4));
+    }
+
+    @Test
+    void testCapacityErrorLowersShare() {
+        EC2SubnetScorer scorer = new EC2SubnetScorer();
+        EC2SubnetScorer.recordFailure("subnet-a", TYPE, "InsufficientInstanceCapacity");
+        EC2SubnetScorer.recordSuccess("subnet-b", TYPE, 100);
+
+        List<String> chosen = choose(scorer, 10);
+
+        assertEquals("subnet-b", chosen.get(0));
+        assertTrue(Collections.frequency(chosen, "subnet-a") < Collections.frequency(chosen, "subnet-b"));
+    }
+
+    @Test
+    void testOtherErrorsAreIgnored() {
+        EC2SubnetScorer.recordFailure("subnet-a", TYPE, "UnauthorizedOperation");
+
+        assertEquals(0.5, EC2SubnetScorer.stats("subnet-a", TYPE).score());
+    }
+
+    @Test
+    void testOutcomesDecay() {
+        EC2SubnetScorer.recordFailure("subnet-a", TYPE, "InsufficientInstanceCapacity");
+        double afterFailure = EC2SubnetScorer.stats("subnet-a", TYPE).score();
+
+        now += EC2SubnetScorer.HALF_LIFE;
+
+        double later = EC2SubnetScorer.stats("subnet-a", TYPE).score();
+        assertTrue(afterFailure < later && later < 0.5);
+    }
+
+    @Test
+    void testEjectsAfterRepeatedCapacityErrorsThenProbes() {
+        EC2SubnetScorer scorer = new EC2SubnetScorer();
+        for (int i = 0; i < EC2SubnetScorer.FAILURE_THRESHOLD; i++) {
+            EC2SubnetScorer.recordFailure("subnet-a", TYPE, "InsufficientInstanceCapacity");
+        }
+        assertFalse(choose(scorer, 5).contains("subnet-a"));
+
+        // Half-open: a single probe goes to the subnet
+        now += EC2SubnetScorer.EJECTION;
+        List<String> chosen = choose(scorer, 5);
+        assertEquals(1, Collections.frequency(chosen, "subnet-a"));
+
+        // A failed probe ejects it again
+        EC2SubnetScorer.recordFailure("subnet-a", TYPE, "InsufficientInstanceCapacity");
+        assertTrue(EC2SubnetScorer.stats("subnet-a", TYPE).isEjected(now));
+
+        now += EC2SubnetScorer.EJECTION;
+        choose(scorer, 5);
+        // A successful one closes the breaker
+        EC2SubnetScorer.recordSuccess("subnet-a", TYPE, 100);
+        assertFalse(EC2SubnetScorer.stats("subnet-a", TYPE).isEjected(now));
+        assertTrue(choose(scorer, 5).contains("subnet-a"));
+    }
+
+    @Test
+    void testUsesSubnetBackFirstWhenAllAreEjected() {
+        for (int i = 0; i < EC2SubnetScorer.FAILURE_THRESHOLD; i++) {
+            EC2SubnetScorer.recordFailure("subnet-b", TYPE, "InsufficientInstanceCapacity");
+        }
+        now += 1000;
+        for (int i = 0; i < EC2SubnetScorer.FAILURE_THRESHOLD; i++) {
+            EC2SubnetScorer.recordFailure("subnet-a", TYPE, "InsufficientInstanceCapacity");
+        }
+
+        assertEquals("subnet-b", new EC2SubnetScorer().choose(SUBNETS, TYPE));
+    }
+}
@@ -0,0 +1,184 @@
+package hudson.plugins.ec2;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import hudson.plugins.ec2.util.ResettableCountDownLatch;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.MockedStatic;
+import org.mockito.Mockito;
+import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
+import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsRequest;
+import software.amazon.awssdk.services.ec2.model.CancelSpotInstanceRequestsResponse;
+import software.amazon.awssdk.services.ec2.model.CancelledSpotInstanceRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.DescribeInstancesResponse;
+import software.amazon.awssdk.services.ec2.model.Ec2Exception;
+import software.amazon.awssdk.services.ec2.model.Instance;
+import software.amazon.awssdk.services.ec2.model.InstanceState;
+import software.amazon.awssdk.services.ec2.model.InstanceStateName;
+import software.amazon.awssdk.services.ec2.model.Reservation;
+import software.amazon.awssdk.services.ec2.model.TerminateInstancesRequest;
+
+class EC2TerminationQueueTest {
+
+    /**
+     * Long enough for the scheduled flush not to race with the one run by the test.
+     */
+    private static final long WINDOW = TimeUnit.MINUTES.toMillis(10);
+
+    private EC2Cloud cloud;
+
+    private Ec2Client ec2;
+
+    private Jenkins jenkins;
+
+    private MockedStatic<Jenkins> mockedJenkins;
+
+    @BeforeEach
+    void setUp() {
+        ec2 = mock(Ec2Client.class);
+        cloud = mock(EC2Cloud.class);
+        when(cloud.connect()).thenReturn(ec2);
+        jenkins = mock(Jenkins.class);
+        mockedJenkins = Mockito.mockStatic(Jenkins.class);
+        mockedJenkins.when(Jenkins::get).thenReturn(jenkins);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mockedJenkins.close();
+    }
+
+    private static <T extends EC2AbstractSlave> T queued(T node, String instanceId) {
+        when(node.getInstanceId()).thenReturn(instanceId);
+        node.terminateScheduled = new ResettableCountDownLatch(1, false);
+        node.terminateScheduled.reset();
+        return node;
+    }
+
+    private static Instance instance(String id, InstanceStateName state) {
+        return Instance.builder()
+                .instanceId(id)
+                .launchTime(Instant.now())
+                .state(InstanceState.builder().name(state).build())
+                .build();
+    }
+
+    @Test
+    void testOnDemandAgentsAreTerminatedInOneCall() throws Exception {
+        when(ec2.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+                .thenReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder()
+                                .instances(
+                                        instance("i-1", InstanceStateName.RUNNING),
+                                        instance("i-2", InstanceStateName.RUNNING),
+                                        instance("i-3", InstanceStateName.TERMINATED))
+                                .build())
+                        .build());
+        EC2OndemandSlave first = queued(mock(EC2OndemandSlave.class), "i-1");
+        EC2OndemandSlave second = queued(mock(EC2OndemandSlave.class), "i-2");
+        EC2OndemandSlave gone = queued(mock(EC2OndemandSlave.class), "i-3");
+        EC2TerminationQueue queue = new EC2TerminationQueue(cloud, WINDOW);
+        queue.add(first);
+        queue.add(second);
+        queue.add(gone);
+
+        queue.flush();
+
+        verify(ec2, times(1)).describeInstances(Mockito.any(DescribeInstancesRequest.class));
+        ArgumentCaptor<TerminateInstancesRequest> request = ArgumentCaptor.forClass(TerminateInstancesRequest.class);
+        verify(ec2, times(1)).terminateInstances(request.capture());
+        assertEquals(List.of("i-1", "i-2"), request.getValue().instanceIds());
+        verify(cloud).releaseCapacity(first);
+        verify(cloud).releaseCapacity(second);
+        verify(cloud, never()).releaseCapacity(gone);
+        for (EC2OndemandSlave node : List.of(first, second, gone)) {
+            verify(jenkins).removeNode(node);
+            assertEquals(0, node.terminateScheduled.getCount());
+        }
+        assertEquals(0, queue.getPendingCount());
+    }
+
+    @Test
+    void testFailedTerminationKeepsOnDemandAgent() throws Exception {
+        when(ec2.describeInstances(Mockito.any(DescribeInstancesRequest.class)))
+                .thenReturn(DescribeInstancesResponse.builder()
+                        .reservations(Reservation.builder()
+                                .instances(
+                                        instance("i-1", InstanceStateName.RUNNING),
+                                        instance("i-2", InstanceStateName.RUNNING))
+                                .build())
+                        .build());
+        when(ec2.terminateInstances(Mockito.any(TerminateInstancesRequest.class)))
+                .thenAnswer(invocation -> {
+                    TerminateInstancesRequest r = invocation.getArgument(0);
+                    if (r.instanceIds().contains("i-2")) {
+                        throw Ec2Exception.builder()
+                                .awsErrorDetails(AwsErrorDetails.builder()
+                                        .errorCode("UnauthorizedOperation")
+                                        .build())
+                                .build();
+                    }
+                    return null;
+                });
+        EC2OndemandSlave first = queued(mock(EC2OndemandSlave.class), "i-1");
+        EC2OndemandSlave second = queued(mock(EC2OndemandSlave.class), "i-2");
+        EC2TerminationQueue queue = new EC2TerminationQueue(cloud, WINDOW);
+        queue.add(first);
+        queue.add(second);
+
+        queue.flush();
+
+        // The bulk call, then one per instance
+        verify(ec2, times(3)).terminateInstances(Mockito.any(TerminateInstancesRequest.class));
+        verify(jenkins).removeNode(first);
+        verify(jenkins, never()).removeNode(second);
+        assertEquals(0, second.terminateScheduled.getCount());
+    }
+
+    @Test
+    void testSpotRequestsAreCancelledInOneCall() throws Exception {
+        when(ec2.cancelSpotInstanceRequests(Mockito.any(CancelSpotInstanceRequestsRequest.class)))
+                .thenReturn(CancelSpotInstanceRequestsResponse.builder()
+                        .cancelledSpotInstanceRequests(
+                                CancelledSpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-1")
+                                        .build(),
+                                CancelledSpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-2")
+                                        .build())
+                        .build());
+        EC2SpotSlave first = queued(mock(EC2SpotSlave.class), null);
+        when(first.getSpotInstanceRequestId()).thenReturn("sir-1");
+        EC2SpotSlave second = queued(mock(EC2SpotSlave.class), null);
+        when(second.getSpotInstanceRequestId()).thenReturn("sir-2");
+        EC2TerminationQueue queue = new EC2TerminationQueue(cloud, WINDOW);
+        queue.add(first);
+        queue.add(second);
+
+        queue.flush();
+
+        ArgumentCaptor<CancelSpotInstanceRequestsRequest> request =
+                ArgumentCaptor.forClass(CancelSpotInstanceRequestsRequest.class);
+        verify(ec2, times(1)).cancelSpotInstanceRequests(request.capture());
+        assertEquals(List.of("sir-1", "sir-2"), request.getValue().spotInstanceRequestIds());
+        verify(ec2, never()).terminateInstances(Mockito.any(TerminateInstancesRequest.class));
+        verify(cloud).releaseCapacity(first);
+        verify(cloud).releaseCapacity(second);
+        verify(jenkins).removeNode(first);
+        verify(jenkins).removeNode(second);
+    }
+}
@@ -50,10 +50,12 @@ import org.jvnet.hudson.test.Issue;
 import org.jvnet.hudson.test.JenkinsRule;
 import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
 import org.xml.sax.SAXException;
 import software.amazon.awssdk.awscore.exception.AwsErrorDetails;
 import software.amazon.awssdk.awscore.exception.AwsServiceException;
 import software.amazon.awssdk.services.ec2.Ec2Client;
+import software.amazon.awssdk.services.ec2.model.CreateTagsRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesResponse;
 import software.amazon.awssdk.services.ec2.model.DescribeInstancesRequest;
@@ -74,12 +76,17 @@ import software.amazon.awssdk.services.ec2.model.InstanceNetworkInterfaceSpecifi
 import software.amazon.awssdk.services.ec2.model.InstanceStateName;
 import software.amazon.awssdk.services.ec2.model.InstanceType;
 import software.amazon.awssdk.services.ec2.model.KeyPairInfo;
+import software.amazon.awssdk.services.ec2.model.MarketType;
 import software.amazon.awssdk.services.ec2.model.RequestSpotInstancesRequest;
+import software.amazon.awssdk.services.ec2.model.RequestSpotInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.Reservation;
+import software.amazon.awssdk.services.ec2.model.ResourceType;
 import software.amazon.awssdk.services.ec2.model.RunInstancesRequest;
 import software.amazon.awssdk.services.ec2.model.RunInstancesResponse;
 import software.amazon.awssdk.services.ec2.model.SecurityGroup;
+import software.amazon.awssdk.services.ec2.model.SpotInstanceRequest;
 import software.amazon.awssdk.services.ec2.model.Subnet;
+import software.amazon.awssdk.services.ec2.model.TagSpecification;
 
 /**
  * Basic test to validate SlaveTemplate.
@@ -933,6 +940,92 @@ class SlaveTemplateTest {
         verify(mockedEC2).runInstances(any(RunInstancesRequest.class));
     }
 
+    @Test
+    void provisionSpotTagsRequestsAtCreation() throws Exception {
+        boolean associatePublicIp = true;
+        String description = "foo ami";
+        String subnetId = "some-subnet";
+        String securityGroups = "some security group";
+        String iamInstanceProfile = "some instance profile";
+
+        SpotConfiguration spotConfig = new SpotConfiguration(true);
+        spotConfig.setSpotMaxBidPrice(".05");
+        spotConfig.setSpotBlockReservationDuration(0);
+
+        SlaveTemplate template = new SlaveTemplate(
+                TEST_AMI,
+                TEST_ZONE,
+                spotConfig,
+                securityGroups,
+                TEST_REMOTE_FS,
+                TEST_INSTANCE_TYPE.toString(),
+                TEST_EBSO,
+                TEST_LABEL,
+                Node.Mode.NORMAL,
+                description,
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                EC2AbstractSlave.DEFAULT_JAVA_PATH,
+                "-Xmx1g",
+                false,
+                subnetId,
+                null,
+                null,
+                0,
+                0,
+                null,
+                iamInstanceProfile,
+                false,
+                true,
+                "",
+                associatePublicIp,
+                "",
+                false,
+                false,
+                false,
+                ConnectionStrategy.backwardsCompatible(false, false, associatePublicIp),
+                -1,
+                Collections.emptyList(),
+                null,
+                Tenancy.Default,
+                EbsEncryptRootVolume.DEFAULT,
+                EC2AbstractSlave.DEFAULT_METADATA_ENDPOINT_ENABLED,
+                EC2AbstractSlave.DEFAULT_METADATA_TOKENS_REQUIRED,
+                EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT,
+                EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED,
+                EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED);
+
+        Ec2Client mockedEC2 = setupTestForProvisioning(template);
+        when(mockedEC2.requestSpotInstances(any(RequestSpotInstancesRequest.class)))
+                .thenReturn(RequestSpotInstancesResponse.builder()
+                        .spotInstanceRequests(
+                                SpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-1")
+                                        .build(),
+                                SpotInstanceRequest.builder()
+                                        .spotInstanceRequestId("sir-2")
+                                        .build())
+                        .build());
+
+        template.provision(2, EnumSet.of(ProvisionOptions.ALLOW_CREATE));
+
+        ArgumentCaptor<RequestSpotInstancesRequest> spotRequestCaptor =
+                ArgumentCaptor.forClass(RequestSpotInstancesRequest.class);
+        verify(mockedEC2).requestSpotInstances(spotRequestCaptor.capture());
+        TagSpecification tagSpecification =
+                spotRequestCaptor.getValue().tagSpecifications().get(0);
+        assertEquals(ResourceType.SPOT_INSTANCES_REQUEST, tagSpecification.resourceType());
+        assertFalse(tagSpecification.tags().isEmpty());
+        // The requests came back without tags, so they are tagged together afterwards
+        ArgumentCaptor<CreateTagsRequest> createTagsCaptor = ArgumentCaptor.forClass(CreateTagsRequest.class);
+        verify(mockedEC2).createTags(createTagsCaptor.capture());
+        assertEquals(List.of("sir-1", "sir-2"), createTagsCaptor.getValue().resources());
+    }
+
     private Ec2Client setupTestForProvisioning(SlaveTemplate template) throws Exception {
         EC2Cloud mockedCloud = mock(EC2Cloud.class);
         Ec2Client mockedEC2 = mock(Ec2Client.class);
@@ -1591,6 +1684,82 @@ class SlaveTemplateTest {
         assertEquals(Boolean.TRUE, enclaveOptionsRequest.enabled());
     }
 
+    @Test
+    void provisionSpotWithoutBidPriceLaunchesAllAndFallsBackForTheRest() throws Exception {
+        SpotConfiguration spotConfig = new SpotConfiguration(false);
+        spotConfig.setFallbackToOndemand(true);
+        SlaveTemplate template = new SlaveTemplate(
+                TEST_AMI,
+                TEST_ZONE,
+                spotConfig,
+                TEST_SEC_GROUPS,
+                TEST_REMOTE_FS,
+                TEST_INSTANCE_TYPE.toString(),
+                TEST_EBSO,
+                TEST_LABEL,
+                Node.Mode.NORMAL,
+                "",
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                "java",
+                "-Xmx1g",
+                false,
+                "subnet 456",
+                null,
+                null,
+                0,
+                0,
+                null,
+                "",
+                true,
+                false,
+                "",
+                false,
+                "",
+                true,
+                false,
+                false,
+                ConnectionStrategy.PUBLIC_IP,
+                -1,
+                Collections.emptyList(),
+                null,
+                Tenancy.Default,
+                EbsEncryptRootVolume.DEFAULT,
+                null,
+                true,
+                null,
+                true,
+                false);
+        Ec2Client mockedEC2 = setupTestForProvisioning(template);
+        Instance running = Instance.builder()
+                .state(software.amazon.awssdk.services.ec2.model.InstanceState.builder()
+                        .name(InstanceStateName.RUNNING)
+                        .build())
+                .build();
+        when(mockedEC2.runInstances(any(RunInstancesRequest.class)))
+                .thenReturn(RunInstancesResponse.builder().instances(running).build())
+                .thenReturn(RunInstancesResponse.builder()
+                        .instances(running, running)
+                        .build());
+
+        // One of the four is the existing instance described by the mocked client
+        List<EC2AbstractSlave> agents = template.provision(4, EnumSet.of(ProvisionOptions.ALLOW_CREATE));
+
+        assertEquals(4, agents.size());
+        ArgumentCaptor<RunInstancesRequest> riRequestCaptor = ArgumentCaptor.forClass(RunInstancesRequest.class);
+        verify(mockedEC2, Mockito.times(2)).runInstances(riRequestCaptor.capture());
+        RunInstancesRequest spotRequest = riRequestCaptor.getAllValues().get(0);
+        assertEquals(3, spotRequest.maxCount());
+        assertEquals(MarketType.SPOT, spotRequest.instanceMarketOptions().marketType());
+        RunInstancesRequest ondemandRequest = riRequestCaptor.getAllValues().get(1);
+        assertEquals(2, ondemandRequest.maxCount());
+        assertNull(ondemandRequest.instanceMarketOptions());
+    }
+
     @Test
     public void testWindowsSSHConfigRoundTrip() throws Exception {
         String description = "foo ami";
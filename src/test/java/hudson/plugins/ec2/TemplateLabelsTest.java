@@ -23,6 +23,7 @@
  */
 package hudson.plugins.ec2;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
@@ -98,18 +99,41 @@ class TemplateLabelsTest {
         assertFalse(ac.canProvision((Label) null));
     }
 
+    @Test
+    void testMatchesFollowTemplateUpdates() throws Exception {
+        setUpCloud(LABEL1);
+        Label expression = Label.parseExpression(LABEL1 + " || " + LABEL2);
+        assertTrue(ac.canProvision(new LabelAtom(LABEL1)));
+        assertTrue(ac.canProvision(expression));
+        assertFalse(ac.canProvision(new LabelAtom(LABEL2)));
+
+        ac.updateTemplate(createTemplate(LABEL2, Node.Mode.NORMAL), "foo ami");
+
+        assertFalse(ac.canProvision(new LabelAtom(LABEL1)));
+        assertTrue(ac.canProvision(expression));
+        assertTrue(ac.canProvision(new LabelAtom(LABEL2)));
+        assertEquals(ac.getTemplates(), new ArrayList<>(ac.getTemplates(expression)));
+    }
+
     private void setUpCloud(String label) {
         setUpCloud(label, Node.Mode.NORMAL);
     }
 
     private void setUpCloud(String label, Node.Mode mode) {
+        List<SlaveTemplate> templates = new ArrayList<>();
+        templates.add(createTemplate(label, mode));
+
+        ac = new EC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", null, "3", templates, null, null);
+    }
+
+    private static SlaveTemplate createTemplate(String label, Node.Mode mode) {
         EC2Tag tag1 = new EC2Tag("name1", "value1");
         EC2Tag tag2 = new EC2Tag("name2", "value2");
         List<EC2Tag> tags = new ArrayList<>();
         tags.add(tag1);
         tags.add(tag2);
 
-        SlaveTemplate template = new SlaveTemplate(
+        return new SlaveTemplate(
                 "ami",
                 "foo",
                 null,
@@ -155,9 +179,5 @@ class TemplateLabelsTest {
                 EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT,
                 EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED,
                 EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED);
-        List<SlaveTemplate> templates = new ArrayList<>();
-        templates.add(template);
-
-        ac = new EC2Cloud("us-east-1", false, "abc", "us-east-1", "ghi", null, "3", templates, null, null);
     }
 }
@@ -5,17 +5,21 @@ import static org.mockito.Mockito.mock;
 import edu.umd.cs.findbugs.annotations.Nullable;
 import hudson.Extension;
 import hudson.plugins.ec2.EC2Cloud;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.URI;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 import jenkins.model.Jenkins;
 import org.mockito.Mockito;
 import org.mockito.stubbing.Answer;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.ec2.Ec2AsyncClient;
 import software.amazon.awssdk.services.ec2.Ec2Client;
 import software.amazon.awssdk.services.ec2.model.BlockDeviceMapping;
 import software.amazon.awssdk.services.ec2.model.DescribeImagesRequest;
@@ -293,6 +297,29 @@ public class AmazonEC2FactoryMockImpl implements AmazonEC2Factory {
                 .terminateInstances(Mockito.any(TerminateInstancesRequest.class));
     }
 
+    /**
+     * Creates an async client answering every call with the given blocking client, so that tests set calls up once for
+     * both.
+     */
+    public static Ec2AsyncClient createAmazonEC2AsyncMock(Ec2Client delegate) {
+        return mock(Ec2AsyncClient.class, invocation -> {
+            Method method = invocation.getMethod();
+            if (method.isDefault()) {
+                // Builder variants, which pass on to the request variants
+                return invocation.callRealMethod();
+            }
+            if (!CompletableFuture.class.equals(method.getReturnType())) {
+                return Mockito.RETURNS_DEFAULTS.answer(invocation);
+            }
+            try {
+                Method blocking = Ec2Client.class.getMethod(method.getName(), method.getParameterTypes());
+                return CompletableFuture.completedFuture(blocking.invoke(delegate, invocation.getArguments()));
+            } catch (InvocationTargetException e) {
+                return CompletableFuture.failedFuture(e.getCause());
+            }
+        });
+    }
+
     @Override
     public Ec2Client connect(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
         if (mock == null) {
@@ -300,4 +327,9 @@ public class AmazonEC2FactoryMockImpl implements AmazonEC2Factory {
         }
         return mock;
     }
+
+    @Override
+    public Ec2AsyncClient connectAsync(AwsCredentialsProvider credentialsProvider, Region region, URI endpoint) {
+        return createAmazonEC2AsyncMock(connect(credentialsProvider, region, endpoint));
+    }
 }
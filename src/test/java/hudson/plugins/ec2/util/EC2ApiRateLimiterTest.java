@@ -0,0 +1,105 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import hudson.plugins.ec2.util.EC2ApiRateLimiter.Category;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.regions.Region;
+
+class EC2ApiRateLimiterTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void testCategories() {
+        assertEquals(Category.DESCRIBE, Category.of("DescribeInstances"));
+        assertEquals(Category.DESCRIBE, Category.of("GetConsoleOutput"));
+        assertEquals(Category.RUN_INSTANCES, Category.of("RunInstances"));
+        assertEquals(Category.RUN_INSTANCES, Category.of("RequestSpotInstances"));
+        assertEquals(Category.MUTATE, Category.of("TerminateInstances"));
+        assertEquals(Category.MUTATE, Category.of("CreateTags"));
+    }
+
+    @Test
+    void testBackgroundCallsLeaveAReserve() {
+        EC2ApiRateLimiter limiter = new EC2ApiRateLimiter(clock::get);
+        int background = 0;
+        while (limiter.tryAcquire(Category.RUN_INSTANCES, false)) {
+            background++;
+        }
+        assertEquals((int) (Category.RUN_INSTANCES.capacity * (1 - EC2ApiRateLimiter.BACKGROUND_RESERVE)), background);
+
+        // Provisioning can still use the reserve
+        assertTrue(limiter.tryAcquire(Category.RUN_INSTANCES, true));
+        // Other categories have their own bucket
+        assertTrue(limiter.tryAcquire(Category.DESCRIBE, false));
+    }
+
+    @Test
+    void testNonBlockingCallsTakeTokensWithoutWaiting() {
+        EC2ApiRateLimiter limiter = new EC2ApiRateLimiter(clock::get);
+        for (int i = 0; i < Category.MUTATE.capacity + 10; i++) {
+            limiter.charge(Category.MUTATE);
+        }
+
+        // Blocking callers wait until the debt is paid back
+        assertFalse(limiter.tryAcquire(Category.MUTATE, true));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos((long) Math.ceil(11 / Category.MUTATE.rate)));
+        assertTrue(limiter.tryAcquire(Category.MUTATE, true));
+    }
+
+    @Test
+    void testThrottlingHalvesTheRateAndSuccessRestoresIt() {
+        EC2ApiRateLimiter limiter = new EC2ApiRateLimiter(clock::get);
+        double rate = Category.DESCRIBE.rate;
+
+        limiter.onThrottled(Category.DESCRIBE);
+        assertEquals(rate / 2, limiter.getRate(Category.DESCRIBE), 0.001);
+        assertEquals(1, limiter.getThrottledCount());
+        // The burst is over, tokens come back at the lowered rate
+        assertFalse(limiter.tryAcquire(Category.DESCRIBE, true));
+        clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+        int available = 0;
+        while (limiter.tryAcquire(Category.DESCRIBE, true)) {
+            available++;
+        }
+        assertEquals((int) (rate / 2), available);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.onSuccess(Category.DESCRIBE);
+        }
+        assertEquals(rate, limiter.getRate(Category.DESCRIBE), 0.001);
+    }
+
+    @Test
+    void testLimitersAreSharedPerAccount() {
+        URI endpoint = URI.create("https://ec2.test-account-1.amazonaws.com");
+        EC2ApiRateLimiter first = EC2ApiRateLimiter.get(new Scoped("account:111"), Region.US_WEST_1, endpoint);
+
+        assertSame(first, EC2ApiRateLimiter.get(new Scoped("account:111"), Region.US_WEST_1, endpoint));
+        assertNotSame(first, EC2ApiRateLimiter.get(new Scoped("account:222"), Region.US_WEST_1, endpoint));
+        assertNotSame(first, EC2ApiRateLimiter.get(new Scoped("account:111"), Region.US_WEST_2, endpoint));
+    }
+
+    private record Scoped(String accountKey) implements AwsCredentialsProvider, EC2ApiRateLimiter.AccountScoped {
+        @Override
+        public String getAccountKey() {
+            return accountKey;
+        }
+
+        @Override
+        public AwsCredentials resolveCredentials() {
+            return AwsBasicCredentials.create("id", "secret");
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.net.URI;
+import org.junit.jupiter.api.Test;
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollector;
+import software.amazon.awssdk.regions.Region;
+
+class EC2HttpTransportsTest {
+
+    @Test
+    void testTransportsAreSharedPerRegionAndEndpoint() {
+        EC2HttpTransports.Transport east = EC2HttpTransports.get(Region.US_EAST_1, null);
+
+        assertSame(east, EC2HttpTransports.get(Region.US_EAST_1, null));
+        assertNotSame(east, EC2HttpTransports.get(Region.EU_WEST_1, null));
+        assertNotSame(east, EC2HttpTransports.get(Region.US_EAST_1, URI.create("https://ec2.example.com")));
+    }
+
+    @Test
+    void testGaugesFollowClientMetrics() {
+        EC2HttpTransports.Transport transport = EC2HttpTransports.get(Region.AP_SOUTH_1, null);
+
+        MetricCollector call = MetricCollector.create("ApiCall");
+        MetricCollector http = call.createChild("ApiCallAttempt").createChild("HttpClient");
+        http.reportMetric(HttpMetric.LEASED_CONCURRENCY, 7);
+        http.reportMetric(HttpMetric.AVAILABLE_CONCURRENCY, 2);
+        http.reportMetric(HttpMetric.PENDING_CONCURRENCY_ACQUIRES, 0);
+        transport.publish(call.collect());
+
+        MetricCollector later = MetricCollector.create("ApiCall");
+        later.createChild("ApiCallAttempt").createChild("HttpClient").reportMetric(HttpMetric.LEASED_CONCURRENCY, 3);
+        transport.publish(later.collect());
+
+        assertEquals(3, transport.getLeasedConnections());
+        assertEquals(2, transport.getAvailableConnections());
+        assertEquals(7, transport.getMaxLeasedConnections());
+    }
+}
@@ -0,0 +1,123 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import hudson.model.Node;
+import hudson.plugins.ec2.ConnectionStrategy;
+import hudson.plugins.ec2.EC2AbstractSlave;
+import hudson.plugins.ec2.EC2Cloud;
+import hudson.plugins.ec2.EbsEncryptRootVolume;
+import hudson.plugins.ec2.PluginImpl;
+import hudson.plugins.ec2.SlaveTemplate;
+import hudson.plugins.ec2.Tenancy;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+import software.amazon.awssdk.services.ec2.model.InstanceType;
+
+@WithJenkins
+class MinimumInstanceCheckerTest {
+
+    private JenkinsRule r;
+
+    @BeforeEach
+    void setUp(JenkinsRule rule) throws Exception {
+        r = rule;
+        AmazonEC2FactoryMockImpl.mock = AmazonEC2FactoryMockImpl.createAmazonEC2Mock();
+        SSHCredentialHelper.assureSshCredentialAvailableThroughCredentialProviders("ghi");
+    }
+
+    private static SlaveTemplate template(String ami, String description, int minimumNumberOfInstances) {
+        return new SlaveTemplate(
+                ami,
+                EC2AbstractSlave.TEST_ZONE,
+                null,
+                "default",
+                "foo",
+                InstanceType.M1_LARGE.toString(),
+                false,
+                description,
+                Node.Mode.NORMAL,
+                description,
+                "bar",
+                "bbb",
+                "aaa",
+                "10",
+                "fff",
+                null,
+                EC2AbstractSlave.DEFAULT_JAVA_PATH,
+                "-Xmx1g",
+                false,
+                "subnet 456",
+                null,
+                null,
+                minimumNumberOfInstances,
+                0,
+                "10",
+                null,
+                true,
+                true,
+                "",
+                false,
+                "",
+                false,
+                false,
+                true,
+                ConnectionStrategy.PRIVATE_IP,
+                -1,
+                Collections.emptyList(),
+                null,
+                Tenancy.Default,
+                EbsEncryptRootVolume.DEFAULT,
+                EC2AbstractSlave.DEFAULT_METADATA_ENDPOINT_ENABLED,
+                EC2AbstractSlave.DEFAULT_METADATA_TOKENS_REQUIRED,
+                EC2AbstractSlave.DEFAULT_METADATA_HOPS_LIMIT,
+                EC2AbstractSlave.DEFAULT_METADATA_SUPPORTED,
+                EC2AbstractSlave.DEFAULT_ENCLAVE_ENABLED);
+    }
+
+    private static EC2Cloud cloud(String name, SlaveTemplate... templates) {
+        return new EC2Cloud(
+                name, true, "abc", "us-east-1", null, "ghi", "10", List.of(templates), "roleArn", "roleSessionName");
+    }
+
+    @Test
+    void testProvisionsTheDeficitOfEachTemplate() {
+        SlaveTemplate two = template("ami1", "two", 2);
+        SlaveTemplate one = template("ami2", "one", 1);
+        SlaveTemplate none = template("ami3", "none", 0);
+        r.jenkins.clouds.add(cloud("first", two, one, none));
+
+        MinimumInstanceChecker.checkForMinimumInstances();
+
+        assertEquals(2, MinimumInstanceChecker.countCurrentNumberOfAgents(two));
+        assertEquals(1, MinimumInstanceChecker.countCurrentNumberOfAgents(one));
+        assertEquals(0, MinimumInstanceChecker.countCurrentNumberOfAgents(none));
+
+        // The agents just launched are counted for their own template, so nothing more is launched
+        MinimumInstanceChecker.checkForMinimumInstances();
+
+        assertEquals(2, MinimumInstanceChecker.countCurrentNumberOfAgents(two));
+        assertEquals(1, MinimumInstanceChecker.countCurrentNumberOfAgents(one));
+        assertEquals(3, AmazonEC2FactoryMockImpl.instances.size());
+    }
+
+    @Test
+    void testStartupProvisionsInTheBackground() throws Exception {
+        SlaveTemplate template = template("ami1", "startup", 2);
+        r.jenkins.clouds.add(cloud("startup", template));
+
+        PluginImpl.get().postInitialize();
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+        while (MinimumInstanceChecker.countCurrentNumberOfAgents(template) < 2
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(100);
+        }
+        assertEquals(2, MinimumInstanceChecker.countCurrentNumberOfAgents(template));
+    }
+}
@@ -0,0 +1,49 @@
+package hudson.plugins.ec2.util;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import hudson.model.Label;
+import hudson.model.Queue;
+import hudson.model.labels.LabelAtom;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class QueueSnapshotTest {
+
+    private static Queue.Item item(Label label) {
+        Queue.Item item = mock(Queue.Item.class);
+        when(item.getAssignedLabel()).thenReturn(label);
+        return item;
+    }
+
+    @Test
+    void testLabelsOfAllItems() {
+        LabelAtom agent = new LabelAtom("agent-1");
+        LabelAtom other = new LabelAtom("agent-2");
+        Queue.Item blocked = item(agent);
+
+        QueueSnapshot snapshot = new QueueSnapshot(new Queue.Item[] {blocked, item(null)}, List.of());
+
+        assertTrue(snapshot.hasItemsFor(agent));
+        assertFalse(snapshot.hasItemsFor(other));
+        assertFalse(snapshot.hasItemsFor(null));
+    }
+
+    @Test
+    void testBuildableItemsMatchingTemplateLabels() {
+        LabelAtom linux = new LabelAtom("linux");
+        LabelAtom windows = new LabelAtom("windows");
+        List<Queue.Item> buildable = List.of(item(linux), item(linux), item(windows), item(null));
+
+        QueueSnapshot snapshot = new QueueSnapshot(buildable.toArray(new Queue.Item[0]), buildable);
+
+        assertEquals(2, snapshot.countBuildableItems(Set.of(linux)));
+        assertEquals(3, snapshot.countBuildableItems(Set.of(linux, windows)));
+        assertEquals(0, snapshot.countBuildableItems(Set.of(new LabelAtom("mac"))));
+    }
+}